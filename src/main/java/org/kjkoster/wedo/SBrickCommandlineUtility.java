@@ -6,6 +6,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.Byte.parseByte;
 import static java.lang.System.out;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.kjkoster.wedo.bricks.Brick.FIRST_PORT;
 import static org.kjkoster.wedo.bricks.Brick.Type.NOT_CONNECTED;
 
@@ -44,6 +45,11 @@ public class SBrickCommandlineUtility {
     private static final String BLE112DEVICE = "ble112";
     private static final String HUB = "hub";
 
+    /**
+     * How long we give the hubs to connect before we give up.
+     */
+    private static final long CONNECT_TIMEOUT_SECONDS = 5L;
+
     private static final String RESET = "reset";
     private static final String LIST = "list";
 
@@ -114,17 +120,16 @@ public class SBrickCommandlineUtility {
                 @Cleanup
                 final SBricks sBricks = new SBricks(bgapi, hubs);
 
-                Thread.sleep(1000L);
+                sBricks.awaitAllConnected(CONNECT_TIMEOUT_SECONDS, SECONDS)
+                        .get();
 
                 if (commandLine.hasOption(RESET)) {
                     sBricks.reset();
                 } else if (commandLine.hasOption(MOTOR)) {
                     sBricks.motor(parseByte(commandLine.getOptionValue(MOTOR)));
                 } else if (commandLine.hasOption(MOTOR_A)) {
-                    Thread.sleep(1000L);
                     sBricks.motorA(
                             parseByte(commandLine.getOptionValue(MOTOR_A)));
-                    Thread.sleep(1000L);
                 } else if (commandLine.hasOption(MOTOR_B)) {
                     sBricks.motorB(
                             parseByte(commandLine.getOptionValue(MOTOR_B)));
@@ -163,8 +168,6 @@ public class SBrickCommandlineUtility {
                     formatter.printHelp("sbrick", options);
                     System.exit(1);
                 }
-
-                Thread.sleep(1000L);
             }
         } catch (Throwable e) {
             e.printStackTrace();
@@ -213,7 +213,9 @@ public class WeDoCommandlineUtility {
                     switch (brick.getType()) {
                     case DISTANCE:
                         if (showDistance) {
-                            final Distance distance = brick.getDistance();
+                            final Distance distance = brick.getDistance(
+                                    weDoBricks.getDistanceCalibration(
+                                            hub.getPath(), brick.getPort()));
                             out.printf("distance %d cm (value %d)\n",
                                     distance.getCm(), distance.getValue());
                         }
@@ -5,13 +5,20 @@ import static java.lang.System.nanoTime;
 import static java.lang.Thread.sleep;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.kjkoster.wedo.bricks.Tilt.Direction.LEFT;
 import static org.kjkoster.wedo.bricks.Tilt.Direction.RIGHT;
+import static org.kjkoster.wedo.systems.wedo.Subscription.Delivery.CHANGES_ONLY;
+import static org.kjkoster.wedo.transport.usb.Usb.ReadMode.NON_BLOCKING;
 
-import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
 
-import org.kjkoster.wedo.bricks.Tilt;
+import org.kjkoster.wedo.bricks.Tilt.Direction;
+import org.kjkoster.wedo.bricks.Tilt.Quality;
+import org.kjkoster.wedo.systems.wedo.Subscription;
+import org.kjkoster.wedo.systems.wedo.TiltListener;
 import org.kjkoster.wedo.systems.wedo.WeDoBricks;
+import org.kjkoster.wedo.transport.usb.HubHandle;
 import org.kjkoster.wedo.transport.usb.Usb;
 
 /**
@@ -23,7 +30,8 @@ public class Balancer {
     private static WeDoBricks weDoBricks = null;
 
     private static final int WOBBLES = 4;
-    private static final long SLEEPTIME = MILLISECONDS.toMillis(100L);
+    private static final long SAMPLE_PERIOD = 20L;
+    private static final int VOTES = 5;
 
     /**
      * The main entry point.
@@ -32,7 +40,10 @@ public class Balancer {
      *            Ignored.
      */
     public static void main(final String[] args) {
-        try (final Usb usb = new Usb(false)) {
+        // never wait on the USB bus, the timing is what makes this work
+        try (final Usb usb = new Usb(false, NON_BLOCKING)) {
+            // ...except once, to hear from the hubs before we start
+            usb.readout(1L, SECONDS);
             weDoBricks = new WeDoBricks(usb, true);
             weDoBricks.reset();
 
@@ -69,32 +80,34 @@ public class Balancer {
 
     private static void tiltLeft() throws InterruptedException {
         weDoBricks.motor((byte) -50);
-
-        for (;;) {
-            sleep(SLEEPTIME);
-
-            final Collection<Tilt> tilts = weDoBricks.readTilts();
-            if (tilts.size() > 0
-                    && tilts.iterator().next().getDirection() == LEFT) {
-                break;
-            }
-        }
+        waitForTilt(LEFT);
         weDoBricks.motor((byte) 0);
     }
 
     private static void tiltRight() throws InterruptedException {
         weDoBricks.motor((byte) 50);
+        waitForTilt(RIGHT);
+        weDoBricks.motor((byte) 0);
+    }
 
-        for (;;) {
-            sleep(SLEEPTIME);
-
-            final Collection<Tilt> tilts = weDoBricks.readTilts();
-            if (tilts.size() > 0
-                    && tilts.iterator().next().getDirection() == RIGHT) {
-                break;
-            }
+    private static void waitForTilt(final Direction wanted)
+            throws InterruptedException {
+        // the motor disturbs the tilt sensor, so we let the samples vote
+        final CountDownLatch tilted = new CountDownLatch(1);
+        try (final Subscription subscription = weDoBricks.subscribeTilts(null,
+                null, SAMPLE_PERIOD, MILLISECONDS, CHANGES_ONLY, VOTES,
+                new TiltListener() {
+                    @Override
+                    public void tilted(final HubHandle hubHandle,
+                            final char port, final Direction direction,
+                            final Quality quality, final long receivedNanos) {
+                        if (direction == wanted) {
+                            tilted.countDown();
+                        }
+                    }
+                })) {
+            tilted.await();
         }
-        weDoBricks.motor((byte) 0);
     }
 
     private static void balance(final long halfWayTime)
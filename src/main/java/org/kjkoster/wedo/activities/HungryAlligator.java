@@ -4,11 +4,17 @@ import static java.lang.System.exit;
 import static java.lang.Thread.sleep;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.kjkoster.wedo.bricks.Brick.Type.DISTANCE;
+import static org.kjkoster.wedo.systems.wedo.Subscription.Delivery.CHANGES_ONLY;
 
-import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
 
-import org.kjkoster.wedo.bricks.Distance;
+import org.kjkoster.wedo.bricks.Brick;
+import org.kjkoster.wedo.bricks.Brick.Type;
+import org.kjkoster.wedo.systems.wedo.SensorListener;
+import org.kjkoster.wedo.systems.wedo.Subscription;
 import org.kjkoster.wedo.systems.wedo.WeDoBricks;
+import org.kjkoster.wedo.transport.usb.HubHandle;
 import org.kjkoster.wedo.transport.usb.Usb;
 
 /**
@@ -54,13 +60,23 @@ public class HungryAlligator {
     }
 
     private static void waitForBait() throws InterruptedException {
-        for (;;) {
-            sleep(MILLISECONDS.toMillis(100L));
-
-            final Collection<Distance> distances = weDoBricks.readDistances();
-            if (distances.size() > 0 && distances.iterator().next().getCm() < 1) {
-                return;
-            }
+        final CountDownLatch baited = new CountDownLatch(1);
+        try (final Subscription subscription = weDoBricks.subscribe(null,
+                null, DISTANCE, 100L, MILLISECONDS, CHANGES_ONLY,
+                new SensorListener() {
+                    @Override
+                    public void sampled(final HubHandle hubHandle,
+                            final char port, final Type type,
+                            final byte value, final long receivedNanos) {
+                        if (new Brick(port, type, value)
+                                .getDistance(weDoBricks.getDistanceCalibration(
+                                        hubHandle.getPath(), port))
+                                .getCm() < 1) {
+                            baited.countDown();
+                        }
+                    }
+                })) {
+            baited.await();
         }
     }
 
@@ -0,0 +1,112 @@
+package org.kjkoster.wedo.bricks;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.CompletableFuture.allOf;
+import static org.kjkoster.wedo.bricks.Brick.FIRST_PORT;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A batch of actuator values across hubs and ports that are sent together.
+ * Setting actuators one call at a time sends a frame per call. A batch instead
+ * collects the values and sends exactly one frame per hub that it touches, to
+ * all hubs at the same time. That way a move that involves several actuators
+ * takes fewer writes, and the hubs see their new values closer together.
+ * <p>
+ * Batches are meant to be filled and committed by a single thread. They are
+ * not thread safe.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public abstract class ActuatorBatch {
+    private final int ports;
+
+    // the values to send, by hub path
+    private final Map<String, byte[]> frames = new LinkedHashMap<>();
+    private final Map<String, Integer> portMasks = new LinkedHashMap<>();
+
+    /**
+     * Set up a new, empty batch.
+     *
+     * @param ports
+     *            The number of ports on the hubs that this batch is for.
+     */
+    protected ActuatorBatch(final int ports) {
+        super();
+
+        checkArgument(ports > 0, "unsupported number of ports %s", ports);
+        this.ports = ports;
+    }
+
+    /**
+     * Add an actuator value to the batch. Setting the same hub and port again
+     * replaces the value set earlier. Nothing is sent until the batch is
+     * committed.
+     *
+     * @param path
+     *            The path of the hub to set the value on.
+     * @param port
+     *            The port to set the value on.
+     * @param value
+     *            The motor speed or light intensity to set.
+     * @return This batch, so that calls can be chained.
+     */
+    public ActuatorBatch set(final String path, final char port,
+            final byte value) {
+        checkNotNull(path, "null path");
+        final int index = port - FIRST_PORT;
+        checkArgument(index >= 0 && index < ports, "no port %s on hub %s",
+                port, path);
+
+        byte[] frame = frames.get(path);
+        if (frame == null) {
+            frame = new byte[ports];
+            frames.put(path, frame);
+            portMasks.put(path, 0);
+        }
+        frame[index] = value;
+        portMasks.put(path, portMasks.get(path) | 1 << index);
+        return this;
+    }
+
+    /**
+     * Send the batch, one frame per hub, and empty it so that it can be
+     * filled again.
+     *
+     * @return A future that completes when all frames were sent, or that
+     *         completes exceptionally when sending any of them failed.
+     */
+    public CompletableFuture<Void> commit() {
+        final CompletableFuture<?>[] sent = new CompletableFuture<?>[frames
+                .size()];
+        int i = 0;
+        for (final Map.Entry<String, byte[]> frame : frames.entrySet()) {
+            sent[i++] = send(frame.getKey(), portMasks.get(frame.getKey()),
+                    frame.getValue());
+        }
+        frames.clear();
+        portMasks.clear();
+
+        return allOf(sent);
+    }
+
+    /**
+     * Send one frame to a hub. Implementations should not wait for the frame
+     * to be written, so that the frames for all hubs go out in parallel.
+     *
+     * @param path
+     *            The path of the hub to send the frame to.
+     * @param portMask
+     *            The ports that were set in the batch, bit 0 for port A, bit
+     *            1 for port B and so on.
+     * @param frame
+     *            The values that were set in the batch, one per port,
+     *            starting with port A.
+     * @return A future that completes when the frame was sent.
+     */
+    protected abstract CompletableFuture<Void> send(String path, int portMask,
+            byte[] frame);
+}
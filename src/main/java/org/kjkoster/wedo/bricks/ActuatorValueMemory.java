@@ -3,8 +3,10 @@ package org.kjkoster.wedo.bricks;
 import static com.google.common.base.Preconditions.checkArgument;
 import static org.kjkoster.wedo.bricks.Brick.FIRST_PORT;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import lombok.NonNull;
 
@@ -13,29 +15,52 @@ import lombok.NonNull;
  * SBrick protocols force us to write the actuator values for all bricks at the
  * same time. Even if we just want to set the value for one brick, we still have
  * to write both values.
+ * <p>
+ * Each hub is given a dense slot number the first time we see it. The values
+ * for all ports of a hub are packed into a single long, one byte per port, so
+ * that a whole frame can be read and updated atomically. Apart from the first
+ * time a hub is seen, reading and writing does not allocate and does not lock.
+ * This class is thread safe.
  *
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 public class ActuatorValueMemory {
+    private static final int MAX_PORTS = 4;
+
+    /**
+     * Marks a slot in an array that is being replaced by a larger one. Frozen
+     * slots are no longer updated, writers move on to the new array.
+     */
+    private static final long FROZEN = 1L << 63;
+
     private final int ports;
-    private final Map<String, Map<Character, Byte>> rememberedActuatorValues = new HashMap<>();
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSlot = new AtomicInteger();
+
+    /**
+     * The packed values, one long per hub slot. The array is replaced when it
+     * runs out of slots.
+     */
+    private volatile AtomicLongArray values = new AtomicLongArray(8);
 
     /**
      * Set up a new actuator value memory cache, specifying the number of ports
      * to accept to this cache.
-     * 
+     *
      * @param ports
      *            The number of ports to accept on this cache.
      */
     public ActuatorValueMemory(final int ports) {
         super();
 
+        checkArgument(ports > 0 && ports <= MAX_PORTS,
+                "unsupported number of ports %s", ports);
         this.ports = ports;
     }
 
     /**
      * Write a new value into the actuator memory.
-     * 
+     *
      * @param hub
      *            The hub to write for.
      * @param port
@@ -45,24 +70,30 @@ public class ActuatorValueMemory {
      */
     public void write(@NonNull final Hub hub, final char port,
             final byte value) {
-        checkArgument(port >= FIRST_PORT && port < FIRST_PORT + ports);
+        final int shift = shift(port);
+        final long mask = 0xffL << shift;
+        final long bits = (value & 0xffL) << shift;
+        final int slot = slot(hub);
 
-        Map<Character, Byte> rememberedActuatorValue = rememberedActuatorValues
-                .get(hub.getPath());
-        if (rememberedActuatorValue == null) {
-            rememberedActuatorValue = new HashMap<>();
-            rememberedActuatorValues.put(hub.getPath(),
-                    rememberedActuatorValue);
+        for (;;) {
+            final AtomicLongArray current = values(slot);
+            final long frame = current.get(slot);
+            if ((frame & FROZEN) != 0L) {
+                // the array is being grown, retry on the new one
+                Thread.yield();
+                continue;
+            }
+            if (current.compareAndSet(slot, frame, (frame & ~mask) | bits)) {
+                return;
+            }
         }
-
-        rememberedActuatorValue.put(port, value);
     }
 
     /**
      * Read a value from the actuator memory. We return the last value that was
      * written for this hub and port, or return 0x00 when no value was ever
      * written.
-     * 
+     *
      * @param hub
      *            The hub to read for.
      * @param port
@@ -71,19 +102,146 @@ public class ActuatorValueMemory {
      *         value was ever written.
      */
     public byte read(@NonNull final Hub hub, final char port) {
+        final int shift = shift(port);
+        final Integer slot = slots.get(hub.getPath());
+        if (slot == null) {
+            return (byte) 0x00;
+        }
+
+        return (byte) (frame(slot) >>> shift);
+    }
+
+    /**
+     * Read the values for all ports of a hub in one go. Unlike reading the
+     * ports one by one, this gives a consistent frame, even when other threads
+     * are writing values for the same hub.
+     *
+     * @param hub
+     *            The hub to read for.
+     * @param frame
+     *            The array to read the values into, one value per port,
+     *            starting with port A.
+     */
+    public void readFrame(@NonNull final Hub hub, @NonNull final byte[] frame) {
+        checkArgument(frame.length >= ports, "frame too short for %s ports",
+                ports);
+
+        final Integer slot = slots.get(hub.getPath());
+        final long packed = slot == null ? 0L : frame(slot);
+        for (int i = 0; i < ports; i++) {
+            frame[i] = (byte) (packed >>> (i * 8));
+        }
+    }
+
+    /**
+     * Write new values for several ports of a hub in one go, and read back the
+     * resulting frame. The update is atomic, so the frame that comes back is
+     * exactly what the hub should be sent, even when other threads are
+     * writing values for the same hub.
+     *
+     * @param hub
+     *            The hub to write for.
+     * @param portMask
+     *            The ports to write, bit 0 for port A, bit 1 for port B and so
+     *            on.
+     * @param frame
+     *            The values to write, one value per port, starting with port
+     *            A. Values for ports that are not in the mask are ignored. On
+     *            return, this array holds the values for all ports.
+     */
+    public void writeFrame(@NonNull final Hub hub, final int portMask,
+            @NonNull final byte[] frame) {
+        checkArgument(frame.length >= ports, "frame too short for %s ports",
+                ports);
+        checkArgument((portMask & ~((1 << ports) - 1)) == 0,
+                "port mask %s covers more than %s ports", portMask, ports);
+
+        long mask = 0L;
+        long bits = 0L;
+        for (int i = 0; i < ports; i++) {
+            if ((portMask & (1 << i)) != 0) {
+                mask |= 0xffL << (i * 8);
+                bits |= (frame[i] & 0xffL) << (i * 8);
+            }
+        }
+        final int slot = slot(hub);
+
+        long updated;
+        for (;;) {
+            final AtomicLongArray current = values(slot);
+            final long packed = current.get(slot);
+            if ((packed & FROZEN) != 0L) {
+                // the array is being grown, retry on the new one
+                Thread.yield();
+                continue;
+            }
+            updated = (packed & ~mask) | bits;
+            if (current.compareAndSet(slot, packed, updated)) {
+                break;
+            }
+        }
+
+        for (int i = 0; i < ports; i++) {
+            frame[i] = (byte) (updated >>> (i * 8));
+        }
+    }
+
+    private int shift(final char port) {
         checkArgument(port >= FIRST_PORT && port < FIRST_PORT + ports);
+        return (port - FIRST_PORT) * 8;
+    }
 
-        final Map<Character, Byte> rememberedActuatorValue = rememberedActuatorValues
-                .get(hub.getPath());
-        if (rememberedActuatorValue == null) {
-            return (byte) 0x00;
+    private int slot(final Hub hub) {
+        final Integer slot = slots.get(hub.getPath());
+        if (slot != null) {
+            return slot;
         }
 
-        final Byte otherValue = rememberedActuatorValue.get(port);
-        if (otherValue == null) {
-            return (byte) 0x00;
+        synchronized (slots) {
+            Integer newSlot = slots.get(hub.getPath());
+            if (newSlot == null) {
+                newSlot = nextSlot.getAndIncrement();
+                slots.put(hub.getPath(), newSlot);
+            }
+            return newSlot;
         }
+    }
+
+    /**
+     * Read the packed frame of a slot. A frozen slot still holds the correct
+     * values, since it can no longer be updated until the new array is in
+     * place.
+     */
+    private long frame(final int slot) {
+        return values(slot).get(slot) & ~FROZEN;
+    }
 
-        return otherValue;
+    /**
+     * Find the array that holds the specified slot, growing it if needed.
+     * When growing, each slot of the old array is frozen before it is copied,
+     * so that no update can get lost.
+     */
+    private AtomicLongArray values(final int slot) {
+        final AtomicLongArray current = values;
+        if (slot < current.length()) {
+            return current;
+        }
+
+        synchronized (slots) {
+            final AtomicLongArray old = values;
+            if (slot >= old.length()) {
+                final AtomicLongArray grown = new AtomicLongArray(
+                        Math.max(slot + 1, old.length() * 2));
+                for (int i = 0; i < old.length(); i++) {
+                    long frame;
+                    do {
+                        frame = old.get(i);
+                    } while (!old.compareAndSet(i, frame, frame | FROZEN));
+                    grown.set(i, frame);
+                }
+                values = grown;
+            }
+            return values;
+        }
     }
 }
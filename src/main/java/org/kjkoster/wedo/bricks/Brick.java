@@ -117,6 +117,19 @@ public class Brick {
         return new Distance(value);
     }
 
+    /**
+     * Get a distance measurement, using the calibration profile of this
+     * specific sensor. May only be called when the type is a distance sensor.
+     * 
+     * @param calibration
+     *            The calibration profile of the sensor.
+     * @return The measured distance.
+     */
+    public Distance getDistance(final DistanceCalibration calibration) {
+        checkState(type == DISTANCE);
+        return new Distance(value, calibration);
+    }
+
     /**
      * Get a tilt measurement. May only be called when the type is a tilt
      * sensor.
@@ -1,5 +1,7 @@
 package org.kjkoster.wedo.bricks;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 import lombok.Value;
 
 /**
@@ -10,15 +12,31 @@ import lombok.Value;
 @Value
 public class Distance {
     private final int value;
+    private final int cm;
 
     /**
-     * Create a new distance sensor sample.
+     * Create a new distance sensor sample, using the default calibration.
      * 
      * @param value
      *            The raw distance sensor value.
      */
     public Distance(final int value) {
+        this(value, DistanceCalibration.DEFAULT);
+    }
+
+    /**
+     * Create a new distance sensor sample, using the calibration profile of
+     * the sensor that took it.
+     * 
+     * @param value
+     *            The raw distance sensor value.
+     * @param calibration
+     *            The calibration profile of the sensor.
+     */
+    public Distance(final int value, final DistanceCalibration calibration) {
+        checkNotNull(calibration, "null calibration");
         this.value = (value & 0xff);
+        this.cm = calibration.getCm(value);
     }
 
     /**
@@ -27,6 +45,6 @@ public class Distance {
      * @return The distance in centimetres.
      */
     public int getCm() {
-        return (int) ((20.0 / 145.0) * (value - 69));
+        return cm;
     }
 }
@@ -0,0 +1,178 @@
+package org.kjkoster.wedo.bricks;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.Integer.parseInt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A calibration profile for a distance sensor: a lookup table that maps each
+ * of the 256 raw sensor values to a distance in centimetres. Converting a
+ * value is a single array lookup.
+ * <p>
+ * Distance sensors differ enough that one formula does not fit them all. A
+ * profile for a specific sensor is built from a calibration sweep: the raw
+ * values that the sensor reported at a number of known distances. Values
+ * between the measured points are interpolated, values outside them are
+ * clamped to the nearest point.
+ * <p>
+ * A sweep can be kept in a text file, one point per line, with the raw value
+ * and the distance in centimetres separated by whitespace. Empty lines and
+ * lines starting with <code>#</code> are ignored.
+ * <p>
+ * Profiles are immutable and thread safe.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class DistanceCalibration {
+    /**
+     * The calibration that fits a typical sensor, and that is used for
+     * sensors without a profile of their own.
+     */
+    public static final DistanceCalibration DEFAULT;
+    static {
+        final int[] cms = new int[256];
+        for (int value = 0; value < cms.length; value++) {
+            cms[value] = (int) ((20.0 / 145.0) * (value - 69));
+        }
+        DEFAULT = new DistanceCalibration(cms);
+    }
+
+    private final int[] cms;
+
+    private DistanceCalibration(final int[] cms) {
+        super();
+
+        this.cms = cms;
+    }
+
+    /**
+     * Convert a raw sensor value to a distance.
+     * 
+     * @param value
+     *            The raw distance sensor value.
+     * @return The distance in centimetres.
+     */
+    public int getCm(final int value) {
+        return cms[value & 0xff];
+    }
+
+    /**
+     * Build a profile from a calibration sweep.
+     * 
+     * @param values
+     *            The raw values that the sensor reported.
+     * @param cms
+     *            The distances, in centimetres, at which the sensor reported
+     *            those values.
+     * @return The calibration profile.
+     */
+    public static DistanceCalibration fromSweep(final int[] values,
+            final int[] cms) {
+        checkNotNull(values, "null values");
+        checkNotNull(cms, "null cms");
+        checkArgument(values.length == cms.length,
+                "%s values for %s distances", values.length, cms.length);
+        checkArgument(values.length > 0, "empty sweep");
+
+        // average the distances measured for each raw value
+        final long[] sums = new long[256];
+        final int[] counts = new int[256];
+        for (int i = 0; i < values.length; i++) {
+            checkArgument(values[i] >= 0 && values[i] < 256,
+                    "raw value %s out of range", values[i]);
+            sums[values[i]] += cms[i];
+            counts[values[i]]++;
+        }
+
+        final int[] table = new int[256];
+        int previous = -1;
+        for (int value = 0; value < 256; value++) {
+            if (counts[value] == 0) {
+                continue;
+            }
+
+            table[value] = (int) Math
+                    .round((double) sums[value] / counts[value]);
+            if (previous == -1) {
+                for (int v = 0; v < value; v++) {
+                    table[v] = table[value];
+                }
+            } else {
+                interpolate(table, previous, value);
+            }
+            previous = value;
+        }
+        for (int v = previous + 1; v < 256; v++) {
+            table[v] = table[previous];
+        }
+
+        return new DistanceCalibration(table);
+    }
+
+    private static void interpolate(final int[] table, final int from,
+            final int to) {
+        final double step = (double) (table[to] - table[from]) / (to - from);
+        for (int v = from + 1; v < to; v++) {
+            table[v] = (int) Math.round(table[from] + step * (v - from));
+        }
+    }
+
+    /**
+     * Load a calibration sweep from a file and build a profile from it.
+     * 
+     * @param file
+     *            The file to read the sweep from.
+     * @return The calibration profile.
+     * @throws IOException
+     *             When the file could not be read.
+     */
+    public static DistanceCalibration load(final File file)
+            throws IOException {
+        try (final Reader reader = new FileReader(file)) {
+            return load(reader);
+        }
+    }
+
+    /**
+     * Read a calibration sweep and build a profile from it.
+     * 
+     * @param reader
+     *            The reader to read the sweep from.
+     * @return The calibration profile.
+     * @throws IOException
+     *             When the sweep could not be read.
+     */
+    public static DistanceCalibration load(final Reader reader)
+            throws IOException {
+        final List<int[]> points = new ArrayList<>();
+        final BufferedReader lines = new BufferedReader(reader);
+        for (String line = lines.readLine(); line != null; line = lines
+                .readLine()) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            final String[] fields = line.split("\\s+");
+            checkArgument(fields.length == 2,
+                    "expected a raw value and a distance, found '%s'", line);
+            points.add(new int[] { parseInt(fields[0]), parseInt(fields[1]) });
+        }
+
+        final int[] values = new int[points.size()];
+        final int[] cms = new int[points.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = points.get(i)[0];
+            cms[i] = points.get(i)[1];
+        }
+        return fromSweep(values, cms);
+    }
+}
@@ -6,6 +6,9 @@ import static org.kjkoster.wedo.bricks.Tilt.Direction.FORWARD;
 import static org.kjkoster.wedo.bricks.Tilt.Direction.LEFT;
 import static org.kjkoster.wedo.bricks.Tilt.Direction.NO_TILT;
 import static org.kjkoster.wedo.bricks.Tilt.Direction.RIGHT;
+import static org.kjkoster.wedo.bricks.Tilt.Quality.GOOD;
+import static org.kjkoster.wedo.bricks.Tilt.Quality.MOTOR_INTERFERENCE;
+import static org.kjkoster.wedo.bricks.Tilt.Quality.UNKNOWN_VALUE;
 
 import lombok.Value;
 
@@ -17,6 +20,11 @@ import lombok.Value;
  * I chose to lump all of those under <code>NO_TILT</code> rather than calling
  * it flat. The same value comes out when the sensor is placed on its side or
  * straight up.
+ * <p>
+ * Samples are decoded through lookup tables. Use {@link #getQuality()} and
+ * {@link #getDirection(Direction)} in control loops: they never throw, so that
+ * the routine bad samples that come with motor interference do not cost the
+ * creation of an exception.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
@@ -54,33 +62,118 @@ public class Tilt {
         NO_TILT
     }
 
+    /**
+     * How much a sample can be trusted.
+     */
+    public enum Quality {
+        /**
+         * The sample shows a tilt direction.
+         */
+        GOOD,
+
+        /**
+         * The sample was disturbed by a motor on the same hub.
+         */
+        MOTOR_INTERFERENCE,
+
+        /**
+         * The sample lies between the ranges of the tilt directions, usually
+         * because the sensor is moving.
+         */
+        UNKNOWN_VALUE
+    }
+
+    private static final Direction[] DIRECTIONS = new Direction[256];
+    private static final Quality[] QUALITIES = new Quality[256];
+    static {
+        for (int tilt = 0; tilt < 256; tilt++) {
+            QUALITIES[tilt] = tilt < 4 ? MOTOR_INTERFERENCE : UNKNOWN_VALUE;
+        }
+        define(BACKWARD, 10, 40);
+        define(RIGHT, 60, 90);
+        define(NO_TILT, 117, 140);
+        define(FORWARD, 151, 190);
+        define(LEFT, 203, 240);
+    }
+
+    private static void define(final Direction direction, final int above,
+            final int below) {
+        for (int tilt = above + 1; tilt < below; tilt++) {
+            DIRECTIONS[tilt] = direction;
+            QUALITIES[tilt] = GOOD;
+        }
+    }
+
+    /**
+     * Find out whether this sample shows a tilt direction. This method never
+     * throws.
+     * 
+     * @return The quality of this sample.
+     */
+    public Quality getQuality() {
+        return getQuality(value);
+    }
+
+    /**
+     * Find out whether a raw sample shows a tilt direction, without creating a
+     * tilt object for it. This method never throws.
+     * 
+     * @param value
+     *            The raw sample.
+     * @return The quality of the sample.
+     */
+    public static Quality getQuality(final byte value) {
+        return QUALITIES[value & 0xff];
+    }
+
+    /**
+     * Find the tilt direction, without throwing when none can be determined.
+     * 
+     * @param unknown
+     *            The direction to return when the quality of this sample is
+     *            not {@link Quality#GOOD}, may be <code>null</code>.
+     * @return The tilt direction, or <code>unknown</code>.
+     */
+    public Direction getDirection(final Direction unknown) {
+        return getDirection(value, unknown);
+    }
+
+    /**
+     * Find the tilt direction of a raw sample, without creating a tilt object
+     * for it. This method never throws.
+     * 
+     * @param value
+     *            The raw sample.
+     * @param unknown
+     *            The direction to return when the quality of the sample is not
+     *            {@link Quality#GOOD}, may be <code>null</code>.
+     * @return The tilt direction, or <code>unknown</code>.
+     */
+    public static Direction getDirection(final byte value,
+            final Direction unknown) {
+        final Direction direction = DIRECTIONS[value & 0xff];
+        return direction == null ? unknown : direction;
+    }
+
     /**
      * Find the tilt direction, if one can be determined.
      * 
      * @return The tilt direction.
+     * @throws IllegalStateException
+     *             When the sample was disturbed by a motor.
+     * @throws IllegalArgumentException
+     *             When the sample shows no tilt direction.
      */
     public Direction getDirection() {
-        final int tilt = (value & 0xff);
-        if (tilt < 4) {
+        switch (getQuality()) {
+        case MOTOR_INTERFERENCE:
             throw new IllegalStateException(format(
                     "motor interference on tilt sensor (value 0x%02x)", value));
+        case UNKNOWN_VALUE:
+            throw new IllegalArgumentException(
+                    format("unknown tilt value 0x%02x", value));
+        default:
+            return DIRECTIONS[value & 0xff];
         }
-        if (tilt > 10 && tilt < 40) {
-            return BACKWARD;
-        }
-        if (tilt > 60 && tilt < 90) {
-            return RIGHT;
-        }
-        if (tilt > 117 && tilt < 140) {
-            return NO_TILT;
-        }
-        if (tilt > 151 && tilt < 190) {
-            return FORWARD;
-        }
-        if (tilt > 203 && tilt < 240) {
-            return LEFT;
-        }
-        throw new IllegalArgumentException(
-                format("unknown tilt value 0x%02x", value));
     }
 }
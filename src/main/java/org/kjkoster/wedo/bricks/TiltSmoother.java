@@ -0,0 +1,111 @@
+package org.kjkoster.wedo.bricks;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import org.kjkoster.wedo.bricks.Tilt.Direction;
+
+/**
+ * A majority vote over the most recent samples of a single tilt sensor. A tilt
+ * sensor that is moving, or that shares a hub with a running motor, reports
+ * the odd wrong or unreadable sample. Voting over the last few samples gives a
+ * stable direction, at the cost of a few samples of delay.
+ * <p>
+ * Samples that show no direction do not vote. They do push the oldest vote
+ * out, so that a sensor that keeps reporting garbage eventually loses its
+ * direction.
+ * <p>
+ * This class does not allocate after construction. It is not thread safe.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class TiltSmoother {
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final byte NO_VOTE = -1;
+
+    private final byte[] votes;
+    private final int[] tally = new int[DIRECTIONS.length];
+    private int next = 0;
+
+    /**
+     * Set up a new smoother.
+     *
+     * @param samples
+     *            The number of samples to vote over. Use an odd number to
+     *            avoid ties. A single sample means no smoothing at all.
+     */
+    public TiltSmoother(final int samples) {
+        super();
+
+        checkArgument(samples > 0, "need at least one sample, not %s",
+                samples);
+        votes = new byte[samples];
+        reset();
+    }
+
+    /**
+     * Add a sample and find the direction that most of the recent samples
+     * agree on.
+     *
+     * @param tilt
+     *            The new sample.
+     * @return The direction with the most votes, or <code>null</code> if none
+     *         of the recent samples showed a direction. Ties go to the most
+     *         recent of the tied directions.
+     */
+    public Direction add(final Tilt tilt) {
+        return add(tilt.getValue());
+    }
+
+    /**
+     * Add a raw sample and find the direction that most of the recent samples
+     * agree on. Unlike {@link #add(Tilt)}, this does not need a tilt object for
+     * each sample.
+     *
+     * @param value
+     *            The new sample, as read from the sensor.
+     * @return The direction with the most votes, or <code>null</code> if none
+     *         of the recent samples showed a direction.
+     */
+    public Direction add(final byte value) {
+        final Direction direction = Tilt.getDirection(value, null);
+
+        final byte old = votes[next];
+        if (old != NO_VOTE) {
+            tally[old]--;
+        }
+        votes[next] = direction == null ? NO_VOTE : (byte) direction.ordinal();
+        if (direction != null) {
+            tally[direction.ordinal()]++;
+        }
+        next = (next + 1) % votes.length;
+
+        return winner();
+    }
+
+    /**
+     * Forget all samples, for example when the sensor was unplugged.
+     */
+    public void reset() {
+        for (int i = 0; i < votes.length; i++) {
+            votes[i] = NO_VOTE;
+        }
+        for (int i = 0; i < tally.length; i++) {
+            tally[i] = 0;
+        }
+        next = 0;
+    }
+
+    private Direction winner() {
+        int best = 0;
+        byte winner = NO_VOTE;
+        // walk from newest to oldest, so that ties go to the most recent
+        for (int i = 1; i <= votes.length; i++) {
+            final byte vote = votes[(next - i + votes.length) % votes.length];
+            if (vote != NO_VOTE && tally[vote] > best) {
+                best = tally[vote];
+                winner = vote;
+            }
+        }
+        return winner == NO_VOTE ? null : DIRECTIONS[winner];
+    }
+}
@@ -0,0 +1,36 @@
+package org.kjkoster.wedo.systems.sbrick;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.kjkoster.wedo.bricks.Brick.FIRST_PORT;
+import static org.kjkoster.wedo.bricks.Brick.MAX_PORT;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.kjkoster.wedo.bricks.ActuatorBatch;
+
+/**
+ * A batch of actuator values for SBricks, as created by
+ * {@link SBricks#batch()}. Committing the batch sends a single quickdrive
+ * write to each SBrick that the batch touches.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class SBrickBatch extends ActuatorBatch {
+    private final SBricks sBricks;
+
+    SBrickBatch(final SBricks sBricks) {
+        super(MAX_PORT - FIRST_PORT + 1);
+
+        this.sBricks = checkNotNull(sBricks);
+    }
+
+    /**
+     * @see org.kjkoster.wedo.bricks.ActuatorBatch#send(java.lang.String, int,
+     *      byte[])
+     */
+    @Override
+    protected CompletableFuture<Void> send(final String path,
+            final int portMask, final byte[] frame) {
+        return sBricks.send(path, portMask, frame);
+    }
+}
@@ -2,6 +2,9 @@ package org.kjkoster.wedo.systems.sbrick;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.kjkoster.wedo.transport.ble112.BLE112Connections.CONNECT_TIMEOUT_MILLIS;
 import static org.kjkoster.wedo.bricks.Brick.FIRST_PORT;
 import static org.kjkoster.wedo.bricks.Brick.MAX_PORT;
 import static org.kjkoster.wedo.bricks.Brick.Type.LIGHT;
@@ -10,13 +13,28 @@ import static org.kjkoster.wedo.bricks.Brick.Type.MOTOR;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.kjkoster.wedo.bricks.ActuatorBatch;
 import org.kjkoster.wedo.bricks.ActuatorValueMemory;
 import org.kjkoster.wedo.bricks.Brick;
 import org.kjkoster.wedo.bricks.Brick.Type;
 import org.kjkoster.wedo.bricks.Hub;
+import org.kjkoster.wedo.transport.ble112.BLE112Address;
+import org.kjkoster.wedo.transport.ble112.BLE112ConnectionListener;
 import org.kjkoster.wedo.transport.ble112.BLE112Connections;
+import org.kjkoster.wedo.transport.ble112.BLE112Pool;
 import org.thingml.bglib.BGAPI;
 import org.thingml.bglib.BGAPIDefaultListener;
 
@@ -24,21 +42,47 @@ import lombok.NonNull;
 
 /**
  * A class to represent the collection of SBricks and SBrick Pluses.
+ * <p>
+ * The SBricks may be spread over several BLE112 dongles, see
+ * {@link BLE112Pool}. Each dongle has its own writer thread, so that the
+ * writes for the SBricks on one dongle do not wait for the writes on another.
+ * Actuator calls that address many SBricks thus fan out over the dongles in
+ * parallel, while the writes to any one dongle stay in order.
  *
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 public class SBricks extends BGAPIDefaultListener implements AutoCloseable {
     private static final int HANDLE_QUICKDRIVE = 0x001e;
 
+    /**
+     * How long values wait for an SBrick to be connected, before we give up
+     * on them. That is long enough for a connection attempt that is under way
+     * to time out, and for ours to be made. When SBricks take turns, values
+     * may also have to wait for the time slices of other SBricks, so then
+     * they wait longer.
+     */
+    private static final long SEND_TIMEOUT_MILLIS = 2L * CONNECT_TIMEOUT_MILLIS;
+    private static final long SLICED_SEND_TIMEOUT_MILLIS = SECONDS
+            .toMillis(10L);
+
     private final List<Hub> hubs = new ArrayList<>();
 
-    private final BGAPI bgapi;
+    private final BLE112Pool ble112Pool;
 
-    private final BLE112Connections ble112Connections;
+    /**
+     * The writer thread of each dongle.
+     */
+    private final Map<BLE112Connections, ExecutorService> writers;
 
     private final ActuatorValueMemory actuatorValueMemory = new ActuatorValueMemory(
             4);
 
+    /**
+     * The SBricks that have values waiting to be sent, with the future to
+     * complete when they went out.
+     */
+    private final Map<String, CompletableFuture<Void>> unsent = new ConcurrentHashMap<>();
+
     /**
      * Create a new SBrick API that can be used to access all SBricks.
      * 
@@ -54,7 +98,7 @@ public class SBricks extends BGAPIDefaultListener implements AutoCloseable {
      */
     public SBricks(final BGAPI bgapi, final Collection<Hub> hubs)
             throws FileNotFoundException {
-        this(bgapi, new BLE112Connections(bgapi), hubs);
+        this(new BLE112Pool(bgapi), hubs);
     }
 
     /**
@@ -77,30 +121,124 @@ public class SBricks extends BGAPIDefaultListener implements AutoCloseable {
      */
     public SBricks(final BGAPI bgapi, final BLE112Connections ble112Connections,
             final Collection<Hub> hubs) throws FileNotFoundException {
-        super();
+        this(pool(bgapi, ble112Connections), hubs);
+    }
 
+    private static BLE112Pool pool(final BGAPI bgapi,
+            final BLE112Connections ble112Connections) {
         checkNotNull(bgapi, "null bgapi");
-        this.bgapi = bgapi;
-        bgapi.addListener(this);
+        checkNotNull(ble112Connections, "null ble112Connections");
+        checkArgument(ble112Connections.getBGAPI() == bgapi,
+                "ble112Connections does not use this bgapi");
+        return new BLE112Pool(Collections.singletonList(ble112Connections));
+    }
+
+    /**
+     * Create a new SBrick API that spreads the SBricks over several BLE112
+     * dongles.
+     * 
+     * @param ble112Pool
+     *            The dongles to use.
+     * @param hubs
+     *            The definition of all SBrick hubs. Unlike WeDo (for example)
+     *            SBrick's protocol does not have facilities to detect what
+     *            brick is connected on what port of the hub. Instead, we have
+     *            to rely on that information being supplied.
+     * @throws FileNotFoundException
+     *             When the specified device could not be opened.
+     */
+    public SBricks(final BLE112Pool ble112Pool, final Collection<Hub> hubs)
+            throws FileNotFoundException {
+        super();
 
-        checkNotNull(bgapi, "null ble112Connections");
-        this.ble112Connections = ble112Connections;
+        checkNotNull(ble112Pool, "null ble112Pool");
+        this.ble112Pool = ble112Pool;
 
         checkNotNull(hubs, "null hubs");
         this.hubs.addAll(hubs);
 
+        final Map<BLE112Connections, ExecutorService> writers = new HashMap<>();
+        for (final BLE112Connections dongle : ble112Pool.getDongles()) {
+            dongle.getBGAPI().addListener(this);
+            writers.put(dongle, writer(writers.size()));
+        }
+        this.writers = Collections.unmodifiableMap(writers);
+
+        ble112Pool.addConnectionListener(new BLE112ConnectionListener() {
+            @Override
+            public void connected(final BLE112Address ble112Address,
+                    final int connection) {
+                final Hub hub = findHub(ble112Address);
+                final BLE112Connections dongle = ble112Pool
+                        .getConnections(ble112Address);
+                if (hub != null && dongle != null) {
+                    flush(hub, dongle);
+                }
+            }
+        });
         for (final Hub hub : hubs) {
-            ble112Connections.add(hub.getBLE112Address());
+            ble112Pool.add(hub.getBLE112Address());
         }
     }
 
+    private static ExecutorService writer(final int dongle) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable,
+                        "SBrick writer " + dongle);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
     /**
+     * Wait for all SBricks to be connected, so that actuator values go out
+     * straight away.
+     * 
+     * @param timeout
+     *            How long to wait.
+     * @param unit
+     *            The unit of the timeout.
+     * @return A future that completes when all SBricks are connected, or with
+     *         a {@link java.util.concurrent.TimeoutException} if some were not
+     *         connected in time.
+     */
+    public CompletableFuture<Void> awaitAllConnected(final long timeout,
+            final TimeUnit unit) {
+        return ble112Pool.awaitAllConnected(timeout, unit);
+    }
+
+    /**
+     * Hand the writes that are already queued to the dongles, then disconnect
+     * the SBricks. Values for SBricks that never got connected are dropped.
+     * 
      * @see java.lang.AutoCloseable#close()
      */
     @Override
     public void close() throws Exception {
-        ble112Connections.close();
-        bgapi.disconnect();
+        for (final ExecutorService writer : writers.values()) {
+            writer.shutdown();
+        }
+        for (final ExecutorService writer : writers.values()) {
+            writer.awaitTermination(1L, SECONDS);
+        }
+        for (final String path : unsent.keySet()) {
+            final CompletableFuture<Void> sent = unsent.remove(path);
+            if (sent != null) {
+                sent.completeExceptionally(new IllegalStateException(
+                        "closed before " + path + " was connected"));
+            }
+        }
+
+        try {
+            ble112Pool.close();
+        } finally {
+            for (final BLE112Connections dongle : ble112Pool.getDongles()) {
+                dongle.getBGAPI().disconnect();
+            }
+        }
     }
 
     /**
@@ -260,6 +398,59 @@ public class SBricks extends BGAPIDefaultListener implements AutoCloseable {
         actuator('D', null, value);
     }
 
+    /**
+     * Start a batch of actuator values. A batch addresses individual ports on
+     * individual SBricks. When the batch is committed, each SBrick that it
+     * touches gets exactly one quickdrive write, no matter how many of its
+     * ports were set. Ports that the batch does not name keep their current
+     * values. For an SBrick that is not connected, the write goes out as soon
+     * as it is, and the commit completes after that. If the SBrick does not
+     * get connected within a few seconds, the commit fails.
+     * 
+     * @return A new, empty batch.
+     */
+    public ActuatorBatch batch() {
+        return new SBrickBatch(this);
+    }
+
+    /**
+     * Send the frame for one SBrick of a batch. The writes go out on the
+     * writer thread of the SBrick's dongle, so we do not wait for them here.
+     * The future completes when the frame was handed to the dongle. For an
+     * SBrick that is not connected, that is on its next connection.
+     */
+    CompletableFuture<Void> send(final String path, final int portMask,
+            final byte[] frame) {
+        final Hub hub = findHub(path);
+        if (hub == null) {
+            final CompletableFuture<Void> sent = new CompletableFuture<>();
+            sent.completeExceptionally(
+                    new IllegalArgumentException("no SBrick " + path));
+            return sent;
+        }
+
+        actuatorValueMemory.writeFrame(hub, portMask, frame);
+        return drive(hub);
+    }
+
+    private Hub findHub(final String path) {
+        for (final Hub hub : hubs) {
+            if (hub.getPath().equals(path)) {
+                return hub;
+            }
+        }
+        return null;
+    }
+
+    private Hub findHub(final BLE112Address ble112Address) {
+        for (final Hub hub : hubs) {
+            if (hub.getBLE112Address().equals(ble112Address)) {
+                return hub;
+            }
+        }
+        return null;
+    }
+
     /**
      * Set the specified actuator to the provided speed or light intensity. The
      * port and type are used as filter to identify what brick to address.
@@ -278,16 +469,12 @@ public class SBricks extends BGAPIDefaultListener implements AutoCloseable {
                 "invalid port %s", port);
 
         for (final Hub hub : hubs) {
-            final Integer connection = ble112Connections
-                    .getConnection(hub.getBLE112Address());
-            if (connection != null) {
-                actuator(connection, hub, port, type, value);
-            }
+            actuator(hub, port, type, value);
         }
     }
 
-    private void actuator(final int connection, @NonNull final Hub hub,
-            final Character port, final Type type, final byte value) {
+    private void actuator(@NonNull final Hub hub, final Character port,
+            final Type type, final byte value) {
         for (final Brick brick : hub.getBricks()) {
             if ((port == null || port.equals(brick.getPort()))
                     && (type == null || type.equals(brick.getType()))) {
@@ -295,11 +482,140 @@ public class SBricks extends BGAPIDefaultListener implements AutoCloseable {
             }
         }
 
+        drive(hub);
+    }
+
+    /**
+     * Get the values from the actuator memory to an SBrick. If the SBrick is
+     * not connected, the values wait for its next connection. Values that are
+     * set in the meantime are merged in, so only the newest values go out.
+     * 
+     * @return A future that completes when the values went out, or that
+     *         completes exceptionally when the SBrick was not connected in
+     *         time.
+     */
+    private CompletableFuture<Void> drive(final Hub hub) {
+        CompletableFuture<Void> sent = unsent.get(hub.getPath());
+        if (sent == null) {
+            sent = new CompletableFuture<>();
+            final CompletableFuture<Void> raced = unsent
+                    .putIfAbsent(hub.getPath(), sent);
+            if (raced == null) {
+                expire(hub, sent);
+            } else {
+                sent = raced;
+            }
+        }
+
+        deliver(hub);
+        return sent;
+    }
+
+    /**
+     * Give up on waiting values if the SBrick does not get connected in time,
+     * for example because it is switched off, or because all connections are
+     * taken and SBricks do not take turns.
+     */
+    private void expire(final Hub hub, final CompletableFuture<Void> sent) {
+        final BLE112Connections dongle = ble112Pool
+                .getConnections(hub.getBLE112Address());
+        final long timeoutMillis = dongle.getTimeSlice(MILLISECONDS) < 0L
+                ? SEND_TIMEOUT_MILLIS : SLICED_SEND_TIMEOUT_MILLIS;
+        dongle.awaitConnected(hub.getBLE112Address(), timeoutMillis,
+                MILLISECONDS).whenComplete(new BiConsumer<Integer, Throwable>() {
+                    @Override
+                    public void accept(final Integer connection,
+                            final Throwable failure) {
+                        if (failure != null
+                                && unsent.remove(hub.getPath(), sent)) {
+                            sent.completeExceptionally(
+                                    new IllegalStateException(hub.getPath()
+                                            + " not connected", failure));
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Hand the waiting values for an SBrick to its dongle if the SBrick is
+     * connected, or ask for a connection if it is not.
+     */
+    private void deliver(final Hub hub) {
+        final BLE112Connections dongle = ble112Pool
+                .getConnections(hub.getBLE112Address());
+        if (dongle.getConnection(hub.getBLE112Address()) != null) {
+            flush(hub, dongle);
+        } else {
+            dongle.commandPending(hub.getBLE112Address());
+        }
+    }
+
+    /**
+     * Send the waiting values to an SBrick, if there are any. The values are
+     * read from the actuator memory on the dongle's writer thread, so that
+     * values that are set in the meantime still make it into this write.
+     */
+    private void flush(final Hub hub, final BLE112Connections dongle) {
+        final CompletableFuture<Void> sent = unsent.remove(hub.getPath());
+        if (sent == null) {
+            return;
+        }
+
+        try {
+            writers.get(dongle).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(hub, dongle, sent);
+                    } catch (Throwable e) {
+                        sent.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sent.completeExceptionally(e); // we are closing
+        }
+    }
+
+    private void write(final Hub hub, final BLE112Connections dongle,
+            final CompletableFuture<Void> sent) {
+        final Integer connection = dongle
+                .getConnection(hub.getBLE112Address());
+        if (connection == null) {
+            // the SBrick lost its connection since, wait for the next one
+            final CompletableFuture<Void> raced = unsent
+                    .putIfAbsent(hub.getPath(), sent);
+            if (raced == null) {
+                expire(hub, sent);
+            } else {
+                // newer values are waiting, they include ours
+                raced.whenComplete(new BiConsumer<Void, Throwable>() {
+                    @Override
+                    public void accept(final Void result,
+                            final Throwable failure) {
+                        if (failure == null) {
+                            sent.complete(null);
+                        } else {
+                            sent.completeExceptionally(failure);
+                        }
+                    }
+                });
+            }
+            deliver(hub);
+            return;
+        }
+
+        final byte[] data = new byte[4];
+        actuatorValueMemory.readFrame(hub, data); // ports A through D
+        quickdrive(dongle.getBGAPI(), connection, data);
+        dongle.used(hub.getBLE112Address());
+        sent.complete(null);
+    }
+
+    private static void quickdrive(final BGAPI bgapi, final int connection,
+            final byte[] frame) {
         final byte[] data = new byte[5];
-        data[0] = actuatorValueMemory.read(hub, 'A');
-        data[1] = actuatorValueMemory.read(hub, 'B');
-        data[2] = actuatorValueMemory.read(hub, 'C');
-        data[3] = actuatorValueMemory.read(hub, 'D');
+        System.arraycopy(frame, 0, data, 0, 4); // ports A through D
         data[4] = (byte) 0x00; // XXX We do not support the SBrick led yet
 
         bgapi.send_attclient_attribute_write(connection, HANDLE_QUICKDRIVE,
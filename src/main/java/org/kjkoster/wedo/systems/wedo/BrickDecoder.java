@@ -0,0 +1,166 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static java.util.Arrays.fill;
+import static org.kjkoster.wedo.bricks.Brick.Type.DISTANCE;
+import static org.kjkoster.wedo.bricks.Brick.Type.LIGHT;
+import static org.kjkoster.wedo.bricks.Brick.Type.MOTOR;
+import static org.kjkoster.wedo.bricks.Brick.Type.NOT_CONNECTED;
+import static org.kjkoster.wedo.bricks.Brick.Type.TILT;
+import static org.kjkoster.wedo.bricks.Brick.Type.UNKNOWN;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.kjkoster.wedo.bricks.Brick.Type;
+
+/**
+ * Decodes the brick IDs that WeDo hubs report into brick types. IDs are looked
+ * up in a table, rather than switched on.
+ * <p>
+ * Running motors and shining lights report IDs that we cannot tell apart, so
+ * we remember the last type we positively identified on each port. Each hub
+ * gets a dense slot number, and the remembered types are kept in flat arrays
+ * indexed by slot and port. Once a hub has its slot, decoding does not
+ * allocate.
+ * <p>
+ * This class is not thread safe, but it is built so that each hub can be
+ * guarded on its own. Calls to {@link #slot(String)} and
+ * {@link #release(String)} must be serialised. Calls to
+ * {@link #decode(int, int, byte)} and {@link #remember(int, int, Type)} only
+ * have to be serialised per slot. The arrays are allocated in fixed chunks that
+ * never move, so assigning new slots does not disturb decoding for the slots
+ * that are in use.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class BrickDecoder {
+    /**
+     * The number of ports on a WeDo hub.
+     */
+    static final int PORTS = 2;
+
+    private static final Type[] TYPES = Type.values();
+    private static final Type[] ID_TYPES = new Type[256];
+    static {
+        fill(ID_TYPES, UNKNOWN);
+        define(NOT_CONNECTED, 0xe6, 0xe7);
+        define(MOTOR, 0xee, 0xf1);
+        define(LIGHT, 0xcb, 0xcd);
+        define(DISTANCE, 0xb0, 0xb3);
+        define(TILT, 0x26, 0x27);
+    }
+
+    private static final byte NO_TYPE = -1;
+
+    private static final int CHUNK_SHIFT = 3;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private int[] freeSlots = new int[4];
+    private int freeSlotCount = 0;
+    private int nextSlot = 0;
+
+    /**
+     * The type we last identified on each port, as type ordinal, or
+     * <code>NO_TYPE</code>. Each chunk holds the ports of
+     * <code>CHUNK_SLOTS</code> slots.
+     */
+    private volatile byte[][] rememberedTypes = new byte[0][];
+
+    private static void define(final Type type, final int firstId,
+            final int lastId) {
+        for (int id = firstId; id <= lastId; id++) {
+            ID_TYPES[id] = type;
+        }
+    }
+
+    /**
+     * Find the slot of a hub, assigning a new one if needed.
+     *
+     * @param path
+     *            The path of the hub.
+     * @return The hub's slot.
+     */
+    int slot(final String path) {
+        final Integer slot = slots.get(path);
+        if (slot != null) {
+            return slot;
+        }
+
+        final int newSlot = freeSlotCount > 0 ? freeSlots[--freeSlotCount]
+                : nextSlot++;
+        final int chunk = newSlot >>> CHUNK_SHIFT;
+        if (chunk >= rememberedTypes.length) {
+            final byte[][] grown = Arrays.copyOf(rememberedTypes, chunk + 1);
+            grown[chunk] = new byte[CHUNK_SLOTS * PORTS];
+            fill(grown[chunk], NO_TYPE);
+            rememberedTypes = grown;
+        }
+        slots.put(path, newSlot);
+        return newSlot;
+    }
+
+    /**
+     * Forget a hub, freeing its slot for reuse.
+     *
+     * @param path
+     *            The path of the hub.
+     */
+    void release(final String path) {
+        final Integer slot = slots.remove(path);
+        if (slot == null) {
+            return;
+        }
+
+        final int offset = (slot & (CHUNK_SLOTS - 1)) * PORTS;
+        fill(rememberedTypes[slot >>> CHUNK_SHIFT], offset, offset + PORTS,
+                NO_TYPE);
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+    }
+
+    /**
+     * Remember the type of brick on a port, as if we had just identified it.
+     * This is used to restore what we knew about a hub that was re-plugged.
+     *
+     * @param slot
+     *            The hub's slot.
+     * @param port
+     *            The index of the port, 0 for A and 1 for B.
+     * @param type
+     *            The brick type on that port.
+     */
+    void remember(final int slot, final int port, final Type type) {
+        rememberedTypes[slot >>> CHUNK_SHIFT][(slot & (CHUNK_SLOTS - 1))
+                * PORTS + port] = type == NOT_CONNECTED || type == UNKNOWN
+                        ? NO_TYPE : (byte) type.ordinal();
+    }
+
+    /**
+     * Decode the brick ID that a hub reported for one of its ports.
+     *
+     * @param slot
+     *            The hub's slot.
+     * @param port
+     *            The index of the port, 0 for A and 1 for B.
+     * @param id
+     *            The brick ID that was reported.
+     * @return The brick type on that port.
+     */
+    Type decode(final int slot, final int port, final byte id) {
+        final byte[] chunk = rememberedTypes[slot >>> CHUNK_SHIFT];
+        final int index = (slot & (CHUNK_SLOTS - 1)) * PORTS + port;
+        final Type type = ID_TYPES[id & 0xff];
+        if (type == UNKNOWN) {
+            final byte remembered = chunk[index];
+            return remembered == NO_TYPE ? UNKNOWN : TYPES[remembered];
+        }
+
+        chunk[index] = type == NOT_CONNECTED ? NO_TYPE
+                : (byte) type.ordinal();
+        return type;
+    }
+}
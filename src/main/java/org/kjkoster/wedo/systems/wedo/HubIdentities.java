@@ -0,0 +1,268 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.kjkoster.wedo.bricks.Brick.Type;
+
+/**
+ * Stable, logical identities for WeDo hubs. WeDo hubs carry no identifying
+ * information, and the USB path of a hub changes when it is plugged into
+ * another port. Anything we remember by path is lost on a re-plug, or worse,
+ * applied to whichever hub ends up on the old path.
+ * <p>
+ * This class gives each hub a logical ID that survives re-plugs. When a hub
+ * is plugged in, we look for the identity it had before, in this order:
+ * <ol>
+ * <li>An ID that the user pinned to the hub's path.</li>
+ * <li>The absent identity that was last seen on the same path.</li>
+ * <li>Once the first packet is in, the absent identity with the same bricks
+ * on its ports. When several identities have the same bricks, the one that
+ * was first attached wins, so that a set of identical hubs gets its IDs back
+ * in the original order.</li>
+ * </ol>
+ * A hub that matches none of these gets a new ID. Each identity remembers the
+ * port types and actuator values of its hub when it was unplugged, so that
+ * they can be restored when it comes back.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class HubIdentities {
+    /**
+     * A logical hub, present or not.
+     */
+    static class Identity {
+        private final String id;
+        private final long attachOrder;
+
+        private String path; // null while the hub is absent
+        private String lastPath;
+        private Type typeA = null; // null until the first packet
+        private Type typeB = null;
+        private byte valueA = 0x00;
+        private byte valueB = 0x00;
+        private boolean returning = false;
+
+        private Identity(final String id, final long attachOrder) {
+            this.id = id;
+            this.attachOrder = attachOrder;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        boolean isFingerprinted() {
+            return typeA != null;
+        }
+
+        Type getTypeA() {
+            return typeA;
+        }
+
+        Type getTypeB() {
+            return typeB;
+        }
+
+        byte getValueA() {
+            return valueA;
+        }
+
+        byte getValueB() {
+            return valueB;
+        }
+
+        /**
+         * Find out if the hub just came back, and that its state should be
+         * restored. This returns <code>true</code> only once per re-plug.
+         */
+        boolean takeReturning() {
+            final boolean wasReturning = returning;
+            returning = false;
+            return wasReturning;
+        }
+    }
+
+    private final Map<String, Identity> byId = new LinkedHashMap<>();
+    private final Map<String, Identity> byPath = new HashMap<>();
+    private final Map<String, String> pins = new HashMap<>();
+    private long attachCount = 0L;
+
+    /**
+     * Pin a logical ID to a USB path. Whatever hub is plugged into that path
+     * gets this ID, and the state that goes with it.
+     *
+     * @param path
+     *            The path to pin.
+     * @param id
+     *            The logical ID to give the hub on that path.
+     */
+    void pin(final String path, final String id) {
+        checkNotNull(path, "null path");
+        checkNotNull(id, "null id");
+        final Identity identity = byId.get(id);
+        checkArgument(
+                identity == null || identity.path == null
+                        || identity.path.equals(path),
+                "hub %s is present on %s", id, identity == null ? null
+                        : identity.path);
+
+        pins.put(path, id);
+    }
+
+    /**
+     * A hub was plugged in. Find its identity if we can tell without reading
+     * it.
+     *
+     * @param path
+     *            The path of the hub.
+     * @return The identity of the hub, or <code>null</code> if we have to see
+     *         its bricks first.
+     */
+    Identity attached(final String path) {
+        final Identity present = byPath.get(path);
+        if (present != null) {
+            return present;
+        }
+
+        Identity identity = null;
+        final String pinned = pins.get(path);
+        if (pinned != null) {
+            identity = byId.get(pinned);
+            if (identity == null) {
+                identity = new Identity(pinned, attachCount++);
+                byId.put(pinned, identity);
+            }
+        } else {
+            for (final Identity absent : byId.values()) {
+                if (absent.path == null && path.equals(absent.lastPath)
+                        && !pins.containsValue(absent.id)) {
+                    identity = absent;
+                    break;
+                }
+            }
+        }
+
+        if (identity != null) {
+            place(identity, path);
+        }
+        return identity;
+    }
+
+    /**
+     * Identify the hub that sent the first packet from a path, matching it
+     * against the absent identities if we did not know it yet.
+     *
+     * @param path
+     *            The path of the hub.
+     * @param typeA
+     *            The type of brick on port A.
+     * @param typeB
+     *            The type of brick on port B.
+     * @return The identity of the hub.
+     */
+    Identity identify(final String path, final Type typeA, final Type typeB) {
+        Identity identity = byPath.get(path);
+        if (identity == null) {
+            identity = attached(path);
+        }
+        if (identity == null) {
+            for (final Identity absent : byId.values()) {
+                if (absent.path == null && absent.typeA == typeA
+                        && absent.typeB == typeB
+                        && !pins.containsValue(absent.id)
+                        && (identity == null
+                                || absent.attachOrder < identity.attachOrder)) {
+                    identity = absent;
+                }
+            }
+        }
+        if (identity == null) {
+            final long attachOrder = attachCount++;
+            String id;
+            for (long n = attachOrder + 1L;; n++) {
+                id = "hub-" + n;
+                if (!byId.containsKey(id) && !pins.containsValue(id)) {
+                    break;
+                }
+            }
+            identity = new Identity(id, attachOrder);
+            byId.put(id, identity);
+        }
+        if (identity.path == null) {
+            place(identity, path);
+        }
+
+        identity.typeA = typeA;
+        identity.typeB = typeB;
+        return identity;
+    }
+
+    /**
+     * A hub was unplugged. Its identity remembers the bricks and actuator
+     * values it had, so that it can be recognised and restored when the hub
+     * comes back.
+     *
+     * @param path
+     *            The path of the hub.
+     * @param typeA
+     *            The type of brick on port A.
+     * @param typeB
+     *            The type of brick on port B.
+     * @param valueA
+     *            The value of the actuator on port A.
+     * @param valueB
+     *            The value of the actuator on port B.
+     */
+    void detached(final String path, final Type typeA, final Type typeB,
+            final byte valueA, final byte valueB) {
+        final Identity identity = byPath.remove(path);
+        if (identity != null) {
+            identity.path = null;
+            if (identity.typeA != null) {
+                identity.typeA = typeA;
+                identity.typeB = typeB;
+            }
+            identity.valueA = valueA;
+            identity.valueB = valueB;
+        }
+    }
+
+    /**
+     * Find the logical ID of the hub on a path.
+     *
+     * @param path
+     *            The path to look up.
+     * @return The logical ID, or <code>null</code> if the hub was not
+     *         identified yet.
+     */
+    String getId(final String path) {
+        final Identity identity = byPath.get(path);
+        return identity == null ? null : identity.id;
+    }
+
+    /**
+     * Find where the hub with a logical ID is plugged in.
+     *
+     * @param id
+     *            The logical ID to look up.
+     * @return The path of the hub, or <code>null</code> if it is absent.
+     */
+    String getPath(final String id) {
+        final Identity identity = byId.get(id);
+        return identity == null ? null : identity.path;
+    }
+
+    private void place(final Identity identity, final String path) {
+        identity.returning = identity.lastPath != null;
+        identity.path = path;
+        identity.lastPath = path;
+        byPath.put(path, identity);
+    }
+}
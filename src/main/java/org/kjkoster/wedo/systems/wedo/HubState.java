@@ -0,0 +1,41 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static org.kjkoster.wedo.bricks.Brick.Type.UNKNOWN;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.kjkoster.wedo.bricks.Brick.Type;
+import org.kjkoster.wedo.systems.wedo.HubIdentities.Identity;
+
+/**
+ * What {@link WeDoBricks} keeps for a single hub: the hub's decoder slot, its
+ * scratch buffers and what we know about its identity. Each hub's state has
+ * its own lock, so that a slow write to one hub does not hold up reading or
+ * writing any of the others.
+ * <p>
+ * All fields except the path and the slot are guarded by the lock. When a hub
+ * is unplugged, its state is released. Code that finds a released state after
+ * taking the lock should look up the hub's state again.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class HubState {
+    final ReentrantLock lock = new ReentrantLock();
+    final String path;
+    final int slot;
+
+    final byte[] frame = new byte[2];
+    final byte[] writeBuffer = new byte[9];
+
+    Identity identity = null; // null until identified
+    Type typeA = UNKNOWN;
+    Type typeB = UNKNOWN;
+    boolean released = false;
+
+    HubState(final String path, final int slot) {
+        super();
+
+        this.path = path;
+        this.slot = slot;
+    }
+}
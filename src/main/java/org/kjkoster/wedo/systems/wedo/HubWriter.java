@@ -0,0 +1,185 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.System.err;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.kjkoster.wedo.transport.usb.HubHandle;
+import org.kjkoster.wedo.transport.usb.Usb;
+
+/**
+ * A background writer for a single WeDo hub. Frames are not queued: the writer
+ * has a single-slot mailbox that holds the newest values for ports A and B.
+ * When a new frame is submitted before the previous one went out, the previous
+ * one is simply overwritten. That way a fast control loop never waits for the
+ * USB bus and the hub always gets the latest values. Frames that the hub
+ * already has may be suppressed altogether, see
+ * {@link WeDoBricks#setWriteSuppression(boolean)}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class HubWriter implements Runnable, AutoCloseable {
+    private final Usb usb;
+    private final WeDoBricks weDoBricks;
+    private final Thread thread;
+
+    // the mailbox, guarded by this
+    private boolean running = true;
+    private boolean pending = false;
+    private boolean writing = false;
+    private HubHandle hubHandle;
+    private byte valueA;
+    private byte valueB;
+    private List<CompletableFuture<Void>> waitingForPending = new ArrayList<>();
+    private List<CompletableFuture<Void>> waitingForWrite = new ArrayList<>();
+
+    /**
+     * Start a new writer thread for the specified hub.
+     *
+     * @param usb
+     *            The USB subsystem to write to.
+     * @param weDoBricks
+     *            The WeDo bricks that decide which frames to suppress.
+     * @param hubHandle
+     *            The hub to write to.
+     */
+    HubWriter(final Usb usb, final WeDoBricks weDoBricks,
+            final HubHandle hubHandle) {
+        this.usb = checkNotNull(usb);
+        this.weDoBricks = checkNotNull(weDoBricks);
+        this.hubHandle = checkNotNull(hubHandle);
+
+        thread = new Thread(this, "WeDo writer " + hubHandle);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Put a frame in the mailbox, replacing any frame that was not written
+     * yet. This method does not wait for the frame to be written.
+     *
+     * @param hubHandle
+     *            The hub to write to. Hubs are re-enumerated now and then, so
+     *            we keep the most recent handle.
+     * @param valueA
+     *            The value for port A.
+     * @param valueB
+     *            The value for port B.
+     */
+    synchronized void submit(final HubHandle hubHandle, final byte valueA,
+            final byte valueB) {
+        this.hubHandle = checkNotNull(hubHandle);
+        this.valueA = valueA;
+        this.valueB = valueB;
+        pending = true;
+        notifyAll();
+    }
+
+    /**
+     * Find out when the frames that were submitted so far have been written.
+     *
+     * @return A future that completes when the most recent frame was written,
+     *         or that completes exceptionally when writing it failed.
+     */
+    synchronized CompletableFuture<Void> flush() {
+        final CompletableFuture<Void> future;
+        if (pending) {
+            future = new CompletableFuture<>();
+            waitingForPending.add(future);
+        } else if (writing) {
+            future = new CompletableFuture<>();
+            waitingForWrite.add(future);
+        } else {
+            future = completedFuture(null);
+        }
+        return future;
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        final byte[] buffer = new byte[9];
+        buffer[1] = 0x40;
+
+        for (;;) {
+            final HubHandle frameHubHandle;
+            synchronized (this) {
+                while (running && !pending) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (!pending) {
+                    return;
+                }
+
+                frameHubHandle = hubHandle;
+                buffer[2] = valueA;
+                buffer[3] = valueB;
+                pending = false;
+                writing = true;
+
+                final List<CompletableFuture<Void>> swap = waitingForWrite;
+                waitingForWrite = waitingForPending;
+                waitingForPending = swap;
+            }
+
+            Exception failure = null;
+            try {
+                if (weDoBricks.shouldWrite(frameHubHandle.getPath(), buffer[2],
+                        buffer[3])) {
+                    usb.write(frameHubHandle, buffer);
+                    weDoBricks.written(frameHubHandle.getPath(), buffer[2],
+                            buffer[3]);
+                }
+            } catch (Exception e) {
+                weDoBricks.writeFailed(frameHubHandle.getPath());
+                err.printf("unexpected exception writing to %s: %s",
+                        frameHubHandle, e.getMessage());
+                failure = e;
+            }
+
+            final List<CompletableFuture<Void>> written;
+            synchronized (this) {
+                writing = false;
+                if (waitingForWrite.isEmpty()) {
+                    continue;
+                }
+                written = new ArrayList<>(waitingForWrite);
+                waitingForWrite.clear();
+            }
+            for (final CompletableFuture<Void> future : written) {
+                if (failure == null) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the writer thread and wait for it to finish. A frame that is still
+     * in the mailbox is written first.
+     *
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        thread.join();
+    }
+}
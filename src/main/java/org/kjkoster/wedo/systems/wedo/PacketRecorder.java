@@ -0,0 +1,271 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.kjkoster.wedo.transport.usb.HubHandle;
+
+/**
+ * Records the raw packets that {@link WeDoBricks} reads, so that a session with
+ * the bricks can be replayed and analysed later, for example to tune a control
+ * loop or a calibration without the hardware at hand. Use
+ * {@link PacketRecording} to read the recording back.
+ * <p>
+ * Like the tracer, the recorder keeps its cost out of the read loop. Recording
+ * a packet only fills in a record in a preallocated ring buffer, which takes
+ * well under a microsecond. A background thread encodes the records and
+ * appends them to the file. Recording never blocks and never allocates. When
+ * the ring buffer is full, the packet is dropped and counted.
+ * <p>
+ * The file is append-only, so that several sessions can go into the same
+ * file. It starts with a magic number, followed by the sessions. Each session
+ * starts with a record that ties the monotonic clock to the wall clock. Hubs
+ * are written out by path once per session, and referred to by number after
+ * that. For each packet, we store the time since the previous packet and only
+ * those of the four sensor bytes that changed since the previous packet of the
+ * same hub. A sensor that does not change costs four bytes per packet.
+ * <p>
+ * This class is thread safe. Any number of threads may record at the same
+ * time.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class PacketRecorder implements Runnable, AutoCloseable {
+    static final byte[] MAGIC = { 'W', 'e', 'D', 'o', 'R', 'e', 'c', 1 };
+
+    // the kinds of records, in the low nibble of each record's tag
+    static final int SESSION = 0;
+    static final int HUB = 1;
+    static final int PACKET = 2;
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final long IDLE_PARK_NANOS = MILLISECONDS.toNanos(1L);
+
+    private final File file;
+    private final int mask;
+
+    // the records, one slot per array index
+    private final AtomicLongArray sequences;
+    private final HubHandle[] hubHandles;
+    private final long[] receivedNanos;
+    private final int[] sensorBytes;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // only used by the writer thread
+    private final Map<HubHandle, Integer> hubNumbers = new HashMap<>();
+    private int[] previousBytes = new int[8];
+    private long previousNanos;
+    private final byte[] scratch = new byte[32];
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile IOException failure = null;
+
+    /**
+     * Start recording to a file, with a buffer for 8192 packets. If the file
+     * exists, the new session is appended to it.
+     *
+     * @param file
+     *            The file to record to.
+     */
+    public PacketRecorder(final File file) {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Start recording to a file. If the file exists, the new session is
+     * appended to it.
+     *
+     * @param file
+     *            The file to record to.
+     * @param capacity
+     *            The number of packets to buffer, a power of two.
+     */
+    public PacketRecorder(final File file, final int capacity) {
+        super();
+
+        checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+                "capacity must be a power of two, was %s", capacity);
+        this.file = checkNotNull(file);
+        mask = capacity - 1;
+
+        sequences = new AtomicLongArray(capacity);
+        hubHandles = new HubHandle[capacity];
+        receivedNanos = new long[capacity];
+        sensorBytes = new int[capacity];
+
+        thread = new Thread(this, "packet recorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Record a packet. This method never blocks. If the ring buffer is full,
+     * the packet is dropped.
+     *
+     * @param hubHandle
+     *            The hub that sent the packet.
+     * @param nanos
+     *            When the packet was received, from {@link System#nanoTime()}.
+     * @param packet
+     *            The packet, as read from the hub.
+     */
+    public void record(final HubHandle hubHandle, final long nanos,
+            final byte[] packet) {
+        long index;
+        do {
+            index = claimed.get();
+            if (index - consumed.get() > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(index, index + 1L));
+
+        final int slot = (int) index & mask;
+        hubHandles[slot] = hubHandle;
+        receivedNanos[slot] = nanos;
+        // value A, id A, value B and id B
+        sensorBytes[slot] = (packet[2] & 0xff) | (packet[3] & 0xff) << 8
+                | (packet[4] & 0xff) << 16 | (packet[5] & 0xff) << 24;
+        sequences.lazySet(slot, index + 1L); // publishes the record
+    }
+
+    /**
+     * Count the packets that were dropped because the ring buffer was full.
+     *
+     * @return The number of dropped packets.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Count the packets that were taken from the ring buffer and written.
+     *
+     * @return The number of recorded packets.
+     */
+    public long getRecorded() {
+        return consumed.get();
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        try (final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            if (file.length() == 0L) {
+                out.write(MAGIC);
+            }
+            previousNanos = nanoTime();
+            out.writeByte(SESSION);
+            out.writeLong(currentTimeMillis());
+            out.writeLong(previousNanos);
+
+            long index = consumed.get();
+            while (running || index < claimed.get()) {
+                final int slot = (int) index & mask;
+                if (sequences.get(slot) != index + 1L) {
+                    out.flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                final HubHandle hubHandle = hubHandles[slot];
+                final long nanos = receivedNanos[slot];
+                final int bytes = sensorBytes[slot];
+                hubHandles[slot] = null;
+                consumed.lazySet(++index);
+
+                write(out, hubHandle, nanos, bytes);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void write(final DataOutputStream out, final HubHandle hubHandle,
+            final long nanos, final int bytes) throws IOException {
+        Integer hubNumber = hubNumbers.get(hubHandle);
+        if (hubNumber == null) {
+            hubNumber = hubNumbers.size();
+            hubNumbers.put(hubHandle, hubNumber);
+            if (hubNumber == previousBytes.length) {
+                previousBytes = Arrays.copyOf(previousBytes, hubNumber * 2);
+            }
+            out.writeByte(HUB);
+            out.writeUTF(hubHandle.getPath());
+            out.writeUTF(hubHandle.getProductName());
+        }
+
+        final int previous = previousBytes[hubNumber];
+        previousBytes[hubNumber] = bytes;
+        int changed = 0;
+        for (int i = 0; i < 4; i++) {
+            if ((byte) (previous >>> (i * 8)) != (byte) (bytes >>> (i * 8))) {
+                changed |= 1 << i;
+            }
+        }
+
+        int length = 0;
+        scratch[length++] = (byte) (changed << 4 | PACKET);
+        length = writeVarint(scratch, length, hubNumber);
+        // packets from different threads may arrive slightly out of order
+        final long delta = nanos - previousNanos;
+        previousNanos = nanos;
+        length = writeVarint(scratch, length, (delta << 1) ^ (delta >> 63));
+        for (int i = 0; i < 4; i++) {
+            if ((changed & (1 << i)) != 0) {
+                scratch[length++] = (byte) (bytes >>> (i * 8));
+            }
+        }
+        out.write(scratch, 0, length);
+    }
+
+    private static int writeVarint(final byte[] buffer, final int offset,
+            final long value) {
+        int length = offset;
+        long remaining = value;
+        while ((remaining & ~0x7fL) != 0L) {
+            buffer[length++] = (byte) (remaining & 0x7f | 0x80);
+            remaining >>>= 7;
+        }
+        buffer[length++] = (byte) remaining;
+        return length;
+    }
+
+    /**
+     * Write the remaining packets, close the file and stop the writer thread.
+     *
+     * @throws IOException
+     *             When the recording could not be written.
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() throws IOException, InterruptedException {
+        running = false;
+        thread.join();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
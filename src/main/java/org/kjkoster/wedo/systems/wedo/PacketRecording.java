@@ -0,0 +1,205 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.kjkoster.wedo.systems.wedo.PacketRecorder.HUB;
+import static org.kjkoster.wedo.systems.wedo.PacketRecorder.MAGIC;
+import static org.kjkoster.wedo.systems.wedo.PacketRecorder.PACKET;
+import static org.kjkoster.wedo.systems.wedo.PacketRecorder.SESSION;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.kjkoster.wedo.bricks.Brick;
+import org.kjkoster.wedo.bricks.Brick.Type;
+import org.kjkoster.wedo.bricks.Hub;
+
+/**
+ * Reads back a recording that was made with {@link PacketRecorder}. The
+ * recording is streamed, one packet at a time, as hub snapshots. The brick
+ * types are decoded the same way {@link WeDoBricks} decodes them, so running
+ * motors and shining lights are recognised for what they are.
+ * <p>
+ * A recording that was cut short, for example because the program that made
+ * it crashed, simply ends at the last complete packet.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class PacketRecording implements AutoCloseable {
+    private final DataInputStream in;
+    private final BrickDecoder brickDecoder = new BrickDecoder();
+
+    // the hubs of the current session, by hub number
+    private final List<String> paths = new ArrayList<>();
+    private final List<String> productNames = new ArrayList<>();
+    private int[] slots = new int[8];
+    private int[] previousBytes = new int[8];
+
+    private long sessionMillis;
+    private long sessionNanos;
+    private long nanos;
+
+    /**
+     * Open a recording file.
+     *
+     * @param file
+     *            The file to read.
+     * @throws IOException
+     *             When the file could not be opened, or is not a recording.
+     */
+    public PacketRecording(final File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    /**
+     * Read a recording from a stream.
+     *
+     * @param in
+     *            The stream to read. It is closed when this recording is
+     *            closed.
+     * @throws IOException
+     *             When the stream could not be read, or is not a recording.
+     */
+    public PacketRecording(final InputStream in) throws IOException {
+        super();
+
+        this.in = new DataInputStream(
+                new BufferedInputStream(checkNotNull(in)));
+        final byte[] magic = new byte[MAGIC.length];
+        try {
+            this.in.readFully(magic);
+        } catch (EOFException e) {
+            throw new IOException("not a packet recording, too short", e);
+        }
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a packet recording, bad magic number");
+        }
+    }
+
+    /**
+     * Read the next packet from the recording.
+     *
+     * @return The hub as the packet showed it, or <code>null</code> at the
+     *         end of the recording.
+     * @throws IOException
+     *             When the recording could not be read or is damaged.
+     */
+    public Hub read() throws IOException {
+        try {
+            for (;;) {
+                final int tag = in.read();
+                if (tag < 0) {
+                    return null;
+                }
+
+                switch (tag & 0x0f) {
+                case SESSION:
+                    sessionMillis = in.readLong();
+                    sessionNanos = in.readLong();
+                    nanos = sessionNanos;
+                    paths.clear();
+                    productNames.clear();
+                    break;
+                case HUB:
+                    hub(in.readUTF(), in.readUTF());
+                    break;
+                case PACKET:
+                    return packet(tag >>> 4);
+                default:
+                    throw new IOException("damaged recording, unknown tag "
+                            + tag);
+                }
+            }
+        } catch (EOFException e) {
+            return null; // the recording was cut short
+        }
+    }
+
+    /**
+     * Find when the packet that was read last was received, on the clock of
+     * the machine that made the recording.
+     *
+     * @return When the packet was received, from
+     *         {@link System#nanoTime()}.
+     */
+    public long getReceivedNanos() {
+        return nanos;
+    }
+
+    /**
+     * Find when the packet that was read last was received, in wall clock
+     * time.
+     *
+     * @return When the packet was received, in milliseconds since the epoch.
+     */
+    public long getReceivedMillis() {
+        return sessionMillis + (nanos - sessionNanos) / 1_000_000L;
+    }
+
+    private void hub(final String path, final String productName) {
+        final int hubNumber = paths.size();
+        paths.add(path);
+        productNames.add(productName);
+        if (hubNumber == slots.length) {
+            slots = Arrays.copyOf(slots, hubNumber * 2);
+            previousBytes = Arrays.copyOf(previousBytes, hubNumber * 2);
+        }
+        slots[hubNumber] = brickDecoder.slot(path);
+        previousBytes[hubNumber] = 0;
+    }
+
+    private Hub packet(final int changed) throws IOException {
+        final int hubNumber = (int) readVarint();
+        if (hubNumber >= paths.size()) {
+            throw new IOException("damaged recording, unknown hub "
+                    + hubNumber);
+        }
+        final long zigzag = readVarint();
+        nanos += (zigzag >>> 1) ^ -(zigzag & 1L);
+
+        int bytes = previousBytes[hubNumber];
+        for (int i = 0; i < 4; i++) {
+            if ((changed & (1 << i)) != 0) {
+                bytes = bytes & ~(0xff << (i * 8))
+                        | in.readUnsignedByte() << (i * 8);
+            }
+        }
+        previousBytes[hubNumber] = bytes;
+
+        final int slot = slots[hubNumber];
+        final Type typeA = brickDecoder.decode(slot, 0, (byte) (bytes >>> 8));
+        final Type typeB = brickDecoder.decode(slot, 1, (byte) (bytes >>> 24));
+        return new Hub(paths.get(hubNumber), productNames.get(hubNumber),
+                new Brick[] { new Brick('A', typeA, (byte) bytes),
+                        new Brick('B', typeB, (byte) (bytes >>> 16)) });
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7fL) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("damaged recording, varint too long");
+    }
+
+    /**
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
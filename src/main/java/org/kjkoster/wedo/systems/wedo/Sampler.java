@@ -0,0 +1,165 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.System.err;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static java.util.concurrent.locks.LockSupport.unpark;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The single sampler behind all subscriptions. The sampler reads all hubs
+ * whenever one or more subscriptions are due, and hands the snapshot to each
+ * subscription that is due or nearly due. The sampler thread only runs while
+ * there are subscriptions.
+ * <p>
+ * A failing read is reported and skipped, so that it does not stop the
+ * samples. Should the sampler thread die anyway, the next subscription starts
+ * a new one.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class Sampler implements Runnable {
+    private final WeDoBricks weDoBricks;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final WeDoSnapshot snapshot = new WeDoSnapshot();
+
+    private Thread thread = null; // guarded by this
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new sampler.
+     *
+     * @param weDoBricks
+     *            The bricks to read.
+     */
+    Sampler(final WeDoBricks weDoBricks) {
+        this.weDoBricks = checkNotNull(weDoBricks);
+    }
+
+    /**
+     * Add a subscription, starting the sampler thread if needed.
+     */
+    synchronized void add(final Subscription subscription) {
+        if (closed) {
+            throw new IllegalStateException("sampler was closed");
+        }
+
+        subscriptions.add(subscription);
+        if (thread == null) {
+            thread = new Thread(this, "WeDo sampler");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            // the new subscription may be due sooner than the sampler thinks
+            unpark(thread);
+        }
+    }
+
+    synchronized void remove(final Subscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Tell the subscriptions that the hub on a path was unplugged or plugged
+     * in. This may be called from any thread.
+     */
+    void forget(final String path) {
+        for (final Subscription subscription : subscriptions) {
+            subscription.forget(path);
+        }
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        try {
+            for (;;) {
+                synchronized (this) {
+                    if (closed || subscriptions.isEmpty()) {
+                        thread = null;
+                        return;
+                    }
+                }
+
+                long now = nanoTime();
+                boolean due = false;
+                for (final Subscription subscription : subscriptions) {
+                    due |= subscription.isDue(now);
+                }
+
+                if (due) {
+                    sample();
+                    now = nanoTime();
+                }
+
+                long nextDueNanos = Long.MAX_VALUE;
+                for (final Subscription subscription : subscriptions) {
+                    nextDueNanos = Math.min(nextDueNanos,
+                            subscription.getDueNanos() - now);
+                }
+                if (nextDueNanos > 0L) {
+                    parkNanos(this, nextDueNanos);
+                }
+            }
+        } finally {
+            // if we died, let the next subscription start a new thread
+            synchronized (this) {
+                if (thread == Thread.currentThread()) {
+                    thread = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the hubs and deliver the snapshot to the subscriptions that are
+     * due. The subscriptions are moved on to their next period even when the
+     * read fails, so that a failing read does not make us spin.
+     */
+    private void sample() {
+        boolean read;
+        try {
+            weDoBricks.readAll(snapshot);
+            read = true;
+        } catch (RuntimeException e) {
+            err.printf("unexpected exception sampling the hubs: %s\n",
+                    e.getMessage());
+            read = false;
+        }
+
+        final long now = nanoTime();
+        for (final Subscription subscription : subscriptions) {
+            if (subscription.isDueSoon(now)) {
+                if (read) {
+                    subscription.deliver(snapshot);
+                }
+                subscription.advance(now);
+            }
+        }
+    }
+
+    /**
+     * Stop the sampler thread and drop all subscriptions. When called from a
+     * listener, on the sampler thread itself, we do not wait for the thread to
+     * finish. It stops when the listener returns.
+     */
+    void close() throws InterruptedException {
+        final Thread stopping;
+        synchronized (this) {
+            closed = true;
+            subscriptions.clear();
+            stopping = thread;
+        }
+        if (stopping != null) {
+            unpark(stopping);
+            if (stopping != Thread.currentThread()) {
+                stopping.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import org.kjkoster.wedo.bricks.Brick.Type;
+import org.kjkoster.wedo.transport.usb.HubHandle;
+
+/**
+ * A listener for sensor samples, as delivered by a {@link Subscription}.
+ * <p>
+ * Listeners are called on the sampler thread that reads the hubs for all
+ * subscriptions. They should return quickly, or they delay the samples for
+ * everyone else.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public interface SensorListener {
+    /**
+     * A sample was read from a brick.
+     *
+     * @param hubHandle
+     *            The hub that the brick is plugged into.
+     * @param port
+     *            The port that the brick is plugged into, 'A' or 'B'.
+     * @param type
+     *            The type of the brick.
+     * @param value
+     *            The raw value that the brick reported. Use
+     *            {@link org.kjkoster.wedo.bricks.Brick} to turn it into a tilt
+     *            or distance.
+     * @param receivedNanos
+     *            When the sample was received, as
+     *            <code>System.nanoTime()</code>.
+     */
+    void sampled(HubHandle hubHandle, char port, Type type, byte value,
+            long receivedNanos);
+}
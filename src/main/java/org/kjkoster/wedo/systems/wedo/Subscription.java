@@ -0,0 +1,188 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.System.err;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.kjkoster.wedo.bricks.Brick.Type;
+import org.kjkoster.wedo.transport.usb.HubHandle;
+
+/**
+ * A subscription to the samples of one or more sensors, as created by
+ * {@link WeDoBricks#subscribe(String, Character, Type, long, java.util.concurrent.TimeUnit, Delivery, SensorListener)}.
+ * All subscriptions are fed by a single sampler, so that the hubs are read
+ * once per sample period, no matter how many subscriptions there are.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class Subscription implements AutoCloseable {
+    /**
+     * Which samples to deliver to the listener.
+     */
+    public enum Delivery {
+        /**
+         * Deliver every sample, even if it did not change.
+         */
+        EVERY_SAMPLE,
+
+        /**
+         * Only deliver a sample when the type or the value of the brick
+         * changed since the last sample that was delivered.
+         */
+        CHANGES_ONLY
+    }
+
+    private static final short NOTHING_DELIVERED = -1;
+
+    private final Sampler sampler;
+    private final String path;
+    private final Character port;
+    private final Type type;
+    private final long periodNanos;
+    private final Delivery delivery;
+    private final SensorListener sensorListener;
+
+    // only used by the sampler thread
+    private long dueNanos;
+    private final Map<String, short[]> lastDelivered = new HashMap<>();
+
+    Subscription(final Sampler sampler, final String path,
+            final Character port, final Type type, final long periodNanos,
+            final Delivery delivery, final SensorListener sensorListener,
+            final long nowNanos) {
+        super();
+
+        checkArgument(periodNanos > 0L, "sample period must be positive");
+        this.sampler = checkNotNull(sampler);
+        this.path = path;
+        this.port = port;
+        this.type = type;
+        this.periodNanos = periodNanos;
+        this.delivery = checkNotNull(delivery);
+        this.sensorListener = checkNotNull(sensorListener);
+        this.dueNanos = nowNanos;
+    }
+
+    /**
+     * Find the sample period of this subscription.
+     *
+     * @return The sample period, in nanoseconds.
+     */
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * Stop delivering samples to this subscription's listener.
+     */
+    public void cancel() {
+        sampler.remove(this);
+    }
+
+    /**
+     * Cancel the subscription.
+     *
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() {
+        cancel();
+    }
+
+    /**
+     * Forget what this subscription knows about the hub on a path, because it
+     * was unplugged or plugged in. Only smoothed tilt subscriptions keep
+     * anything that a hotplug event can make stale.
+     */
+    void forget(final String path) {
+        if (sensorListener instanceof TiltSmoothing) {
+            ((TiltSmoothing) sensorListener).forget(path);
+        }
+    }
+
+    boolean isDue(final long nowNanos) {
+        return nowNanos - dueNanos >= 0L;
+    }
+
+    /**
+     * Check if this subscription is due within half a sample period. When
+     * the hubs are read for another subscription anyway, we use that sample
+     * rather than reading the hubs again shortly after. That keeps
+     * subscriptions with similar periods on the same read.
+     */
+    boolean isDueSoon(final long nowNanos) {
+        return nowNanos - (dueNanos - periodNanos / 2L) >= 0L;
+    }
+
+    long getDueNanos() {
+        return dueNanos;
+    }
+
+    /**
+     * Move on to the next sample period. When we fell behind, we skip the
+     * periods we missed rather than delivering a burst of samples.
+     */
+    void advance(final long nowNanos) {
+        dueNanos += periodNanos;
+        if (nowNanos - dueNanos >= 0L) {
+            dueNanos = nowNanos + periodNanos;
+        }
+    }
+
+    /**
+     * Deliver the matching bricks from a snapshot to the listener.
+     */
+    void deliver(final WeDoSnapshot snapshot) {
+        for (int hub = 0; hub < snapshot.getHubCount(); hub++) {
+            final HubHandle hubHandle = snapshot.getHubHandle(hub);
+            if (path != null && !path.equals(hubHandle.getPath())) {
+                continue;
+            }
+
+            for (char p = 'A'; p <= 'B'; p++) {
+                if (port != null && port != p) {
+                    continue;
+                }
+                final Type sampledType = snapshot.getType(hub, p);
+                if (type != null && type != sampledType) {
+                    continue;
+                }
+                final byte value = snapshot.getValue(hub, p);
+                if (delivery == Delivery.CHANGES_ONLY
+                        && !changed(hubHandle, p, sampledType, value)) {
+                    continue;
+                }
+
+                try {
+                    sensorListener.sampled(hubHandle, p, sampledType, value,
+                            snapshot.getReceivedNanos(hub));
+                } catch (RuntimeException e) {
+                    err.printf("unexpected exception in sensor listener: %s",
+                            e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private boolean changed(final HubHandle hubHandle, final char p,
+            final Type sampledType, final byte value) {
+        short[] delivered = lastDelivered.get(hubHandle.getPath());
+        if (delivered == null) {
+            delivered = new short[] { NOTHING_DELIVERED, NOTHING_DELIVERED };
+            lastDelivered.put(hubHandle.getPath(), delivered);
+        }
+
+        final short sample = (short) (sampledType.ordinal() << 8
+                | (value & 0xff));
+        final int index = p - 'A';
+        if (delivered[index] == sample) {
+            return false;
+        }
+        delivered[index] = sample;
+        return true;
+    }
+}
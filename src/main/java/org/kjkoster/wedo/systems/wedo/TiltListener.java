@@ -0,0 +1,37 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import org.kjkoster.wedo.bricks.Tilt.Direction;
+import org.kjkoster.wedo.bricks.Tilt.Quality;
+import org.kjkoster.wedo.transport.usb.HubHandle;
+
+/**
+ * A listener for smoothed tilt sensor samples, as delivered by a subscription
+ * made with
+ * {@link WeDoBricks#subscribeTilts(String, Character, long, java.util.concurrent.TimeUnit, org.kjkoster.wedo.systems.wedo.Subscription.Delivery, int, TiltListener)}.
+ * <p>
+ * Like sensor listeners, tilt listeners are called on the sampler thread and
+ * should return quickly.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public interface TiltListener {
+    /**
+     * A sample was read from a tilt sensor.
+     *
+     * @param hubHandle
+     *            The hub that the tilt sensor is plugged into.
+     * @param port
+     *            The port that the tilt sensor is plugged into, 'A' or 'B'.
+     * @param direction
+     *            The direction that most of the recent samples agree on, or
+     *            <code>null</code> if none of them showed a direction.
+     * @param quality
+     *            The quality of the newest sample, which tells if a motor is
+     *            interfering with the sensor.
+     * @param receivedNanos
+     *            When the newest sample was received, as
+     *            <code>System.nanoTime()</code>.
+     */
+    void tilted(HubHandle hubHandle, char port, Direction direction,
+            Quality quality, long receivedNanos);
+}
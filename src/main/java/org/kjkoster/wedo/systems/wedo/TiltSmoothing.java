@@ -0,0 +1,102 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.kjkoster.wedo.bricks.Brick.Type.TILT;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kjkoster.wedo.bricks.Brick.Type;
+import org.kjkoster.wedo.bricks.Tilt;
+import org.kjkoster.wedo.bricks.Tilt.Direction;
+import org.kjkoster.wedo.bricks.TiltSmoother;
+import org.kjkoster.wedo.systems.wedo.Subscription.Delivery;
+import org.kjkoster.wedo.transport.usb.HubHandle;
+
+/**
+ * The sensor listener behind tilt subscriptions. It runs every sample through
+ * a majority vote per hub and port, and hands the smoothed direction to a
+ * tilt listener. For change-only delivery, it is the smoothed direction that
+ * has to change, not the raw value.
+ * <p>
+ * The votes of a hub are forgotten when it is unplugged or plugged in, so
+ * that a re-plugged sensor does not have to outvote its old samples. Apart
+ * from that, this class is only used by the sampler thread. Once a hub's
+ * votes are set up, sampling does not allocate.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class TiltSmoothing implements SensorListener {
+    private final int samples;
+    private final Delivery delivery;
+    private final TiltListener tiltListener;
+
+    /**
+     * The votes and the last delivered directions of a single hub, for ports
+     * A and B.
+     */
+    private static class HubVotes {
+        private final TiltSmoother[] smoothers;
+        private final Direction[] lastDelivered = new Direction[2];
+
+        private HubVotes(final int samples) {
+            smoothers = new TiltSmoother[] { new TiltSmoother(samples),
+                    new TiltSmoother(samples) };
+        }
+    }
+
+    private final Map<String, HubVotes> hubVotes = new ConcurrentHashMap<>();
+
+    TiltSmoothing(final int samples, final Delivery delivery,
+            final TiltListener tiltListener) {
+        super();
+
+        checkArgument(samples > 0, "need at least one sample, not %s",
+                samples);
+        this.samples = samples;
+        this.delivery = checkNotNull(delivery);
+        this.tiltListener = checkNotNull(tiltListener);
+    }
+
+    /**
+     * @see org.kjkoster.wedo.systems.wedo.SensorListener#sampled(org.kjkoster.wedo.transport.usb.HubHandle,
+     *      char, org.kjkoster.wedo.bricks.Brick.Type, byte, long)
+     */
+    @Override
+    public void sampled(final HubHandle hubHandle, final char port,
+            final Type type, final byte value, final long receivedNanos) {
+        if (type != TILT) {
+            return;
+        }
+
+        HubVotes votes = hubVotes.get(hubHandle.getPath());
+        if (votes == null) {
+            votes = new HubVotes(samples);
+            hubVotes.put(hubHandle.getPath(), votes);
+        }
+
+        final int index = port - 'A';
+        final Direction direction = votes.smoothers[index].add(value);
+        if (delivery == Delivery.CHANGES_ONLY) {
+            if (direction == null || direction == votes.lastDelivered[index]) {
+                return;
+            }
+            votes.lastDelivered[index] = direction;
+        }
+
+        tiltListener.tilted(hubHandle, port, direction,
+                Tilt.getQuality(value), receivedNanos);
+    }
+
+    /**
+     * Forget the votes of the hub on a path, because it was unplugged or
+     * plugged in. This may be called from any thread.
+     *
+     * @param path
+     *            The path of the hub.
+     */
+    void forget(final String path) {
+        hubVotes.remove(path);
+    }
+}
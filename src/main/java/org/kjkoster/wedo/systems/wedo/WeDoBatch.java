@@ -0,0 +1,59 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.kjkoster.wedo.bricks.ActuatorBatch;
+
+import lombok.SneakyThrows;
+
+/**
+ * A batch of actuator values for WeDo hubs, as created by
+ * {@link WeDoBricks#batch()}. Committing the batch sends one frame per hub,
+ * and the frames for the different hubs are written in parallel. In
+ * asynchronous write mode, the frames are handed to the hubs' writer threads.
+ * In synchronous write mode, each frame is written in order with the other
+ * writes to its hub, and committing returns when all frames were written.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class WeDoBatch extends ActuatorBatch {
+    private final WeDoBricks weDoBricks;
+
+    WeDoBatch(final WeDoBricks weDoBricks) {
+        super(BrickDecoder.PORTS);
+
+        this.weDoBricks = checkNotNull(weDoBricks);
+    }
+
+    /**
+     * @see org.kjkoster.wedo.bricks.ActuatorBatch#commit()
+     */
+    @Override
+    @SneakyThrows
+    public CompletableFuture<Void> commit() {
+        weDoBricks.refreshTypesIfStale();
+
+        final CompletableFuture<Void> committed = super.commit();
+        if (weDoBricks.isSynchronous()) {
+            try {
+                committed.join();
+            } catch (CompletionException e) {
+                throw e.getCause();
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * @see org.kjkoster.wedo.bricks.ActuatorBatch#send(java.lang.String, int,
+     *      byte[])
+     */
+    @Override
+    protected CompletableFuture<Void> send(final String path,
+            final int portMask, final byte[] frame) {
+        return weDoBricks.send(path, portMask, frame);
+    }
+}
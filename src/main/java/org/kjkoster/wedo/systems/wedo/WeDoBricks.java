@@ -2,27 +2,51 @@ package org.kjkoster.wedo.systems.wedo;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static java.lang.System.out;
+import static java.lang.System.err;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.CompletableFuture.runAsync;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.kjkoster.wedo.bricks.Brick.Type.DISTANCE;
 import static org.kjkoster.wedo.bricks.Brick.Type.LIGHT;
 import static org.kjkoster.wedo.bricks.Brick.Type.MOTOR;
 import static org.kjkoster.wedo.bricks.Brick.Type.NOT_CONNECTED;
 import static org.kjkoster.wedo.bricks.Brick.Type.TILT;
-import static org.kjkoster.wedo.bricks.Brick.Type.UNKNOWN;
+import static org.kjkoster.wedo.systems.wedo.Subscription.Delivery.EVERY_SAMPLE;
+import static org.kjkoster.wedo.trace.Tracer.Event.ACTUATORS_SUPPRESSED;
+import static org.kjkoster.wedo.trace.Tracer.Event.ACTUATORS_WRITE;
+import static org.kjkoster.wedo.trace.Tracer.Event.BRICKS_READ;
+import static org.kjkoster.wedo.trace.Tracer.getSystemOut;
+import static org.kjkoster.wedo.trace.Tracer.pack;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
+import org.kjkoster.wedo.bricks.ActuatorBatch;
 import org.kjkoster.wedo.bricks.ActuatorValueMemory;
 import org.kjkoster.wedo.bricks.Brick;
 import org.kjkoster.wedo.bricks.Brick.Type;
 import org.kjkoster.wedo.bricks.Distance;
+import org.kjkoster.wedo.bricks.DistanceCalibration;
 import org.kjkoster.wedo.bricks.Hub;
 import org.kjkoster.wedo.bricks.Tilt;
+import org.kjkoster.wedo.systems.wedo.HubIdentities.Identity;
+import org.kjkoster.wedo.systems.wedo.Subscription.Delivery;
+import org.kjkoster.wedo.trace.Tracer;
 import org.kjkoster.wedo.transport.usb.HubHandle;
 import org.kjkoster.wedo.transport.usb.Usb;
+import org.kjkoster.wedo.transport.usb.UsbHotplugListener;
+import org.kjkoster.wedo.transport.usb.UsbPacket;
+import org.kjkoster.wedo.transport.usb.UsbPacketConsumer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * A class to represent the collection of LEGO WeDo hubs and bricks that are
@@ -37,21 +61,109 @@ import org.kjkoster.wedo.transport.usb.Usb;
  * at any time. Re-plugging changes the order and identity of the hubs, even if
  * the system still looks the same to the user. 4) Likewise, WeDo bricks can be
  * plugged in and out or moved at any time.
+ * <p>
+ * To soften problems 1) and 3), each hub is given a logical ID that survives
+ * re-plugs, see {@link #getHubId(String)}. When a hub comes back, the actuator
+ * values it had are restored straight away.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 public class WeDoBricks implements AutoCloseable {
+    /**
+     * The ways in which we write to the hubs.
+     */
+    public enum WriteMode {
+        /**
+         * Write each frame to the hub before returning.
+         */
+        SYNCHRONOUS,
+
+        /**
+         * Hand frames to a writer thread per hub and return immediately. When
+         * frames are submitted faster than the hub can take them, only the
+         * newest frame is written. Use {@link WeDoBricks#flush()} to find out
+         * when the frames went out.
+         */
+        ASYNCHRONOUS
+    }
+
     private final Usb usb;
-    private final boolean verbose;
+    private final Tracer tracer;
+    private final WriteMode writeMode;
 
     private final ActuatorValueMemory actuatorValueMemory = new ActuatorValueMemory(
             2);
 
     /**
      * We have to remember what type an actuator has. The running motors and
-     * lights share ID's, making it impossible to see what is what.
+     * lights share ID's, making it impossible to see what is what. Slots are
+     * assigned and released while holding the lock on <code>hubStates</code>,
+     * decoding is guarded by each hub's own lock.
+     */
+    private final BrickDecoder brickDecoder = new BrickDecoder();
+
+    /**
+     * The state of each hub, each guarded by its own lock. Only adding and
+     * removing states is guarded by the map.
+     */
+    private final Map<String, HubState> hubStates = new ConcurrentHashMap<>();
+
+    /**
+     * The writer threads, one per hub, for asynchronous write mode. They are
+     * created while holding the hub's lock and closed when the hub is
+     * unplugged. In synchronous write mode there
+     * are no writer threads, so that all frames for a hub are written under
+     * its lock, in order.
+     */
+    private final Map<String, HubWriter> hubWriters = new ConcurrentHashMap<>();
+
+    /**
+     * The threads that write the frames of committed batches in synchronous
+     * write mode, so that the hubs of a batch are written in parallel. Each
+     * write takes only the lock of the hub it writes. Created on first use.
      */
-    private final Map<String, Map<Character, Type>> rememberedActuatorTypes = new HashMap<>();
+    private ExecutorService batchWriters = null;
+
+    /**
+     * The last frame that each hub acknowledged, for suppressing writes that
+     * would not change anything.
+     */
+    private static class WrittenFrame {
+        private volatile byte valueA;
+        private volatile byte valueB;
+        private volatile long writtenNanos;
+    }
+
+    private final Map<String, WrittenFrame> writtenFrames = new ConcurrentHashMap<>();
+    private volatile boolean suppressUnchangedWrites = false;
+    private volatile long writeRefreshIntervalNanos = SECONDS.toNanos(1L);
+    private final AtomicLong framesWritten = new AtomicLong();
+    private final AtomicLong framesSuppressed = new AtomicLong();
+
+    /**
+     * The hubs and their port types as we last read them, so that we know
+     * where the motors and lights are without reading all hubs first. Every
+     * read updates this cache.
+     */
+    private final Map<String, Hub> knownHubs = new ConcurrentHashMap<>();
+    private volatile boolean knownHubsStale = true;
+
+    /**
+     * The logical identities of the hubs, so that what we remember about a hub
+     * survives a re-plug. Guarded by itself. When both are needed, the hub's
+     * lock is taken first.
+     */
+    private final HubIdentities hubIdentities = new HubIdentities();
+
+    /**
+     * The calibration profiles of the distance sensors, by logical hub ID.
+     * Each entry holds the profiles for ports A and B.
+     */
+    private final Map<String, DistanceCalibration[]> distanceCalibrations = new ConcurrentHashMap<>();
+
+    private final Sampler sampler = new Sampler(this);
+
+    private volatile PacketRecorder packetRecorder = null;
 
     /**
      * Create a new WeDo bricks abstraction layer.
@@ -80,15 +192,208 @@ public class WeDoBricks implements AutoCloseable {
      *            Print a trace of all interaction with the LEGO WeDo bricks.
      */
     public WeDoBricks(final Usb usb, final boolean verbose) {
+        this(usb, verbose, WriteMode.SYNCHRONOUS);
+    }
+
+    /**
+     * Create a new WeDo bricks abstraction layer.
+     * 
+     * @param usb
+     *            The USB subsystem that this layer uses for accessing the
+     *            actual LEGO WeDo hardware.
+     * @param verbose
+     *            Print a trace of all interaction with the LEGO WeDo bricks.
+     * @param writeMode
+     *            How to write to the hubs.
+     */
+    public WeDoBricks(final Usb usb, final boolean verbose,
+            final WriteMode writeMode) {
         this.usb = checkNotNull(usb);
-        this.verbose = verbose;
+        this.tracer = verbose ? getSystemOut() : null;
+        this.writeMode = checkNotNull(writeMode);
+
+        usb.addHotplugListener(new UsbHotplugListener() {
+            @Override
+            public void attached(final HubHandle hubHandle) {
+                // a re-plugged hub starts with all actuators off
+                writtenFrames.remove(hubHandle.getPath());
+                sampler.forget(hubHandle.getPath());
+                if (!restore(hubHandle)) {
+                    knownHubsStale = true;
+                }
+            }
+
+            @Override
+            public void detached(final HubHandle hubHandle) {
+                writtenFrames.remove(hubHandle.getPath());
+                sampler.forget(hubHandle.getPath());
+                forget(hubHandle);
+
+                final HubWriter hubWriter = hubWriters
+                        .remove(hubHandle.getPath());
+                if (hubWriter != null) {
+                    try {
+                        hubWriter.close();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Skip USB writes for frames that the hub already has. Control loops tend
+     * to set the same motor speed over and over again, and each of those would
+     * otherwise be a full USB write. Even with suppression on, unchanged
+     * frames are still written once per refresh interval, so that a hub that
+     * was power cycled behind our back is brought back in sync.
+     * 
+     * @param suppressUnchangedWrites
+     *            <code>true</code> to suppress unchanged frames.
+     */
+    public void setWriteSuppression(final boolean suppressUnchangedWrites) {
+        this.suppressUnchangedWrites = suppressUnchangedWrites;
+    }
+
+    /**
+     * Set how often unchanged frames are written anyway when write suppression
+     * is on. The default is once per second.
+     * 
+     * @param interval
+     *            The refresh interval.
+     * @param unit
+     *            The unit of the interval.
+     */
+    public void setWriteRefreshInterval(final long interval,
+            final TimeUnit unit) {
+        checkArgument(interval >= 0L, "negative interval %s", interval);
+        writeRefreshIntervalNanos = unit.toNanos(interval);
     }
 
     /**
+     * Record the packets that are read from the hubs, or stop recording. The
+     * recorder is not closed when recording stops.
+     * 
+     * @param packetRecorder
+     *            The recorder to hand the packets to, or <code>null</code> to
+     *            stop recording.
+     */
+    public void setPacketRecorder(final PacketRecorder packetRecorder) {
+        this.packetRecorder = packetRecorder;
+    }
+
+    /**
+     * Count the frames that were actually written to the hubs.
+     * 
+     * @return The number of frames written.
+     */
+    public long getFramesWritten() {
+        return framesWritten.get();
+    }
+
+    /**
+     * Count the frames that were not written because the hub already had
+     * them.
+     * 
+     * @return The number of frames suppressed.
+     */
+    public long getFramesSuppressed() {
+        return framesSuppressed.get();
+    }
+
+    /**
+     * Decide if a frame has to go out, or if it can be suppressed. For each
+     * hub, this is only called by one thread at a time: the hub's writer
+     * thread in asynchronous write mode, or the thread that holds the hub's
+     * lock in synchronous write mode.
+     */
+    boolean shouldWrite(final String path, final byte valueA,
+            final byte valueB) {
+        if (!suppressUnchangedWrites) {
+            return true;
+        }
+
+        final WrittenFrame writtenFrame = writtenFrames.get(path);
+        if (writtenFrame == null || writtenFrame.valueA != valueA
+                || writtenFrame.valueB != valueB || nanoTime()
+                        - writtenFrame.writtenNanos >= writeRefreshIntervalNanos) {
+            return true;
+        }
+
+        framesSuppressed.incrementAndGet();
+        if (tracer != null) {
+            tracer.trace(ACTUATORS_SUPPRESSED, path, 0L);
+        }
+        return false;
+    }
+
+    void written(final String path, final byte valueA, final byte valueB) {
+        framesWritten.incrementAndGet();
+
+        WrittenFrame writtenFrame = writtenFrames.get(path);
+        if (writtenFrame == null) {
+            final WrittenFrame created = new WrittenFrame();
+            writtenFrame = writtenFrames.putIfAbsent(path, created);
+            if (writtenFrame == null) {
+                writtenFrame = created;
+            }
+        }
+        writtenFrame.valueA = valueA;
+        writtenFrame.valueB = valueB;
+        writtenFrame.writtenNanos = nanoTime();
+    }
+
+    void writeFailed(final String path) {
+        // we no longer know what the hub has
+        writtenFrames.remove(path);
+    }
+
+    /**
+     * Find out when all the frames that were written so far have reached the
+     * hubs. In synchronous write mode, that is always the case.
+     * 
+     * @return A future that completes when all pending frames were written,
+     *         or that completes exceptionally when one of them failed.
+     */
+    public CompletableFuture<Void> flush() {
+        final Collection<HubWriter> writers = new ArrayList<>(
+                hubWriters.values());
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[writers
+                .size()];
+        int i = 0;
+        for (final HubWriter hubWriter : writers) {
+            futures[i++] = hubWriter.flush();
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Close the USB subsystem. In asynchronous write mode, pending frames are
+     * written first.
+     * 
      * @see java.lang.AutoCloseable#close()
      */
     @Override
     public void close() throws Exception {
+        sampler.close();
+
+        final ExecutorService pool;
+        synchronized (this) {
+            pool = batchWriters;
+        }
+        if (pool != null) {
+            // let batches that are being written finish
+            pool.shutdown();
+            pool.awaitTermination(1L, SECONDS);
+        }
+
+        final Collection<HubWriter> writers = new ArrayList<>(
+                hubWriters.values());
+        hubWriters.clear();
+        for (final HubWriter hubWriter : writers) {
+            hubWriter.close();
+        }
         usb.close();
     }
 
@@ -96,90 +401,581 @@ public class WeDoBricks implements AutoCloseable {
      * Read a map of all the bricks. Find any LEGO WeDo hubs and read a packet
      * from each of them. Hubs can be plugged in and out at any time, so it is a
      * surprise how many bricks we get every time.
+     * <p>
+     * When the underlying USB layer runs in continuous read mode, this method
+     * returns immediately with the most recent packets from each hub.
      * 
      * @return All the hubs, with their bricks and values.
      */
     public Collection<Hub> readAll() {
         final Collection<Hub> hubs = new ArrayList<>();
-        for (final Map.Entry<HubHandle, byte[]> packetRead : usb.readFromAll()
-                .entrySet()) {
-            hubs.add(parseBrickAB(packetRead.getKey(), packetRead.getValue()));
+        for (final Map.Entry<HubHandle, UsbPacket> packetRead : usb
+                .readPacketsFromAll().entrySet()) {
+            hubs.add(parseBrickAB(packetRead.getKey(),
+                    packetRead.getValue().getData(),
+                    packetRead.getValue().getReceivedNanos()));
         }
         return hubs;
     }
 
-    private synchronized Hub parseBrickAB(final HubHandle hubHandle,
+    /**
+     * Subscribe to the samples of one or more sensors. Rather than polling the
+     * hubs in a loop, callers can subscribe and be told about new samples. All
+     * subscriptions share a single sampler thread, which reads all hubs once
+     * whenever any of the subscriptions is due for a sample. A change in value
+     * therefore reaches the listener within one sample period.
+     * 
+     * @param path
+     *            The path of the hub to sample, or <code>null</code> for all
+     *            hubs.
+     * @param port
+     *            The port to sample, or <code>null</code> for both ports.
+     * @param type
+     *            The type of brick to sample, or <code>null</code> for any
+     *            type.
+     * @param period
+     *            The time between samples.
+     * @param unit
+     *            The unit of the sample period.
+     * @param delivery
+     *            Whether to deliver every sample or only changes.
+     * @param sensorListener
+     *            The listener to deliver the samples to.
+     * @return The subscription, which can be cancelled.
+     */
+    public Subscription subscribe(final String path, final Character port,
+            final Type type, final long period, final TimeUnit unit,
+            final Delivery delivery, final SensorListener sensorListener) {
+        checkArgument(port == null || port == 'A' || port == 'B',
+                "no port %s", port);
+        final Subscription subscription = new Subscription(sampler, path,
+                port, type, unit.toNanos(period), delivery, sensorListener,
+                nanoTime());
+        sampler.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Subscribe to the samples of tilt sensors, smoothed by a majority vote
+     * over the most recent samples of each sensor. The decoding and the vote
+     * run on the sampler thread and never throw, so motor interference and
+     * samples taken while the sensor moves are simply outvoted.
+     * 
+     * @param path
+     *            The path of the hub to sample, or <code>null</code> for all
+     *            hubs.
+     * @param port
+     *            The port to sample, or <code>null</code> for both ports.
+     * @param period
+     *            The time between samples.
+     * @param unit
+     *            The unit of the sample period.
+     * @param delivery
+     *            Whether to deliver every sample or only changes in the
+     *            smoothed direction.
+     * @param samples
+     *            The number of samples to vote over, 1 for no smoothing.
+     * @param tiltListener
+     *            The listener to deliver the directions to.
+     * @return The subscription, which can be cancelled.
+     */
+    public Subscription subscribeTilts(final String path,
+            final Character port, final long period, final TimeUnit unit,
+            final Delivery delivery, final int samples,
+            final TiltListener tiltListener) {
+        return subscribe(path, port, TILT, period, unit, EVERY_SAMPLE,
+                new TiltSmoothing(samples, delivery, tiltListener));
+    }
+
+    /**
+     * Read all the bricks into a snapshot, overwriting what was in the
+     * snapshot. This is the allocation-free alternative to {@link #readAll()}:
+     * once the snapshot has grown to hold all hubs, polling this way does not
+     * create garbage.
+     * 
+     * @param snapshot
+     *            The snapshot to fill.
+     * @return The same snapshot, for convenience.
+     */
+    public WeDoSnapshot readAll(final WeDoSnapshot snapshot) {
+        checkNotNull(snapshot);
+        if (snapshot.filler == null || snapshot.fillerOwner != this) {
+            snapshot.filler = new UsbPacketConsumer() {
+                @Override
+                public void accept(final HubHandle hubHandle,
+                        final byte[] packet, final long receivedNanos) {
+                    parseBrickAB(snapshot, hubHandle, packet, receivedNanos);
+                }
+            };
+            snapshot.fillerOwner = this;
+        }
+
+        snapshot.clear();
+        usb.readFromAll(snapshot.filler);
+        return snapshot;
+    }
+
+    private void parseBrickAB(final WeDoSnapshot snapshot,
+            final HubHandle hubHandle, final byte[] buffer,
+            final long receivedNanos) {
+        record(hubHandle, receivedNanos, buffer);
+        final HubState hubState = lock(hubHandle.getPath());
+        try {
+            decode(hubState, hubHandle, buffer);
+            snapshot.add(hubHandle, receivedNanos, hubState.typeA, buffer[2],
+                    hubState.typeB, buffer[4]);
+
+            final Hub knownHub = knownHubs.get(hubHandle.getPath());
+            if (knownHub == null
+                    || knownHub.getBrick('A').getType() != hubState.typeA
+                    || knownHub.getBrick('B').getType() != hubState.typeB) {
+                // only allocates when the bricks were moved around
+                knownHubs.put(hubHandle.getPath(),
+                        new Hub(hubHandle.getPath(),
+                                hubHandle.getProductName(),
+                                new Brick[] {
+                                        new Brick('A', hubState.typeA,
+                                                buffer[2]),
+                                        new Brick('B', hubState.typeB,
+                                                buffer[4]) }));
+            }
+        } finally {
+            hubState.lock.unlock();
+        }
+    }
+
+    private Hub parseBrickAB(final HubHandle hubHandle, final byte[] buffer,
+            final long receivedNanos) {
+        record(hubHandle, receivedNanos, buffer);
+        final HubState hubState = lock(hubHandle.getPath());
+        try {
+            decode(hubState, hubHandle, buffer);
+
+            final Hub hub = new Hub(hubHandle.getPath(),
+                    hubHandle.getProductName(),
+                    new Brick[] { new Brick('A', hubState.typeA, buffer[2]),
+                            new Brick('B', hubState.typeB, buffer[4]) });
+            knownHubs.put(hub.getPath(), hub);
+            return hub;
+        } finally {
+            hubState.lock.unlock();
+        }
+    }
+
+    private void record(final HubHandle hubHandle, final long receivedNanos,
+            final byte[] buffer) {
+        final PacketRecorder recorder = packetRecorder;
+        if (recorder != null) {
+            recorder.record(hubHandle, receivedNanos, buffer);
+        }
+    }
+
+    /**
+     * Decode the brick types from a packet into the hub's state. The first
+     * packet from a hub also tells us which hub it is, and if we knew it
+     * before, its actuator values are restored. Call with the hub's lock
+     * held.
+     */
+    private void decode(final HubState hubState, final HubHandle hubHandle,
             final byte[] buffer) {
-        final Brick[] brickAB = new Brick[2];
+        hubState.typeA = brickDecoder.decode(hubState.slot, 0, buffer[3]);
+        hubState.typeB = brickDecoder.decode(hubState.slot, 1, buffer[5]);
+        if (tracer != null) {
+            tracer.trace(BRICKS_READ, hubHandle,
+                    pack(hubState.typeA.ordinal(), buffer[2],
+                            hubState.typeB.ordinal(), buffer[4]));
+        }
+
+        if (hubState.identity == null) {
+            final boolean returning;
+            final byte valueA;
+            final byte valueB;
+            synchronized (hubIdentities) {
+                hubState.identity = hubIdentities.identify(hubState.path,
+                        hubState.typeA, hubState.typeB);
+                returning = hubState.identity.takeReturning();
+                valueA = hubState.identity.getValueA();
+                valueB = hubState.identity.getValueB();
+            }
+            if (returning) {
+                restoreValues(hubState, hubHandle, valueA, valueB);
+            }
+        }
+    }
+
+    /**
+     * Find the state of a hub and take its lock, creating the state if
+     * needed. The caller must release the lock.
+     */
+    private HubState lock(final String path) {
+        for (;;) {
+            HubState hubState = hubStates.get(path);
+            if (hubState == null) {
+                synchronized (hubStates) {
+                    hubState = hubStates.get(path);
+                    if (hubState == null) {
+                        hubState = new HubState(path,
+                                brickDecoder.slot(path));
+                        hubStates.put(path, hubState);
+                    }
+                }
+            }
 
-        final Type brickAType = findType(hubHandle, 'A', buffer[3]);
-        brickAB[0] = new Brick('A', brickAType, buffer[2]);
-        if (verbose) {
-            out.println("read  " + brickAB[0]);
+            hubState.lock.lock();
+            if (!hubState.released) {
+                return hubState;
+            }
+            // the hub was unplugged while we waited, try its new state
+            hubState.lock.unlock();
         }
+    }
+
+    /**
+     * When a hub is plugged in that we know by its path, put back the port
+     * types and actuator values that it had, so that actuator commands do not
+     * have to read all hubs first.
+     * 
+     * @return <code>true</code> if the hub's state was restored.
+     */
+    private boolean restore(final HubHandle hubHandle) {
+        final HubState hubState = lock(hubHandle.getPath());
+        try {
+            final Type typeA;
+            final Type typeB;
+            final byte valueA;
+            final byte valueB;
+            synchronized (hubIdentities) {
+                final Identity identity = hubIdentities
+                        .attached(hubHandle.getPath());
+                if (identity == null || !identity.isFingerprinted()
+                        || !identity.takeReturning()) {
+                    return false;
+                }
+                hubState.identity = identity;
+                typeA = identity.getTypeA();
+                typeB = identity.getTypeB();
+                valueA = identity.getValueA();
+                valueB = identity.getValueB();
+            }
 
-        final Type brickBType = findType(hubHandle, 'B', buffer[5]);
-        brickAB[1] = new Brick('B', brickBType, buffer[4]);
-        if (verbose) {
-            out.println("read  " + brickAB[1]);
+            hubState.typeA = typeA;
+            hubState.typeB = typeB;
+            brickDecoder.remember(hubState.slot, 0, typeA);
+            brickDecoder.remember(hubState.slot, 1, typeB);
+            knownHubs.put(hubHandle.getPath(),
+                    new Hub(hubHandle.getPath(), hubHandle.getProductName(),
+                            new Brick[] { new Brick('A', typeA),
+                                    new Brick('B', typeB) }));
+
+            restoreValues(hubState, hubHandle, valueA, valueB);
+            return true;
+        } finally {
+            hubState.lock.unlock();
         }
+    }
 
+    /**
+     * Put back the actuator values of a re-plugged hub. The hub itself starts
+     * with all actuators off, so we send it the values too, the same way as
+     * any other frame for the hub. Hotplug events are fired outside the USB
+     * lock, so writing from here is safe. Call with the hub's lock held.
+     */
+    private void restoreValues(final HubState hubState,
+            final HubHandle hubHandle, final byte valueA, final byte valueB) {
+        hubState.frame[0] = valueA;
+        hubState.frame[1] = valueB;
+        actuatorValueMemory.writeFrame(hub(hubHandle), 0x3, hubState.frame);
+        if (valueA == 0x00 && valueB == 0x00) {
+            return;
+        }
+
+        if (writeMode == WriteMode.ASYNCHRONOUS) {
+            hubWriter(hubHandle).submit(hubHandle, valueA, valueB);
+            return;
+        }
+        try {
+            writeFrame(hubState, hubHandle, valueA, valueB);
+        } catch (Exception e) {
+            // the next write for this hub will try again
+            err.printf("unexpected exception restoring %s: %s\n", hubHandle,
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Forget everything we know about the hub on a path, so that none of it
+     * is applied to another hub that is plugged in there. The hub's identity
+     * keeps its bricks and actuator values, for when it comes back.
+     */
+    private void forget(final HubHandle hubHandle) {
+        final HubState hubState = lock(hubHandle.getPath());
+        try {
+            final Hub hub = hub(hubHandle);
+            actuatorValueMemory.readFrame(hub, hubState.frame);
+            synchronized (hubIdentities) {
+                hubIdentities.detached(hubHandle.getPath(), hubState.typeA,
+                        hubState.typeB, hubState.frame[0], hubState.frame[1]);
+            }
+            hubState.frame[0] = 0x00;
+            hubState.frame[1] = 0x00;
+            actuatorValueMemory.writeFrame(hub, 0x3, hubState.frame);
+            knownHubs.remove(hubHandle.getPath());
+
+            synchronized (hubStates) {
+                hubStates.remove(hubHandle.getPath());
+                brickDecoder.release(hubHandle.getPath());
+            }
+            hubState.released = true;
+        } finally {
+            hubState.lock.unlock();
+        }
+    }
+
+    private Hub hub(final HubHandle hubHandle) {
+        final Hub knownHub = knownHubs.get(hubHandle.getPath());
+        if (knownHub != null) {
+            return knownHub;
+        }
         return new Hub(hubHandle.getPath(), hubHandle.getProductName(),
-                brickAB);
-    }
-
-    @SuppressWarnings("cast")
-    private Type findType(final HubHandle hubHandle, final char port,
-            final byte id) {
-        Type type;
-        switch ((int) id & 0xff) {
-        case 0xe6:
-        case 0xe7:
-            type = NOT_CONNECTED;
-            break;
-        case 0xee:
-        case 0xef:
-        case 0xf0:
-        case 0xf1:
-            type = MOTOR;
-            break;
-        case 0xcb:
-        case 0xcc:
-        case 0xcd:
-            type = LIGHT;
-            break;
-        case 0xb0:
-        case 0xb1:
-        case 0xb2:
-        case 0xb3:
-            type = DISTANCE;
-            break;
-        case 0x26:
-        case 0x27:
-            type = TILT;
-            break;
-        default:
-            type = UNKNOWN;
-        }
-
-        Map<Character, Type> hub = rememberedActuatorTypes
-                .get(hubHandle.getPath());
+                new Brick[] { new Brick('A', NOT_CONNECTED),
+                        new Brick('B', NOT_CONNECTED) });
+    }
+
+    /**
+     * Find the logical ID of a hub. Logical IDs survive re-plugging a hub
+     * into another USB port, unlike paths. Hubs are recognised by the path
+     * they were last seen on, by IDs pinned with
+     * {@link #pinHubId(String, String)} and by the bricks on their ports.
+     * 
+     * @param path
+     *            The current path of the hub.
+     * @return The logical ID of the hub, or <code>null</code> if the hub has
+     *         not been read yet.
+     */
+    public String getHubId(final String path) {
+        synchronized (hubIdentities) {
+            return hubIdentities.getId(path);
+        }
+    }
+
+    /**
+     * Find where a hub is plugged in.
+     * 
+     * @param hubId
+     *            The logical ID of the hub.
+     * @return The current path of the hub, or <code>null</code> if the hub
+     *         is not plugged in.
+     */
+    public String getHubPath(final String hubId) {
+        synchronized (hubIdentities) {
+            return hubIdentities.getPath(hubId);
+        }
+    }
+
+    /**
+     * Pin a logical ID to a USB path. Whatever hub is plugged into that path
+     * from now on gets the ID, and the actuator values that go with it. Use
+     * this to tell identical hubs apart when they are plugged in every time
+     * in the same order.
+     * 
+     * @param path
+     *            The path to pin the ID to.
+     * @param hubId
+     *            The logical ID to give to the hub on that path.
+     */
+    public void pinHubId(final String path, final String hubId) {
+        synchronized (hubIdentities) {
+            hubIdentities.pin(path, hubId);
+        }
+    }
+
+    /**
+     * Set the calibration profile for a distance sensor. Profiles belong to
+     * the sensor on a port of a logical hub, so they stay with the hub when
+     * it is re-plugged. Use {@link #pinHubId(String, String)} to make sure
+     * that the hub gets the same ID each time the program runs.
+     * 
+     * @param hubId
+     *            The logical ID of the hub that the sensor is plugged into.
+     * @param port
+     *            The port that the sensor is plugged into.
+     * @param calibration
+     *            The calibration profile of the sensor, or <code>null</code>
+     *            to go back to the default profile.
+     */
+    public void setDistanceCalibration(final String hubId, final char port,
+            final DistanceCalibration calibration) {
+        checkNotNull(hubId, "null hub id");
+        checkArgument(port == 'A' || port == 'B', "no port %s", port);
+
+        synchronized (distanceCalibrations) {
+            DistanceCalibration[] calibrations = distanceCalibrations
+                    .get(hubId);
+            if (calibrations == null) {
+                calibrations = new DistanceCalibration[] {
+                        DistanceCalibration.DEFAULT,
+                        DistanceCalibration.DEFAULT };
+            } else {
+                calibrations = calibrations.clone();
+            }
+            calibrations[port - 'A'] = calibration == null
+                    ? DistanceCalibration.DEFAULT : calibration;
+            distanceCalibrations.put(hubId, calibrations);
+        }
+    }
+
+    /**
+     * Find the calibration profile for the distance sensor on a port of a
+     * hub.
+     * 
+     * @param path
+     *            The current path of the hub.
+     * @param port
+     *            The port of the distance sensor.
+     * @return The calibration profile of the sensor, which is the default
+     *         profile if none was set.
+     */
+    public DistanceCalibration getDistanceCalibration(final String path,
+            final char port) {
+        checkArgument(port == 'A' || port == 'B', "no port %s", port);
+
+        final String hubId = getHubId(path);
+        final DistanceCalibration[] calibrations = hubId == null ? null
+                : distanceCalibrations.get(hubId);
+        return calibrations == null ? DistanceCalibration.DEFAULT
+                : calibrations[port - 'A'];
+    }
+
+    /**
+     * Read all hubs to find out which bricks are plugged into which ports.
+     * <p>
+     * Setting motors and lights does not read the hubs first. Instead, it uses
+     * the port types that we learned from the most recent reads. Any read
+     * keeps those up to date, and when a hub is plugged in the next actuator
+     * command reads all hubs first. Still, when bricks are moved around
+     * without anyone reading the hubs, the actuator commands may go to the
+     * wrong ports. Callers that need to be sure can call this method before
+     * setting the actuators.
+     */
+    public void refreshTypes() {
+        readAll();
+        // hubs that were plugged in during that read were read too
+        knownHubsStale = false;
+    }
+
+    void refreshTypesIfStale() {
+        if (knownHubsStale) {
+            refreshTypes();
+        }
+    }
+
+    boolean isSynchronous() {
+        return writeMode == WriteMode.SYNCHRONOUS;
+    }
+
+    /**
+     * Start a batch of actuator values. Unlike the methods that set all motors
+     * or lights at once, a batch addresses individual ports on individual
+     * hubs. When the batch is committed, each hub that it touches is sent
+     * exactly one frame, and the frames for the different hubs are written in
+     * parallel.
+     * <p>
+     * The batch sets the ports that it names, regardless of what brick is
+     * plugged into them. Ports that the batch does not name keep their
+     * current values.
+     * 
+     * @return A new, empty batch.
+     */
+    public ActuatorBatch batch() {
+        return new WeDoBatch(this);
+    }
+
+    /**
+     * Send the frame for one hub of a batch. In asynchronous write mode it
+     * goes through the hub's writer thread. In synchronous write mode it is
+     * written by one of the batch writer threads, under the hub's lock, like
+     * any other frame for the hub. Either way, the hubs of a batch are written
+     * in parallel.
+     */
+    CompletableFuture<Void> send(final String path, final int portMask,
+            final byte[] batchFrame) {
+        final Hub hub = knownHubs.get(path);
         if (hub == null) {
-            hub = new HashMap<>();
-            rememberedActuatorTypes.put(hubHandle.getPath(), hub);
+            // let the other hubs in the batch be written anyway
+            final CompletableFuture<Void> sent = new CompletableFuture<>();
+            sent.completeExceptionally(
+                    new IllegalArgumentException("no WeDo hub " + path));
+            return sent;
+        }
+
+        final HubState hubState = lock(path);
+        try {
+            actuatorValueMemory.writeFrame(hub, portMask, batchFrame);
+            if (tracer != null) {
+                tracer.trace(ACTUATORS_WRITE, path,
+                        pack(batchFrame[0], batchFrame[1], 0, 0));
+            }
+
+            final HubHandle hubHandle = hubHandle(hub);
+            if (writeMode == WriteMode.ASYNCHRONOUS) {
+                final HubWriter hubWriter = hubWriter(hubHandle);
+                hubWriter.submit(hubHandle, batchFrame[0], batchFrame[1]);
+                return hubWriter.flush();
+            }
+
+            return runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    writeBatchFrame(hub);
+                }
+            }, getBatchWriters());
+        } finally {
+            hubState.lock.unlock();
         }
+    }
 
-        if (type == UNKNOWN && hub.containsKey(port)) {
-            type = hub.get(port);
+    /**
+     * Write the current frame of a hub that was touched by a batch. By the
+     * time we get the hub's lock, other writes may have changed the frame, so
+     * we write what the hub should have now, not what the batch set.
+     */
+    private void writeBatchFrame(final Hub hub) {
+        final HubState hubState = lock(hub.getPath());
+        try {
+            actuatorValueMemory.readFrame(hub, hubState.frame);
+            writeFrame(hubState, hubHandle(hub), hubState.frame[0],
+                    hubState.frame[1]);
+        } finally {
+            hubState.lock.unlock();
         }
+    }
 
-        if (type != UNKNOWN && type != NOT_CONNECTED) {
-            hub.put(port, type);
-        } else {
-            hub.remove(port);
+    private synchronized ExecutorService getBatchWriters() {
+        if (batchWriters == null) {
+            batchWriters = newCachedThreadPool(new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("WeDo batch writer %d")
+                    .build());
         }
+        return batchWriters;
+    }
 
-        return type;
+    private HubHandle hubHandle(final Hub hub) {
+        final HubHandle hubHandle = usb.getHubHandle(hub.getPath());
+        if (hubHandle == null) {
+            // the hub was unplugged since we last read it
+            return new HubHandle(hub.getPath(), hub.getProductName());
+        }
+        return hubHandle;
+    }
+
+    private HubWriter hubWriter(final HubHandle hubHandle) {
+        return hubWriters.computeIfAbsent(hubHandle.getPath(),
+                new Function<String, HubWriter>() {
+                    @Override
+                    public HubWriter apply(final String path) {
+                        return new HubWriter(usb, WeDoBricks.this, hubHandle);
+                    }
+                });
     }
 
     /**
@@ -287,6 +1083,10 @@ public class WeDoBricks implements AutoCloseable {
      * take the blunt approach by setting all "motor A"'s to the specified
      * speed. It is then up to the user to make sure that the motors are hooked
      * up properly for addressing.
+     * <p>
+     * We look up which ports have motors and lights in the port types that we
+     * remember from the last read, so that setting an actuator costs a single
+     * USB write per hub.
      * 
      * TODO We use code 64 to set motor speed. Code 60 allows for other values
      * too. See
@@ -297,7 +1097,8 @@ public class WeDoBricks implements AutoCloseable {
             final byte value, final boolean setMotor, final boolean setLight) {
         checkArgument(setA || setB);
 
-        for (final Hub hub : readAll()) {
+        refreshTypesIfStale();
+        for (final Hub hub : knownHubs.values()) {
             if (setA) {
                 actuator(hub, 'A', value, setMotor, setLight);
             }
@@ -320,14 +1121,50 @@ public class WeDoBricks implements AutoCloseable {
     /**
      * WeDo only allows us to write both ports at the same time. We look up the
      * stored value for the second port before writing.
+     * <p>
+     * We hold the hub's lock while writing, so that the frames for a hub go
+     * out in the order in which its values were set. Other hubs are not held
+     * up. In asynchronous write mode we only drop the frame into the hub's
+     * mailbox, so that we do not even hold the hub's lock while the USB bus is
+     * busy. The mailbox is then the only way to the hub.
      */
-    private synchronized void write(final Hub hub, final char port,
-            final byte value) {
-        actuatorValueMemory.write(hub, port, value);
+    private void write(final Hub hub, final char port, final byte value) {
+        final HubState hubState = lock(hub.getPath());
+        try {
+            actuatorValueMemory.write(hub, port, value);
+
+            actuatorValueMemory.readFrame(hub, hubState.frame);
+            final byte valueA = hubState.frame[0];
+            final byte valueB = hubState.frame[1];
+
+            if (tracer != null) {
+                tracer.trace(ACTUATORS_WRITE, hub.getPath(),
+                        pack(valueA, valueB, 0, 0));
+            }
 
-        final byte valueA = actuatorValueMemory.read(hub, 'A');
-        final byte valueB = actuatorValueMemory.read(hub, 'B');
-        final byte[] buffer = new byte[9];
+            final HubHandle hubHandle = hubHandle(hub);
+            if (writeMode == WriteMode.ASYNCHRONOUS) {
+                hubWriter(hubHandle).submit(hubHandle, valueA, valueB);
+                return;
+            }
+            writeFrame(hubState, hubHandle, valueA, valueB);
+        } finally {
+            hubState.lock.unlock();
+        }
+    }
+
+    /**
+     * Write a frame to a hub right away, unless the hub already has it. This
+     * is the only way frames reach a hub in synchronous write mode. Call with
+     * the hub's lock held.
+     */
+    private void writeFrame(final HubState hubState, final HubHandle hubHandle,
+            final byte valueA, final byte valueB) {
+        if (!shouldWrite(hubState.path, valueA, valueB)) {
+            return;
+        }
+
+        final byte[] buffer = hubState.writeBuffer;
         buffer[0] = 0x00;
         buffer[1] = 0x40;
         buffer[2] = valueA;
@@ -337,13 +1174,13 @@ public class WeDoBricks implements AutoCloseable {
         buffer[6] = 0x00;
         buffer[7] = 0x00;
         buffer[8] = 0x00;
-
-        if (verbose) {
-            out.printf("write %s -> value A: 0x%02x value B: 0x%02x\n",
-                    hub.getPath(), valueA, valueB);
+        try {
+            usb.write(hubHandle, buffer);
+        } catch (Exception e) {
+            writeFailed(hubState.path);
+            throw e;
         }
-
-        usb.write(new HubHandle(hub.getPath(), hub.getProductName()), buffer);
+        written(hubState.path, valueA, valueB);
     }
 
     /**
@@ -354,7 +1191,9 @@ public class WeDoBricks implements AutoCloseable {
     }
 
     /**
-     * Read all distance sensors.
+     * Read all distance sensors. Each distance is converted with the
+     * calibration profile of the sensor that measured it, see
+     * {@link #setDistanceCalibration(String, char, DistanceCalibration)}.
      * 
      * @return The distance values. May be empty, but is never <code>null</code>
      */
@@ -364,7 +1203,8 @@ public class WeDoBricks implements AutoCloseable {
         for (final Hub hub : readAll()) {
             for (final Brick brick : hub.getBricks()) {
                 if (brick.getType() == DISTANCE) {
-                    distances.add(brick.getDistance());
+                    distances.add(brick.getDistance(getDistanceCalibration(
+                            hub.getPath(), brick.getPort())));
                 }
             }
         }
@@ -0,0 +1,177 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static org.kjkoster.wedo.bricks.Brick.FIRST_PORT;
+
+import java.util.Arrays;
+
+import org.kjkoster.wedo.bricks.Brick;
+import org.kjkoster.wedo.bricks.Brick.Type;
+import org.kjkoster.wedo.bricks.Hub;
+import org.kjkoster.wedo.transport.usb.HubHandle;
+import org.kjkoster.wedo.transport.usb.UsbPacketConsumer;
+
+/**
+ * A reusable snapshot of all WeDo hubs and their bricks. Unlike the
+ * {@link Hub} objects that {@link WeDoBricks#readAll()} returns, a snapshot is
+ * filled in place by {@link WeDoBricks#readAll(WeDoSnapshot)}. Control loops
+ * that poll at high rates can keep reusing the same snapshot, so that polling
+ * does not create any garbage.
+ * <p>
+ * The snapshot only grows when more hubs are plugged in than it has room for.
+ * Snapshots are not thread safe.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class WeDoSnapshot {
+    private static final int PORTS = 2;
+
+    private int hubCount = 0;
+    private HubHandle[] hubHandles;
+    private long[] receivedNanos;
+    private Type[] types;
+    private byte[] values;
+
+    /**
+     * The callback that fills this snapshot, cached so that reading does not
+     * allocate. It is bound to the WeDo bricks instance that created it.
+     */
+    UsbPacketConsumer filler = null;
+    WeDoBricks fillerOwner = null;
+
+    /**
+     * Create a new, empty snapshot with room for a few hubs.
+     */
+    public WeDoSnapshot() {
+        this(4);
+    }
+
+    /**
+     * Create a new, empty snapshot.
+     *
+     * @param capacity
+     *            The number of hubs to make room for.
+     */
+    public WeDoSnapshot(final int capacity) {
+        super();
+
+        checkArgument(capacity > 0, "capacity must be positive, was %s",
+                capacity);
+        hubHandles = new HubHandle[capacity];
+        receivedNanos = new long[capacity];
+        types = new Type[capacity * PORTS];
+        values = new byte[capacity * PORTS];
+    }
+
+    /**
+     * Find how many hubs were read into this snapshot.
+     *
+     * @return The number of hubs.
+     */
+    public int getHubCount() {
+        return hubCount;
+    }
+
+    /**
+     * Find the handle of a hub in this snapshot.
+     *
+     * @param hub
+     *            The index of the hub, from 0 to the hub count.
+     * @return The hub's handle.
+     */
+    public HubHandle getHubHandle(final int hub) {
+        checkElementIndex(hub, hubCount);
+        return hubHandles[hub];
+    }
+
+    /**
+     * Find when the packet for a hub was received.
+     *
+     * @param hub
+     *            The index of the hub, from 0 to the hub count.
+     * @return The moment the hub's packet was received, as
+     *         <code>System.nanoTime()</code>.
+     */
+    public long getReceivedNanos(final int hub) {
+        checkElementIndex(hub, hubCount);
+        return receivedNanos[hub];
+    }
+
+    /**
+     * Find the type of the brick on a hub's port.
+     *
+     * @param hub
+     *            The index of the hub, from 0 to the hub count.
+     * @param port
+     *            The port, 'A' or 'B'.
+     * @return The type of the brick on that port.
+     */
+    public Type getType(final int hub, final char port) {
+        return types[index(hub, port)];
+    }
+
+    /**
+     * Find the value of the brick on a hub's port.
+     *
+     * @param hub
+     *            The index of the hub, from 0 to the hub count.
+     * @param port
+     *            The port, 'A' or 'B'.
+     * @return The raw value of the brick on that port.
+     */
+    public byte getValue(final int hub, final char port) {
+        return values[index(hub, port)];
+    }
+
+    /**
+     * Convert one of the hubs in this snapshot into a hub object. This is a
+     * convenience method that allocates.
+     *
+     * @param hub
+     *            The index of the hub, from 0 to the hub count.
+     * @return The hub and its bricks.
+     */
+    public Hub toHub(final int hub) {
+        final Brick[] bricks = new Brick[PORTS];
+        for (int i = 0; i < PORTS; i++) {
+            final char port = (char) (FIRST_PORT + i);
+            bricks[i] = new Brick(port, getType(hub, port),
+                    getValue(hub, port));
+        }
+        final HubHandle hubHandle = getHubHandle(hub);
+        return new Hub(hubHandle.getPath(), hubHandle.getProductName(),
+                bricks);
+    }
+
+    private int index(final int hub, final char port) {
+        checkElementIndex(hub, hubCount);
+        final int portIndex = port - FIRST_PORT;
+        checkArgument(portIndex >= 0 && portIndex < PORTS, "no port %s",
+                port);
+        return hub * PORTS + portIndex;
+    }
+
+    void clear() {
+        hubCount = 0;
+    }
+
+    void add(final HubHandle hubHandle, final long nanos, final Type typeA,
+            final byte valueA, final Type typeB, final byte valueB) {
+        if (hubCount == hubHandles.length) {
+            final int capacity = hubHandles.length * 2;
+            hubHandles = Arrays.copyOf(hubHandles, capacity);
+            receivedNanos = Arrays.copyOf(receivedNanos, capacity);
+            types = Arrays.copyOf(types, capacity * PORTS);
+            values = Arrays.copyOf(values, capacity * PORTS);
+        }
+
+        hubHandles[hubCount] = hubHandle;
+        receivedNanos[hubCount] = nanos;
+        types[hubCount * PORTS] = typeA;
+        values[hubCount * PORTS] = valueA;
+        types[hubCount * PORTS + 1] = typeB;
+        values[hubCount * PORTS + 1] = valueB;
+        hubCount++;
+    }
+}
@@ -0,0 +1,344 @@
+package org.kjkoster.wedo.trace;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.kjkoster.wedo.bricks.Brick.Type;
+
+/**
+ * A tracer that keeps the cost of tracing out of the hot paths. Printing a
+ * trace line inline takes milliseconds, which is enough to upset the timing of
+ * the activities. Instead, the code that traces only fills in a fixed-size
+ * record in a preallocated ring buffer. A background thread formats the
+ * records and prints them.
+ * <p>
+ * Tracing never blocks and never allocates. When the ring buffer is full, the
+ * record is dropped and counted. The formatter thread reports drops in the
+ * trace, so that overload is visible.
+ * <p>
+ * The formatter thread is a daemon thread, so it does not keep the JVM alive.
+ * Call {@link #flush()} to make sure the records so far are printed. The
+ * shared tracer does so when the JVM shuts down.
+ * <p>
+ * This class is thread safe. Any number of threads may trace at the same time.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class Tracer implements Runnable, AutoCloseable {
+    /**
+     * The kinds of trace records, each with its own format. The payload of
+     * each record holds up to 8 bytes.
+     */
+    public enum Event {
+        /**
+         * A packet was read from a hub. The payload holds the 8 bytes of the
+         * packet.
+         */
+        USB_READ {
+            @Override
+            void format(final PrintStream out, final Object subject,
+                    final long payload) {
+                out.printf(
+                        "  USB read  %s: 0x%02x 0x%02x [value A: 0x%02x] [id A: 0x%02x] [value B: 0x%02x] [id B: 0x%02x] 0x%02x 0x%02x\n",
+                        subject, b(payload, 0), b(payload, 1), b(payload, 2),
+                        b(payload, 3), b(payload, 4), b(payload, 5),
+                        b(payload, 6), b(payload, 7));
+            }
+        },
+
+        /**
+         * A frame was written to a hub. The payload holds the 8 bytes after
+         * the report ID, which is always 0.
+         */
+        USB_WRITE {
+            @Override
+            void format(final PrintStream out, final Object subject,
+                    final long payload) {
+                out.printf(
+                        "  USB write %s: 0x00 0x%02x [value A: 0x%02x] [value B: 0x%02x] 0x%02x 0x%02x 0x%02x 0x%02x 0x%02x\n",
+                        subject, b(payload, 0), b(payload, 1), b(payload, 2),
+                        b(payload, 3), b(payload, 4), b(payload, 5),
+                        b(payload, 6), b(payload, 7));
+            }
+        },
+
+        /**
+         * The bricks on a hub were decoded. The payload holds the type
+         * ordinal and value for port A, followed by those for port B.
+         */
+        BRICKS_READ {
+            @Override
+            void format(final PrintStream out, final Object subject,
+                    final long payload) {
+                out.printf(
+                        "read  %s [port A: %s value: 0x%02x] [port B: %s value: 0x%02x]\n",
+                        subject, TYPES[b(payload, 0)], b(payload, 1),
+                        TYPES[b(payload, 2)], b(payload, 3));
+            }
+        },
+
+        /**
+         * New actuator values were sent to a hub. The payload holds the
+         * values for port A and B.
+         */
+        ACTUATORS_WRITE {
+            @Override
+            void format(final PrintStream out, final Object subject,
+                    final long payload) {
+                out.printf("write %s -> value A: 0x%02x value B: 0x%02x\n",
+                        subject, b(payload, 0), b(payload, 1));
+            }
+        },
+
+        /**
+         * A frame was not written, because the hub already had it. There is
+         * no payload.
+         */
+        ACTUATORS_SUPPRESSED {
+            @Override
+            void format(final PrintStream out, final Object subject,
+                    final long payload) {
+                out.printf("write %s suppressed, hub already has it\n",
+                        subject);
+            }
+        };
+
+        abstract void format(PrintStream out, Object subject, long payload);
+    }
+
+    private static final Event[] EVENTS = Event.values();
+    private static final Type[] TYPES = Type.values();
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final long IDLE_PARK_NANOS = MILLISECONDS.toNanos(1L);
+    private static final long FLUSH_TIMEOUT_NANOS = SECONDS.toNanos(2L);
+
+    private static Tracer systemOut = null;
+
+    private final PrintStream out;
+    private final int mask;
+
+    // the records, one slot per array index
+    private final AtomicLongArray sequences;
+    private final int[] events;
+    private final Object[] subjects;
+    private final long[] payloads;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Find the shared tracer that prints to standard out. It is started the
+     * first time it is needed. Sharing one tracer keeps the records of the
+     * different layers in the order in which they happened.
+     * <p>
+     * The shared tracer is flushed when the JVM shuts down, so that the last
+     * records are not lost when the program calls {@link System#exit(int)}.
+     *
+     * @return The shared tracer.
+     */
+    public static synchronized Tracer getSystemOut() {
+        if (systemOut == null) {
+            final Tracer tracer = new Tracer(System.out, DEFAULT_CAPACITY);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    tracer.flush();
+                }
+            }, "trace flusher"));
+            systemOut = tracer;
+        }
+        return systemOut;
+    }
+
+    /**
+     * Start a new tracer with its own formatter thread.
+     *
+     * @param out
+     *            Where to print the formatted records.
+     * @param capacity
+     *            The number of records to buffer, a power of two.
+     */
+    public Tracer(final PrintStream out, final int capacity) {
+        super();
+
+        checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+                "capacity must be a power of two, was %s", capacity);
+        this.out = checkNotNull(out);
+        mask = capacity - 1;
+
+        sequences = new AtomicLongArray(capacity);
+        events = new int[capacity];
+        subjects = new Object[capacity];
+        payloads = new long[capacity];
+
+        thread = new Thread(this, "trace formatter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Add a record to the trace. This method never blocks. If the ring buffer
+     * is full, the record is dropped.
+     *
+     * @param event
+     *            The kind of record.
+     * @param subject
+     *            What the record is about, usually a hub handle. It is
+     *            formatted later, on another thread, so it should be
+     *            immutable.
+     * @param payload
+     *            Up to 8 bytes of data, packed into a long with the first
+     *            byte in the least significant position.
+     */
+    public void trace(final Event event, final Object subject,
+            final long payload) {
+        long index;
+        do {
+            index = claimed.get();
+            if (index - consumed.get() > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(index, index + 1L));
+
+        final int slot = (int) index & mask;
+        events[slot] = event.ordinal();
+        subjects[slot] = subject;
+        payloads[slot] = payload;
+        sequences.lazySet(slot, index + 1L); // publishes the record
+    }
+
+    /**
+     * Add a record with 8 bytes from a buffer to the trace.
+     *
+     * @param event
+     *            The kind of record.
+     * @param subject
+     *            What the record is about, usually a hub handle.
+     * @param buffer
+     *            The buffer to take the payload from.
+     * @param offset
+     *            The index of the first of the 8 bytes to trace.
+     */
+    public void trace(final Event event, final Object subject,
+            final byte[] buffer, final int offset) {
+        long payload = 0L;
+        for (int i = 0; i < 8; i++) {
+            payload |= (buffer[offset + i] & 0xffL) << (i * 8);
+        }
+        trace(event, subject, payload);
+    }
+
+    /**
+     * Pack 4 bytes into a payload, the first byte in the least significant
+     * position.
+     *
+     * @return The payload.
+     */
+    public static long pack(final int b0, final int b1, final int b2,
+            final int b3) {
+        return (b0 & 0xffL) | (b1 & 0xffL) << 8 | (b2 & 0xffL) << 16
+                | (b3 & 0xffL) << 24;
+    }
+
+    /**
+     * Count the records that were dropped because the ring buffer was full.
+     *
+     * @return The number of dropped records.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Count the records that were formatted and printed.
+     *
+     * @return The number of printed records.
+     */
+    public long getPrinted() {
+        return consumed.get();
+    }
+
+    /**
+     * Wait for the records that were traced so far to be printed and for the
+     * output to be flushed. Records that are traced while we wait may or may
+     * not be printed. The wait is limited to a few seconds, so that a stuck
+     * output does not hang the caller.
+     *
+     * @return <code>true</code> if the records were printed in time.
+     */
+    public boolean flush() {
+        final long target = claimed.get();
+        final long deadline = nanoTime() + FLUSH_TIMEOUT_NANOS;
+        while (flushed.get() < target) {
+            if (!thread.isAlive() || nanoTime() - deadline >= 0L) {
+                return false;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        long reportedDropped = 0L;
+        long index = consumed.get();
+        while (running || index < claimed.get()) {
+            final int slot = (int) index & mask;
+            if (sequences.get(slot) != index + 1L) {
+                out.flush();
+                flushed.lazySet(index);
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            final Event event = EVENTS[events[slot]];
+            final Object subject = subjects[slot];
+            final long payload = payloads[slot];
+            subjects[slot] = null;
+            consumed.lazySet(++index);
+
+            final long droppedNow = dropped.get();
+            if (droppedNow != reportedDropped) {
+                out.printf("trace overloaded, %d records dropped\n",
+                        droppedNow - reportedDropped);
+                reportedDropped = droppedNow;
+            }
+            event.format(out, subject, payload);
+        }
+        out.flush();
+        flushed.lazySet(index);
+    }
+
+    /**
+     * Print the remaining records and stop the formatter thread.
+     *
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+
+    private static int b(final long payload, final int index) {
+        return (int) (payload >>> (index * 8)) & 0xff;
+    }
+}
@@ -3,6 +3,8 @@ package org.kjkoster.wedo.transport.ble112;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.Arrays;
+
 import org.thingml.bglib.BDAddr;
 
 import com.google.common.hash.HashCode;
@@ -111,9 +113,7 @@ public class BLE112Address {
      */
     @Override
     public int hashCode() {
-        return macBytes[5] << 41 | macBytes[4] << 33 | macBytes[3] << 25
-                | macBytes[2] << 17 | macBytes[1] << 9 | macBytes[0] << 1
-                | address_type;
+        return Arrays.hashCode(macBytes) * 2 + address_type;
     }
 
     /**
@@ -127,9 +127,9 @@ public class BLE112Address {
         if (!(obj instanceof BLE112Address)) {
             return false;
         }
-        // This is usually a bad idea, but we have the entire address encoded in
-        // the hashCode. Might as well use it.
-        return hashCode() == obj.hashCode();
+        final BLE112Address other = (BLE112Address) obj;
+        return address_type == other.address_type
+                && Arrays.equals(macBytes, other.macBytes);
     }
 
     /**
@@ -0,0 +1,23 @@
+package org.kjkoster.wedo.transport.ble112;
+
+/**
+ * A listener that is told when {@link BLE112Connections} connects to a hub.
+ * When there are more hubs than the dongle has connections, hubs take turns,
+ * and this is the moment to send the commands that were waiting for the hub.
+ * <p>
+ * Listeners are called on the BGAPI receive thread. They should return
+ * quickly.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public interface BLE112ConnectionListener {
+    /**
+     * A hub was connected.
+     *
+     * @param ble112Address
+     *            The hub that was connected.
+     * @param connection
+     *            The connection handle, for further BGAPI calls.
+     */
+    void connected(BLE112Address ble112Address, int connection);
+}
@@ -1,19 +1,31 @@
 package org.kjkoster.wedo.transport.ble112;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.System.nanoTime;
 import static java.lang.System.out;
-import static java.lang.Thread.sleep;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import static org.kjkoster.wedo.transport.ble112.BLE112Connections.State.CONNECTED;
+import static org.kjkoster.wedo.transport.ble112.BLE112Connections.State.CONNECTING;
+import static org.kjkoster.wedo.transport.ble112.BLE112Connections.State.DISCONNECTING;
+import static org.kjkoster.wedo.transport.ble112.BLE112Connections.State.IDLE;
+
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.thingml.bglib.BDAddr;
 import org.thingml.bglib.BGAPI;
@@ -25,11 +37,65 @@ import lombok.SneakyThrows;
  * A central connection manager to establish and maintain Bluetooth Low Energy
  * connections. Hubs are passed to this connection manager, who will then be
  * able to provide connection ID's for further BGAPI calls.
+ * <p>
+ * The BLE112 runs one connection procedure at a time. Rather than polling, a
+ * scheduler thread starts the next connection procedure as soon as the
+ * previous one resolved, either because the dongle reported the connection,
+ * or because it refused the request. Hubs that do not answer within
+ * {@link #CONNECT_TIMEOUT_MILLIS} are skipped, so that they do not hold up
+ * the others. Each hub that fails to connect is retried with exponential
+ * backoff and some random jitter, and hubs that have commands waiting for
+ * them go first.
+ * <p>
+ * The dongle only supports a few connections at a time, see
+ * {@link #getMaxConnections()}. When there are more hubs than that, hubs can
+ * take turns, see {@link #setTimeSlice(long, TimeUnit)}. A hub with commands
+ * waiting for it then takes the connection of the hub that was used least
+ * recently, and the newest commands go out as soon as it is connected, see
+ * {@link BLE112ConnectionListener}.
+ * <p>
+ * Rather than sleeping and hoping for the best, callers can wait for hubs to
+ * be connected, see {@link #awaitConnected(BLE112Address, long, TimeUnit)}
+ * and {@link #awaitAllConnected(long, TimeUnit)}. Closing is asynchronous
+ * too, see {@link #closeAsync()}. The futures are completed on the scheduler
+ * thread or on the BGAPI receive thread, so their callbacks should not
+ * block.
+ * <p>
+ * This class is thread safe. Each hub's connection goes through a small state
+ * machine, see {@link State}, with atomic transitions. Finding a hub's
+ * connection does not take any locks, so that the actuator paths never wait
+ * for the scheduler or for BGAPI events.
  *
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 public class BLE112Connections extends BGAPIDefaultListener
         implements AutoCloseable {
+    /**
+     * The states that the connection to a hub goes through.
+     */
+    public enum State {
+        /**
+         * Not connected, and not trying to connect.
+         */
+        IDLE,
+
+        /**
+         * A connection procedure for the hub is running.
+         */
+        CONNECTING,
+
+        /**
+         * Connected, commands can be sent.
+         */
+        CONNECTED,
+
+        /**
+         * We asked the dongle to close the connection, and wait for it to
+         * confirm.
+         */
+        DISCONNECTING
+    }
+
     /**
      * The minimum connection event interval. This value is measured in 1.25 ms
      * units and has a range of 7.5 ms to 4 seconds.
@@ -56,19 +122,91 @@ public class BLE112Connections extends BGAPIDefaultListener
      */
     public static final int CONN_LATENCY = 0x00;
 
+    /**
+     * How long we give a hub to answer a connection request, before we give
+     * up on it and move on to the next hub.
+     */
+    public static final long CONNECT_TIMEOUT_MILLIS = 1000L;
+
+    /**
+     * How long we wait for the dongle to confirm the disconnects when
+     * closing. This is well over the supervision timeout, so a dongle that
+     * did not confirm by then never will.
+     */
+    private static final long CLOSE_TIMEOUT_NANOS = SECONDS.toNanos(2L);
+
+    /**
+     * The number of connections that a BLE112 supports out of the box. We
+     * assume this until the dongle tells us how many it supports.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS = 3;
+
+    private static final long MIN_BACKOFF_NANOS = MILLISECONDS.toNanos(250L);
+    private static final long MAX_BACKOFF_NANOS = SECONDS.toNanos(16L);
+
+    /**
+     * How long the scheduler sleeps when there is nothing to do. Events wake
+     * it up sooner, this is just a safety net.
+     */
+    private static final long IDLE_NANOS = SECONDS.toNanos(1L);
+
     private final BGAPI bgapi;
-    private final Thread watchdog;
+    private final Thread scheduler;
+    private final Random random = new Random();
 
     /**
      * Our records of the connections that we maintain. This class works to
      * maintain a stable connection to each item on this map.
      */
-    private final Map<BLE112Address, Integer> connections = new HashMap<>();
+    private final Map<BLE112Address, BLE112Link> links = new ConcurrentHashMap<>();
 
     /**
      * A set of connections that we should disconnect and the next opportunity.
      */
-    private final Set<Integer> toDisconnect = new HashSet<>();
+    private final Set<Integer> toDisconnect = ConcurrentHashMap.newKeySet();
+
+    private final List<BLE112ConnectionListener> connectionListeners = new CopyOnWriteArrayList<>();
+
+    private volatile boolean closing = false;
+
+    /**
+     * Completed when the connection manager has closed.
+     */
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    /**
+     * The number of connections the dongle supports, or 0 until it told us.
+     */
+    private volatile int maxConnections = 0;
+
+    /**
+     * How long a hub keeps its connection before it has to give it up for a
+     * hub with waiting commands, or -1 if hubs do not take turns.
+     */
+    private volatile long timeSliceNanos = -1L;
+
+    /**
+     * The hub that the running connection procedure is for, or
+     * <code>null</code> if no procedure is running. This and the fields below
+     * are guarded by <code>this</code>.
+     */
+    private BLE112Link connecting = null;
+    private long procedureDeadlineNanos;
+    private boolean endingProcedure = false;
+
+    private boolean running = true;
+    private long closeDeadlineNanos;
+    private boolean closeTimedOut = false;
+
+    /**
+     * The deadlines of the futures handed out by
+     * {@link #awaitConnected(BLE112Address, long, TimeUnit)}.
+     */
+    private final Map<CompletableFuture<Integer>, Long> deadlines = new HashMap<>();
+
+    private boolean allConnected = true;
+    private long unconnectedSinceNanos;
+    private long timeToAllConnectedNanos = -1L;
 
     /**
      * Set up a new connection manager.
@@ -76,103 +214,379 @@ public class BLE112Connections extends BGAPIDefaultListener
      * @param bgapi
      *            The BGAPI to use.
      */
-    @SneakyThrows
     public BLE112Connections(final BGAPI bgapi) {
         super();
 
         checkNotNull(bgapi, "null bgapi");
         this.bgapi = bgapi;
 
-        // clear any lingering connections before we start connecting
-        toDisconnect.add(0);
-        toDisconnect.add(1);
-        toDisconnect.add(2);
+        // clear any lingering connections before we start connecting, the
+        // rest once the dongle told us how many connections it has
+        disconnectAll();
 
         bgapi.addListener(this);
-        checkConnections();
+        bgapi.send_system_get_connections();
 
-        watchdog = new Thread(new Runnable() {
+        scheduler = new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
-                    for (;;) {
-                        sleep(SECONDS.toMillis(2L));
-                        checkConnections();
-                    }
+                    schedule();
                 } catch (InterruptedException e) {
                     return;// clean shutdown
                 } catch (Throwable e) {
                     e.printStackTrace();
+                } finally {
+                    stopped();
                 }
             }
-        }, "BLE112 connections watchdog");
-        watchdog.start();
+        }, "BLE112 connection scheduler");
+        scheduler.start();
     }
 
     /**
+     * Close the connection manager and wait for it to finish, see
+     * {@link #closeAsync()}. Throws a {@link TimeoutException} if the dongle
+     * did not confirm the disconnects in time.
+     * 
      * @see java.lang.AutoCloseable#close()
      */
     @Override
     @SneakyThrows
     public void close() throws IOException {
-        toDisconnect.addAll(connections.values());
-        connections.clear();
+        try {
+            closeAsync().get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
 
-        toDisconnect.add(0);
-        toDisconnect.add(1);
-        toDisconnect.add(2);
+    /**
+     * Start closing the connection manager. All hubs are disconnected and no
+     * new connections are made.
+     * 
+     * @return A future that completes when the dongle confirmed each
+     *         disconnect, or that completes with a {@link TimeoutException}
+     *         when it failed to do so within a couple of seconds.
+     */
+    public CompletableFuture<Void> closeAsync() {
+        synchronized (this) {
+            if (!closing) {
+                closing = true;
+                closeDeadlineNanos = nanoTime() + CLOSE_TIMEOUT_NANOS;
+                for (final BLE112Link link : links.values()) {
+                    disconnect(link);
+                }
 
-        while (toDisconnect.size() > 0) {
-            sleep(MILLISECONDS.toMillis(100L));
+                disconnectAll();
+                notifyAll();
+            }
         }
+        return closed;
+    }
 
-        watchdog.interrupt();
-        bgapi.removeListener(this);
-        watchdog.join();
+    /**
+     * Disconnect every connection handle that the dongle has, including the
+     * ones that we do not know about.
+     */
+    private void disconnectAll() {
+        final int max = maxConnections;
+        final int count = max > 0 ? max : DEFAULT_MAX_CONNECTIONS;
+        for (int connection = 0; connection < count; connection++) {
+            toDisconnect.add(connection);
+        }
     }
 
-    private void checkConnections() {
-        if (toDisconnect.size() > 0) {
-            closeAnyConnection();
+    /**
+     * The scheduler stopped. Let go of the dongle and fail anyone still
+     * waiting for a connection.
+     */
+    private void stopped() {
+        bgapi.removeListener(this);
+
+        final List<CompletableFuture<Integer>> waiting = new ArrayList<>();
+        final boolean timedOut;
+        synchronized (this) {
+            running = false;
+            timedOut = closeTimedOut;
+            waiting.addAll(deadlines.keySet());
+            deadlines.clear();
+        }
+        for (final BLE112Link link : links.values()) {
+            waiting.addAll(link.waiters);
+            link.waiters.clear();
+        }
+        for (final CompletableFuture<Integer> connected : waiting) {
+            connected.completeExceptionally(
+                    new IllegalStateException("connection manager closed"));
+        }
+        if (timedOut) {
+            closed.completeExceptionally(new TimeoutException(
+                    "dongle did not confirm the disconnects in time"));
         } else {
-            openAnyNewConnection();
+            closed.complete(null);
         }
     }
 
-    private void closeAnyConnection() {
-        final Integer connection = toDisconnect.iterator().next();
-        toDisconnect.remove(connection);
-
+    private void disconnect(final BLE112Link link) {
+        final Integer connection = link.disconnecting();
         if (connection != null) {
-            bgapi.send_connection_disconnect(connection);
+            toDisconnect.add(connection);
+        }
+    }
+
+    private synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * The scheduler loop. Each time something happens, or a deadline passes,
+     * we see if there is a next step to take.
+     */
+    private synchronized void schedule() throws InterruptedException {
+        while (running) {
+            final long now = nanoTime();
+            final long waitNanos = Math.min(step(now), expire(now));
+            NANOSECONDS.timedWait(this, waitNanos);
+        }
+    }
+
+    /**
+     * Time out the futures of hubs that did not connect in time. Call while
+     * holding the lock.
+     * 
+     * @return How long until the next future times out.
+     */
+    private long expire(final long now) {
+        long waitNanos = IDLE_NANOS;
+        final Iterator<Map.Entry<CompletableFuture<Integer>, Long>> i = deadlines
+                .entrySet().iterator();
+        while (i.hasNext()) {
+            final Map.Entry<CompletableFuture<Integer>, Long> deadline = i
+                    .next();
+            final CompletableFuture<Integer> connected = deadline.getKey();
+            final long untilDeadline = deadline.getValue() - now;
+            if (connected.isDone()) {
+                i.remove();
+            } else if (untilDeadline <= 0L) {
+                i.remove();
+                for (final BLE112Link link : links.values()) {
+                    link.waiters.remove(connected);
+                }
+                connected.completeExceptionally(
+                        new TimeoutException("hub did not connect in time"));
+            } else {
+                waitNanos = Math.min(waitNanos, untilDeadline);
+            }
         }
+        return waitNanos;
     }
 
     /**
-     * Connect to an SBrick. We pick a random, unconnected brick to connect to.
-     * That way we don't get stuck trying to connect to bricks that never
-     * respond.
+     * Take the next step in maintaining the connections. Call while holding
+     * the lock.
+     * 
+     * @return How long to wait before the next step, unless something happens
+     *         first.
      */
-    private void openAnyNewConnection() {
-        final List<BLE112Address> unconnected = new ArrayList<>(
-                connections.size());
-        for (final Map.Entry<BLE112Address, Integer> connection : connections
-                .entrySet()) {
-            if (connection.getValue() == null) {
-                unconnected.add(connection.getKey());
+    private long step(final long now) {
+        // disconnects first, they free up connections for the hubs
+        for (final Integer connection : toDisconnect) {
+            if (toDisconnect.remove(connection)) {
+                bgapi.send_connection_disconnect(connection);
             }
         }
 
-        if (unconnected.size() == 0) {
-            return; // nothing to connect, bail out...
+        if (connecting != null) {
+            if (now - procedureDeadlineNanos < 0L) {
+                if (closing && !endingProcedure) {
+                    endProcedure(now);
+                }
+                return procedureDeadlineNanos - now;
+            }
+
+            if (endingProcedure) {
+                // the dongle never confirmed, assume it is done
+                endingProcedure = false;
+                connecting.failed();
+                connecting = null;
+            } else {
+                // the hub did not answer, try the others first
+                out.printf("ble112: %s did not answer.\n", connecting.address);
+                backOff(connecting, now);
+                endProcedure(now);
+                return procedureDeadlineNanos - now;
+            }
         }
 
-        Collections.shuffle(unconnected);
-        final BLE112Address connection = unconnected.get(0);
-        out.printf("ble112: connecting to %s...\n", connection);
-        bgapi.send_gap_connect_direct(connection.getBDAddr(),
-                connection.getAddress_type(), CONN_INTERVAL_MIN,
+        if (closing) {
+            if (toDisconnect.isEmpty() && isIdle()) {
+                running = false;
+                return 0L;
+            }
+            if (now - closeDeadlineNanos >= 0L) {
+                closeTimedOut = true;
+                running = false;
+                return 0L;
+            }
+            return closeDeadlineNanos - now;
+        }
+        return connectNext(now);
+    }
+
+    private boolean isIdle() {
+        for (final BLE112Link link : links.values()) {
+            if (link.getState() != IDLE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void endProcedure(final long now) {
+        endingProcedure = true;
+        procedureDeadlineNanos = now + MILLISECONDS.toNanos(
+                CONNECT_TIMEOUT_MILLIS);
+        bgapi.send_gap_end_procedure();
+    }
+
+    /**
+     * Connect to the next idle hub that is due. Hubs with pending commands go
+     * first, then the hubs that have been waiting longest.
+     * 
+     * @return How long to wait before the next step.
+     */
+    private long connectNext(final long now) {
+        BLE112Link next = null;
+        long waitNanos = IDLE_NANOS;
+        for (final BLE112Link link : links.values()) {
+            if (link.getState() != IDLE || link.removed) {
+                continue;
+            }
+
+            final long untilDue = link.dueNanos - now;
+            if (untilDue > 0L) {
+                waitNanos = Math.min(waitNanos, untilDue);
+            } else if (next == null || (link.pending && !next.pending)
+                    || (link.pending == next.pending
+                            && link.dueNanos - next.dueNanos < 0L)) {
+                next = link;
+            }
+        }
+
+        if (next == null) {
+            return waitNanos;
+        }
+        final int max = maxConnections;
+        if (max > 0 && countConnections() >= max) {
+            return next.pending ? Math.min(waitNanos, evict(now))
+                    : waitNanos;
+        }
+        if (!next.connecting()) {
+            return 0L; // the hub changed state under us, look again
+        }
+
+        connecting = next;
+        procedureDeadlineNanos = now + MILLISECONDS.toNanos(
+                CONNECT_TIMEOUT_MILLIS);
+        out.printf("ble112: connecting to %s...\n", next.address);
+        bgapi.send_gap_connect_direct(next.address.getBDAddr(),
+                next.address.getAddress_type(), CONN_INTERVAL_MIN,
                 CONN_INTERVAL_MAX, CONN_TIMEOUT, CONN_LATENCY);
+        return procedureDeadlineNanos - now;
+    }
+
+    private int countConnections() {
+        int count = 0;
+        for (final BLE112Link link : links.values()) {
+            final State state = link.getState();
+            if (state == CONNECTED || state == CONNECTING
+                    || state == DISCONNECTING) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Make room for a hub with waiting commands, by disconnecting the hub that
+     * was used least recently. Hubs with waiting commands of their own and
+     * hubs that did not have their time slice yet are left alone.
+     * 
+     * @return How long to wait before looking again.
+     */
+    private long evict(final long now) {
+        final long slice = timeSliceNanos;
+        if (slice < 0L) {
+            return IDLE_NANOS;
+        }
+
+        BLE112Link victim = null;
+        long waitNanos = IDLE_NANOS;
+        for (final BLE112Link link : links.values()) {
+            if (link.getState() == DISCONNECTING) {
+                return IDLE_NANOS; // we are already making room
+            }
+            if (link.getState() != CONNECTED || link.pending) {
+                continue;
+            }
+
+            final long untilSliceEnds = link.connectedNanos + slice - now;
+            if (untilSliceEnds > 0L) {
+                waitNanos = Math.min(waitNanos, untilSliceEnds);
+            } else if (victim == null
+                    || link.lastUsedNanos - victim.lastUsedNanos < 0L) {
+                victim = link;
+            }
+        }
+        if (victim == null) {
+            return waitNanos;
+        }
+
+        out.printf("ble112: disconnecting %s to make room.\n",
+                victim.address);
+        disconnect(victim);
+        return 0L; // the victim's disconnect goes out first
+    }
+
+    /**
+     * A hub failed to connect. Back off exponentially, with jitter so that
+     * hubs that failed together do not keep getting in each other's way. Call
+     * while holding the lock.
+     */
+    private void backOff(final BLE112Link link, final long now) {
+        final long backoffNanos = Math.min(MAX_BACKOFF_NANOS,
+                MIN_BACKOFF_NANOS << Math.min(link.failures, 16));
+        link.failures++;
+        link.dueNanos = now + backoffNanos / 2L
+                + (long) (random.nextDouble() * (backoffNanos / 2L));
+    }
+
+    /**
+     * A hub lost its connection, or was added. Start the clock for
+     * {@link #getTimeToAllConnected(TimeUnit)}. Call while holding the lock.
+     */
+    private void unconnected(final long now) {
+        if (allConnected) {
+            allConnected = false;
+            unconnectedSinceNanos = now;
+        }
+    }
+
+    private void connected(final long now) {
+        for (final BLE112Link link : links.values()) {
+            if (link.getState() != CONNECTED && !link.removed) {
+                return;
+            }
+        }
+
+        if (!allConnected) {
+            allConnected = true;
+            timeToAllConnectedNanos = now - unconnectedSinceNanos;
+            out.printf("ble112: all %d hubs connected in %d ms.\n",
+                    links.size(),
+                    NANOSECONDS.toMillis(timeToAllConnectedNanos));
+        }
     }
 
     /**
@@ -180,23 +594,61 @@ public class BLE112Connections extends BGAPIDefaultListener
      *      int, org.thingml.bglib.BDAddr, int, int, int, int, int)
      */
     @Override
-    public void receive_connection_status(final int connection, final int flags,
-            final BDAddr address, final int address_type,
+    public void receive_connection_status(final int connection,
+            final int flags, final BDAddr address, final int address_type,
             final int conn_interval, final int timeout, final int latency,
             final int bonding) {
-        if (flags != 0x00) {
-            // connected, remember the connection ID
-            connections.put(new BLE112Address(address, address_type),
-                    connection);
-            out.printf("ble112: connection %d to %s.\n", connection,
-                    address.toString());
-        } else {
+        if (flags == 0x00) {
             // disconnected, clear the connection ID
-            connections.put(new BLE112Address(address, address_type), null);
-            out.printf("ble112: disconnected from %s.\n", address.toString());
+            disconnected(connection);
+            return;
         }
 
-        checkConnections();
+        out.printf("ble112: connection %d to %s.\n", connection,
+                address.toString());
+        final BLE112Link link = links
+                .get(new BLE112Address(address, address_type));
+        if (link == null) {
+            return; // not one of ours
+        }
+        if (!link.connected(connection)) {
+            // we are closing this one
+            toDisconnect.add(connection);
+            wakeUp();
+            return;
+        }
+        if (link.removed || closing) {
+            // the hub moved to another dongle while we were connecting, or
+            // we are closing
+            disconnect(link);
+            wakeUp();
+            return;
+        }
+
+        final long now = nanoTime();
+        link.connectedNanos = now;
+        link.lastUsedNanos = now;
+        if (link.pending) {
+            link.maxStalenessNanos = Math.max(link.maxStalenessNanos,
+                    now - link.pendingSinceNanos);
+            link.pending = false;
+        }
+        synchronized (this) {
+            link.failures = 0;
+            if (connecting == link && !endingProcedure) {
+                connecting = null;
+            }
+            connected(now);
+            notifyAll();
+        }
+
+        for (final BLE112ConnectionListener connectionListener : connectionListeners) {
+            connectionListener.connected(link.address, connection);
+        }
+        for (CompletableFuture<Integer> connected = link.waiters
+                .poll(); connected != null; connected = link.waiters.poll()) {
+            connected.complete(connection);
+        }
     }
 
     /**
@@ -206,19 +658,35 @@ public class BLE112Connections extends BGAPIDefaultListener
     @Override
     public void receive_connection_disconnected(final int connection,
             final int reason) {
-        for (final Map.Entry<BLE112Address, Integer> conn : connections
-                .entrySet()) {
-            final Integer connectionId = conn.getValue();
-            if (connectionId != null && connection == connectionId) {
-                conn.setValue(null);
-                out.printf("ble112: disconnected from %s.\n",
-                        conn.getKey().toString());
-
-                break; // found the entry, break the loop
-            }
+        disconnected(connection);
+    }
+
+    /**
+     * @see org.thingml.bglib.BGAPIDefaultListener#receive_connection_disconnect(int,
+     *      int)
+     */
+    @Override
+    public void receive_connection_disconnect(final int connection,
+            final int result) {
+        if (result != 0x0000) {
+            // the connection was already gone
+            disconnected(connection);
         }
+    }
 
-        checkConnections();
+    private void disconnected(final int connection) {
+        for (final BLE112Link link : links.values()) {
+            if (link.disconnected(connection)) {
+                out.printf("ble112: disconnected from %s.\n", link.address);
+                synchronized (this) {
+                    final long now = nanoTime();
+                    link.dueNanos = now; // reconnect straight away
+                    unconnected(now);
+                    notifyAll();
+                }
+                return; // found the entry, stop looking
+            }
+        }
     }
 
     /**
@@ -226,11 +694,11 @@ public class BLE112Connections extends BGAPIDefaultListener
      *      int)
      */
     @Override
-    public void receive_gap_connect_direct(final int result,
+    public synchronized void receive_gap_connect_direct(final int result,
             final int connection_handle) {
         switch (result) {
         case 0x0000: /* ok */
-            break;
+            return; // now we wait for the connection status
         case 0x0209: /* connection limit exceeded */
             // force a reconnect
             toDisconnect.add(connection_handle);
@@ -238,6 +706,56 @@ public class BLE112Connections extends BGAPIDefaultListener
         default:
             out.printf("ble112: connection error 0x%04x.\n", result);
         }
+
+        // the procedure did not start, so the next one may
+        if (connecting != null && !endingProcedure) {
+            backOff(connecting, nanoTime());
+            connecting.failed();
+            connecting = null;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @see org.thingml.bglib.BGAPIDefaultListener#receive_system_get_connections(int)
+     */
+    @Override
+    public void receive_system_get_connections(final int maxconn) {
+        final int max = maxConnections;
+        maxConnections = maxconn;
+        if (max == 0) {
+            // the constructor only cleared the handles that every dongle has
+            for (int connection = DEFAULT_MAX_CONNECTIONS;
+                    connection < maxconn; connection++) {
+                if (!isOurs(connection)) {
+                    toDisconnect.add(connection);
+                }
+            }
+        }
+        wakeUp();
+    }
+
+    private boolean isOurs(final int connection) {
+        for (final BLE112Link link : links.values()) {
+            final Integer linkConnection = link.getConnection();
+            if (linkConnection != null && linkConnection == connection) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @see org.thingml.bglib.BGAPIDefaultListener#receive_gap_end_procedure(int)
+     */
+    @Override
+    public synchronized void receive_gap_end_procedure(final int result) {
+        if (endingProcedure) {
+            endingProcedure = false;
+            connecting.failed();
+            connecting = null;
+            notifyAll();
+        }
     }
 
     /**
@@ -247,13 +765,204 @@ public class BLE112Connections extends BGAPIDefaultListener
      *            The address of the hub to maintain a connection with.
      */
     public void add(final BLE112Address ble112Address) {
-        connections.putIfAbsent(ble112Address, null);
+        checkNotNull(ble112Address, "null address");
+        if (closing) {
+            return;
+        }
+
+        synchronized (this) {
+            final long now = nanoTime();
+            final BLE112Link link = links.get(ble112Address);
+            if (link == null) {
+                links.put(ble112Address, new BLE112Link(ble112Address, now));
+            } else if (link.removed) {
+                link.failures = 0;
+                link.dueNanos = now;
+                link.removed = false;
+            } else {
+                return;
+            }
+            unconnected(now);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stop maintaining the connection to a hub, for example because it moved
+     * to another dongle. If the hub is connected, it is disconnected.
+     * 
+     * @param ble112Address
+     *            The hub to let go of.
+     */
+    public void remove(final BLE112Address ble112Address) {
+        final BLE112Link link = links.get(ble112Address);
+        if (link == null || link.removed) {
+            return;
+        }
 
-        checkConnections();
+        synchronized (this) {
+            link.removed = true;
+            link.pending = false;
+            if (connecting == link && !endingProcedure) {
+                endProcedure(nanoTime());
+            }
+            disconnect(link);
+            connected(nanoTime());
+            notifyAll();
+        }
+    }
+
+    /**
+     * Tell the connection manager that there are commands waiting for a hub
+     * that is not connected. Hubs with pending commands are connected first,
+     * without waiting out the back-off of earlier failed attempts.
+     * 
+     * @param ble112Address
+     *            The hub that commands are waiting for.
+     */
+    public void commandPending(final BLE112Address ble112Address) {
+        final BLE112Link link = links.get(ble112Address);
+        if (link != null && link.getState() != CONNECTED && !link.pending
+                && !link.removed) {
+            final long now = nanoTime();
+            link.pendingSinceNanos = now;
+            link.pending = true;
+            if (link.getState() == CONNECTED) {
+                // it got connected between our check and setting the flag,
+                // and the connection status handler may not have seen it
+                link.pending = false;
+                return;
+            }
+            synchronized (this) {
+                if (link.dueNanos - now > 0L) {
+                    link.dueNanos = now;
+                }
+                notifyAll();
+            }
+        }
     }
 
     /**
-     * Find the connection ID for a particular hub.
+     * Tell the connection manager that a hub's connection was just used. When
+     * hubs take turns, the hub that was used least recently gives up its
+     * connection first.
+     * 
+     * @param ble112Address
+     *            The hub that was used.
+     */
+    public void used(final BLE112Address ble112Address) {
+        final BLE112Link link = links.get(ble112Address);
+        if (link != null) {
+            link.lastUsedNanos = nanoTime();
+        }
+    }
+
+    /**
+     * Register a listener to be told when hubs are connected.
+     * 
+     * @param connectionListener
+     *            The listener to add.
+     */
+    public void addConnectionListener(
+            final BLE112ConnectionListener connectionListener) {
+        connectionListeners.add(checkNotNull(connectionListener));
+    }
+
+    /**
+     * Remove a previously registered connection listener.
+     * 
+     * @param connectionListener
+     *            The listener to remove.
+     */
+    public void removeConnectionListener(
+            final BLE112ConnectionListener connectionListener) {
+        connectionListeners.remove(connectionListener);
+    }
+
+    /**
+     * Find the number of connections that the dongle supports. The dongle is
+     * asked when this connection manager starts.
+     * 
+     * @return The number of connections, or 0 if the dongle did not answer
+     *         yet.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Let hubs take turns when there are more hubs than the dongle has
+     * connections. A hub with waiting commands takes over the connection of
+     * the hub that was used least recently, but only after that hub held its
+     * connection for at least the time slice. A longer time slice means fewer
+     * reconnects, a shorter one means commands wait less. By default, hubs do
+     * not take turns and the hubs that were connected first keep their
+     * connections.
+     * 
+     * @param timeSlice
+     *            The shortest time a hub keeps its connection, or -1 to stop
+     *            taking turns.
+     * @param unit
+     *            The unit of the time slice.
+     */
+    public void setTimeSlice(final long timeSlice, final TimeUnit unit) {
+        timeSliceNanos = timeSlice < 0L ? -1L : unit.toNanos(timeSlice);
+        wakeUp();
+    }
+
+    /**
+     * Find the time slice that hubs take turns with, see
+     * {@link #setTimeSlice(long, TimeUnit)}.
+     * 
+     * @param unit
+     *            The unit to express the time slice in.
+     * @return The time slice, or -1 if hubs do not take turns.
+     */
+    public long getTimeSlice(final TimeUnit unit) {
+        final long slice = timeSliceNanos;
+        return slice < 0L ? -1L : unit.convert(slice, NANOSECONDS);
+    }
+
+    /**
+     * Find how long the commands for a hub have been waiting for a
+     * connection.
+     * 
+     * @param ble112Address
+     *            The hub to check.
+     * @param unit
+     *            The unit to express the time in.
+     * @return How long commands have been waiting, or 0 if there are no
+     *         waiting commands.
+     */
+    public long getStaleness(final BLE112Address ble112Address,
+            final TimeUnit unit) {
+        final BLE112Link link = links.get(ble112Address);
+        if (link == null || !link.pending) {
+            return 0L;
+        }
+        return unit.convert(nanoTime() - link.pendingSinceNanos, NANOSECONDS);
+    }
+
+    /**
+     * Find the longest time that commands for a hub had to wait for a
+     * connection.
+     * 
+     * @param ble112Address
+     *            The hub to check.
+     * @param unit
+     *            The unit to express the time in.
+     * @return The longest wait so far.
+     */
+    public long getMaxStaleness(final BLE112Address ble112Address,
+            final TimeUnit unit) {
+        final BLE112Link link = links.get(ble112Address);
+        return link == null ? 0L
+                : unit.convert(link.maxStalenessNanos, NANOSECONDS);
+    }
+
+    /**
+     * Find the connection ID for a particular hub. This method does not take
+     * any locks.
      * 
      * @param ble112Address
      *            The hub to check the connection ID for.
@@ -262,6 +971,121 @@ public class BLE112Connections extends BGAPIDefaultListener
      *         method returns <code>null</code>.
      */
     public Integer getConnection(final BLE112Address ble112Address) {
-        return connections.get(ble112Address);
+        final BLE112Link link = links.get(ble112Address);
+        return link == null || link.removed ? null : link.getConnection();
+    }
+
+    /**
+     * Wait for a hub to be connected.
+     * 
+     * @param ble112Address
+     *            The hub to wait for.
+     * @param timeout
+     *            How long to wait.
+     * @param unit
+     *            The unit of the timeout.
+     * @return A future that completes with the hub's connection handle, or
+     *         with a {@link TimeoutException} if the hub was not connected in
+     *         time.
+     */
+    public CompletableFuture<Integer> awaitConnected(
+            final BLE112Address ble112Address, final long timeout,
+            final TimeUnit unit) {
+        final CompletableFuture<Integer> connected = new CompletableFuture<>();
+        final BLE112Link link = links.get(ble112Address);
+        if (link == null || link.removed) {
+            connected.completeExceptionally(new IllegalArgumentException(
+                    "not maintaining a connection to " + ble112Address));
+            return connected;
+        }
+
+        link.waiters.add(connected);
+        final Integer connection = link.getConnection();
+        if (connection != null) {
+            // it was connected already, or just now
+            link.waiters.remove(connected);
+            connected.complete(connection);
+            return connected;
+        }
+
+        synchronized (this) {
+            if (running) {
+                deadlines.put(connected, nanoTime() + unit.toNanos(timeout));
+                notifyAll();
+            } else {
+                link.waiters.remove(connected);
+                connected.completeExceptionally(new IllegalStateException(
+                        "connection manager closed"));
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Wait for all hubs to be connected.
+     * 
+     * @param timeout
+     *            How long to wait.
+     * @param unit
+     *            The unit of the timeout.
+     * @return A future that completes when all hubs are connected, or with a
+     *         {@link TimeoutException} if some were not connected in time.
+     */
+    public CompletableFuture<Void> awaitAllConnected(final long timeout,
+            final TimeUnit unit) {
+        final List<CompletableFuture<Integer>> connected = new ArrayList<>();
+        for (final BLE112Link link : links.values()) {
+            if (!link.removed) {
+                connected.add(awaitConnected(link.address, timeout, unit));
+            }
+        }
+        return CompletableFuture.allOf(
+                connected.toArray(new CompletableFuture<?>[connected.size()]));
+    }
+
+    /**
+     * Find out if there are commands waiting for a hub.
+     */
+    boolean isPending(final BLE112Address ble112Address) {
+        final BLE112Link link = links.get(ble112Address);
+        return link != null && link.pending;
+    }
+
+    /**
+     * Get the BGAPI that this connection manager uses.
+     * 
+     * @return The BGAPI of the dongle.
+     */
+    public BGAPI getBGAPI() {
+        return bgapi;
+    }
+
+    /**
+     * Find the state of the connection to a particular hub.
+     * 
+     * @param ble112Address
+     *            The hub to check the state for.
+     * @return The state of the connection, or <code>null</code> if the hub
+     *         was never added.
+     */
+    public State getState(final BLE112Address ble112Address) {
+        final BLE112Link link = links.get(ble112Address);
+        return link == null ? null : link.getState();
+    }
+
+    /**
+     * Find how long it took to connect all hubs, the last time they all got
+     * connected. The clock starts when a hub is added or loses its connection
+     * while all others were connected, and stops when the last hub is
+     * connected.
+     * 
+     * @param unit
+     *            The unit to express the time in.
+     * @return The time it took to connect all hubs, or -1 if they have not
+     *         all been connected yet.
+     */
+    public synchronized long getTimeToAllConnected(final TimeUnit unit) {
+        return timeToAllConnectedNanos < 0L ? -1L
+                : unit.convert(timeToAllConnectedNanos, NANOSECONDS);
     }
 }
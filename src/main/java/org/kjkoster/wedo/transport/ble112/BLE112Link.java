@@ -0,0 +1,173 @@
+package org.kjkoster.wedo.transport.ble112;
+
+import static org.kjkoster.wedo.transport.ble112.BLE112Connections.State.CONNECTED;
+import static org.kjkoster.wedo.transport.ble112.BLE112Connections.State.CONNECTING;
+import static org.kjkoster.wedo.transport.ble112.BLE112Connections.State.DISCONNECTING;
+import static org.kjkoster.wedo.transport.ble112.BLE112Connections.State.IDLE;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.kjkoster.wedo.transport.ble112.BLE112Connections.State;
+
+/**
+ * The connection state of a single hub, as kept by {@link BLE112Connections}.
+ * The state and the connection handle are kept together in one immutable
+ * status object, so that each transition changes both in one atomic step.
+ * Reading the connection handle therefore never takes a lock, and never sees a
+ * handle that belongs to another state.
+ * <p>
+ * The transitions are:
+ * <ul>
+ * <li>idle to connecting, when a connection procedure starts,</li>
+ * <li>connecting to idle, when the procedure fails or is ended,</li>
+ * <li>idle or connecting to connected, when the dongle reports the
+ * connection,</li>
+ * <li>connected to disconnecting, when we ask the dongle to disconnect,</li>
+ * <li>connected or disconnecting to idle, when the dongle reports that the
+ * connection was lost or closed.</li>
+ * </ul>
+ * The backoff, multiplexing, removal and waiter fields are not part of the
+ * state machine. The backoff fields are guarded by the connection manager, the
+ * others are volatile.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class BLE112Link {
+    private static final class Status {
+        private final State state;
+        private final Integer connection;
+
+        private Status(final State state, final Integer connection) {
+            this.state = state;
+            this.connection = connection;
+        }
+    }
+
+    private static final Status IDLE_STATUS = new Status(IDLE, null);
+    private static final Status CONNECTING_STATUS = new Status(CONNECTING,
+            null);
+
+    final BLE112Address address;
+    private final AtomicReference<Status> status = new AtomicReference<>(
+            IDLE_STATUS);
+
+    int failures = 0;
+    long dueNanos; // when we may try to connect again
+
+    volatile boolean pending = false; // commands are waiting
+    volatile boolean removed = false; // moved to another dongle
+    volatile long pendingSinceNanos;
+    volatile long maxStalenessNanos = 0L;
+    volatile long connectedNanos;
+    volatile long lastUsedNanos;
+
+    /**
+     * The futures to complete when the hub is connected.
+     */
+    final Queue<CompletableFuture<Integer>> waiters = new ConcurrentLinkedQueue<>();
+
+    BLE112Link(final BLE112Address address, final long dueNanos) {
+        super();
+
+        this.address = address;
+        this.dueNanos = dueNanos;
+    }
+
+    State getState() {
+        return status.get().state;
+    }
+
+    /**
+     * Find the connection handle, if the hub is connected.
+     *
+     * @return The connection handle, or <code>null</code> if the hub is not
+     *         connected.
+     */
+    Integer getConnection() {
+        final Status current = status.get();
+        return current.state == CONNECTED ? current.connection : null;
+    }
+
+    /**
+     * Move from idle to connecting.
+     *
+     * @return <code>true</code> if the hub was idle.
+     */
+    boolean connecting() {
+        return status.compareAndSet(IDLE_STATUS, CONNECTING_STATUS);
+    }
+
+    /**
+     * Move from connecting back to idle, because the connection procedure
+     * failed or was ended.
+     *
+     * @return <code>true</code> if the hub was connecting.
+     */
+    boolean failed() {
+        return status.compareAndSet(CONNECTING_STATUS, IDLE_STATUS);
+    }
+
+    /**
+     * Move to connected, because the dongle reported a connection.
+     *
+     * @param connection
+     *            The new connection handle.
+     * @return <code>true</code> if the hub is now connected on that handle,
+     *         or <code>false</code> if we were disconnecting it.
+     */
+    boolean connected(final int connection) {
+        final Status connected = new Status(CONNECTED, connection);
+        for (;;) {
+            final Status current = status.get();
+            if (current.state == DISCONNECTING) {
+                return false;
+            }
+            if (status.compareAndSet(current, connected)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Move from connected to disconnecting.
+     *
+     * @return The handle of the connection to close, or <code>null</code> if
+     *         the hub was not connected.
+     */
+    Integer disconnecting() {
+        for (;;) {
+            final Status current = status.get();
+            if (current.state != CONNECTED) {
+                return null;
+            }
+            if (status.compareAndSet(current,
+                    new Status(DISCONNECTING, current.connection))) {
+                return current.connection;
+            }
+        }
+    }
+
+    /**
+     * Move to idle, because the dongle reported that a connection was lost or
+     * closed.
+     *
+     * @param connection
+     *            The handle of the connection that went away.
+     * @return <code>true</code> if that was this hub's connection.
+     */
+    boolean disconnected(final int connection) {
+        for (;;) {
+            final Status current = status.get();
+            if (current.connection == null
+                    || current.connection != connection) {
+                return false;
+            }
+            if (status.compareAndSet(current, IDLE_STATUS)) {
+                return true;
+            }
+        }
+    }
+}
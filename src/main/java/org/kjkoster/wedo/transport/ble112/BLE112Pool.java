@@ -0,0 +1,393 @@
+package org.kjkoster.wedo.transport.ble112;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.System.out;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.thingml.bglib.BGAPI;
+import org.thingml.bglib.BGAPIDefaultListener;
+
+import com.google.common.hash.Hashing;
+
+import lombok.SneakyThrows;
+
+/**
+ * A pool of BLE112 dongles, each with its own connection manager. A single
+ * dongle limits both the number of hubs that can be connected and the number
+ * of writes per second, so larger set-ups can spread their hubs over several
+ * dongles.
+ * <p>
+ * Each hub is assigned to one dongle. The assignment uses rendezvous hashing:
+ * each hub ranks the dongles in an order that depends only on the hub's
+ * address and the dongle's place in the pool, and goes to the highest ranked
+ * dongle that still has a free connection. When all dongles are full, the hub
+ * goes to its highest ranked dongle anyway, where it has to take turns with
+ * the other hubs, see {@link BLE112Connections#setTimeSlice(long, TimeUnit)}.
+ * Once a dongle has failed, taking turns is switched on for dongles that got
+ * more hubs than connections, with a time slice of
+ * {@link #OVERFLOW_TIME_SLICE_MILLIS}. Otherwise the hubs that were moved
+ * there would never be connected.
+ * <p>
+ * Hubs stay on their dongle, because moving them means reconnecting. Hubs are
+ * only moved when their dongle failed, see {@link #failed(BLE112Connections)},
+ * or when their dongle turns out to have more hubs than connections while
+ * another dongle has room. The latter happens because dongles report how many
+ * connections they support some time after they were added to the pool.
+ * <p>
+ * This class is thread safe. Finding a hub's dongle does not take any locks.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class BLE112Pool implements AutoCloseable {
+    /**
+     * The time slice for dongles that have more hubs than connections after
+     * another dongle failed, when taking turns was not switched on for them.
+     */
+    public static final long OVERFLOW_TIME_SLICE_MILLIS = SECONDS.toMillis(1L);
+
+    private final List<BLE112Connections> dongles;
+
+    /**
+     * The dongle that each hub is assigned to.
+     */
+    private final Map<BLE112Address, BLE112Connections> assignments = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private final Set<BLE112Connections> failed = new HashSet<>();
+
+    /**
+     * Set up a pool of dongles, with a new connection manager for each.
+     *
+     * @param bgapis
+     *            The BGAPIs of the dongles to use.
+     */
+    public BLE112Pool(final BGAPI... bgapis) {
+        this(connect(bgapis));
+    }
+
+    private static List<BLE112Connections> connect(final BGAPI[] bgapis) {
+        checkNotNull(bgapis, "null bgapis");
+        final List<BLE112Connections> dongles = new ArrayList<>();
+        for (final BGAPI bgapi : bgapis) {
+            dongles.add(new BLE112Connections(bgapi));
+        }
+        return dongles;
+    }
+
+    /**
+     * Set up a pool of dongles that already have connection managers. This
+     * is the detailed constructor that is not usually used.
+     *
+     * @param dongles
+     *            The connection managers of the dongles to use. The order
+     *            matters for the assignment of hubs to dongles, so keep it the
+     *            same between runs.
+     */
+    public BLE112Pool(final Collection<BLE112Connections> dongles) {
+        super();
+
+        checkNotNull(dongles, "null dongles");
+        checkArgument(!dongles.isEmpty(), "no dongles");
+        this.dongles = Collections.unmodifiableList(new ArrayList<>(dongles));
+
+        for (final BLE112Connections dongle : this.dongles) {
+            // the dongle's connection manager gets the answer first
+            dongle.getBGAPI().addListener(new BGAPIDefaultListener() {
+                @Override
+                public void receive_system_get_connections(final int maxconn) {
+                    rebalance();
+                }
+            });
+        }
+    }
+
+    /**
+     * Close the connection managers of all dongles and wait for them to
+     * finish, see {@link #closeAsync()}.
+     * 
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    @SneakyThrows
+    public void close() throws Exception {
+        try {
+            closeAsync().get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Start closing the connection managers of all dongles, in parallel.
+     *
+     * @return A future that completes when all dongles are closed, see
+     *         {@link BLE112Connections#closeAsync()}.
+     */
+    public CompletableFuture<Void> closeAsync() {
+        final List<CompletableFuture<Void>> closed = new ArrayList<>();
+        for (final BLE112Connections dongle : dongles) {
+            closed.add(dongle.closeAsync());
+        }
+        return CompletableFuture
+                .allOf(closed.toArray(new CompletableFuture<?>[closed.size()]));
+    }
+
+    /**
+     * Add a hub to the pool. The hub is assigned to a dongle and that dongle's
+     * connection manager starts maintaining a connection to it.
+     *
+     * @param ble112Address
+     *            The address of the hub.
+     * @return The connection manager of the dongle that the hub was assigned
+     *         to.
+     */
+    public synchronized BLE112Connections add(
+            final BLE112Address ble112Address) {
+        checkNotNull(ble112Address, "null address");
+        BLE112Connections dongle = assignments.get(ble112Address);
+        if (dongle == null) {
+            dongle = choose(ble112Address, null);
+            checkState(dongle != null, "no working dongles for %s",
+                    ble112Address);
+            assignments.put(ble112Address, dongle);
+            dongle.add(ble112Address);
+            takeTurnsIfOverfull(dongle);
+        }
+        return dongle;
+    }
+
+    /**
+     * Find the connection manager of the dongle that a hub is assigned to.
+     * This method does not take any locks.
+     *
+     * @param ble112Address
+     *            The hub to look up.
+     * @return The connection manager, or <code>null</code> if the hub was
+     *         never added.
+     */
+    public BLE112Connections getConnections(
+            final BLE112Address ble112Address) {
+        return assignments.get(ble112Address);
+    }
+
+    /**
+     * Wait for all hubs on all dongles to be connected, see
+     * {@link BLE112Connections#awaitAllConnected(long, TimeUnit)}.
+     *
+     * @param timeout
+     *            How long to wait.
+     * @param unit
+     *            The unit of the timeout.
+     * @return A future that completes when all hubs are connected.
+     */
+    public CompletableFuture<Void> awaitAllConnected(final long timeout,
+            final TimeUnit unit) {
+        final List<CompletableFuture<Void>> connected = new ArrayList<>();
+        for (final BLE112Connections dongle : dongles) {
+            connected.add(dongle.awaitAllConnected(timeout, unit));
+        }
+        return CompletableFuture.allOf(
+                connected.toArray(new CompletableFuture<?>[connected.size()]));
+    }
+
+    /**
+     * Get the connection managers of all dongles in the pool, including the
+     * ones that failed.
+     *
+     * @return The dongles, in pool order.
+     */
+    public List<BLE112Connections> getDongles() {
+        return dongles;
+    }
+
+    /**
+     * Register a listener with each dongle, to be told when hubs are
+     * connected.
+     *
+     * @param connectionListener
+     *            The listener to add.
+     */
+    public void addConnectionListener(
+            final BLE112ConnectionListener connectionListener) {
+        for (final BLE112Connections dongle : dongles) {
+            dongle.addConnectionListener(connectionListener);
+        }
+    }
+
+    /**
+     * Let hubs take turns on each of the dongles, see
+     * {@link BLE112Connections#setTimeSlice(long, TimeUnit)}.
+     *
+     * @param timeSlice
+     *            The shortest time a hub keeps its connection, or -1 to stop
+     *            taking turns.
+     * @param unit
+     *            The unit of the time slice.
+     */
+    public void setTimeSlice(final long timeSlice, final TimeUnit unit) {
+        for (final BLE112Connections dongle : dongles) {
+            dongle.setTimeSlice(timeSlice, unit);
+        }
+    }
+
+    /**
+     * Mark a dongle as failed, for example because it was unplugged. Its hubs
+     * are moved to the other dongles.
+     *
+     * @param dongle
+     *            The connection manager of the dongle that failed.
+     */
+    public synchronized void failed(final BLE112Connections dongle) {
+        checkArgument(dongles.contains(dongle), "not in this pool: %s",
+                dongle);
+        if (failed.add(dongle)) {
+            out.printf("ble112: dongle %d failed, moving its hubs.\n",
+                    dongles.indexOf(dongle));
+            rebalance();
+        }
+    }
+
+    /**
+     * Move the hubs of failed dongles, and the hubs that do not fit on their
+     * dongle, to dongles that have room. This is done automatically when a
+     * dongle fails or reports its number of connections.
+     */
+    public synchronized void rebalance() {
+        for (final BLE112Address ble112Address : new ArrayList<>(
+                assignments.keySet())) {
+            final BLE112Connections current = assignments.get(ble112Address);
+            if (failed.contains(current)) {
+                final BLE112Connections dongle = choose(ble112Address, null);
+                if (dongle != null) {
+                    move(ble112Address, current, dongle);
+                }
+            } else if (isOverfull(current)) {
+                final BLE112Connections dongle = choose(ble112Address,
+                        current);
+                if (dongle != null && hasRoom(dongle)) {
+                    move(ble112Address, current, dongle);
+                }
+            }
+        }
+
+        for (final BLE112Connections dongle : dongles) {
+            if (!failed.contains(dongle)) {
+                takeTurnsIfOverfull(dongle);
+            }
+        }
+    }
+
+    /**
+     * Once a dongle failed, make sure that the hubs on a dongle with more hubs
+     * than connections take turns, so that all of them get connected now and
+     * then. Call while holding the lock.
+     */
+    private void takeTurnsIfOverfull(final BLE112Connections dongle) {
+        if (!failed.isEmpty() && isOverfull(dongle)
+                && dongle.getTimeSlice(MILLISECONDS) < 0L) {
+            out.printf("ble112: dongle %d has %d hubs for %d connections, "
+                    + "hubs take turns.\n", dongles.indexOf(dongle),
+                    load(dongle), dongle.getMaxConnections());
+            dongle.setTimeSlice(OVERFLOW_TIME_SLICE_MILLIS, MILLISECONDS);
+        }
+    }
+
+    private void move(final BLE112Address ble112Address,
+            final BLE112Connections from, final BLE112Connections to) {
+        out.printf("ble112: moving %s from dongle %d to dongle %d.\n",
+                ble112Address, dongles.indexOf(from), dongles.indexOf(to));
+        final boolean pending = from.isPending(ble112Address);
+        from.remove(ble112Address);
+        assignments.put(ble112Address, to);
+        to.add(ble112Address);
+        if (pending) {
+            to.commandPending(ble112Address);
+        }
+    }
+
+    /**
+     * Pick a dongle for a hub: the highest ranked working dongle with room,
+     * or the highest ranked working dongle if none have room. Call while
+     * holding the lock.
+     *
+     * @param excluded
+     *            A dongle not to pick, or <code>null</code>.
+     * @return The dongle, or <code>null</code> if there are no working
+     *         dongles.
+     */
+    private BLE112Connections choose(final BLE112Address ble112Address,
+            final BLE112Connections excluded) {
+        BLE112Connections best = null;
+        BLE112Connections bestWithRoom = null;
+        long bestRank = 0L;
+        long bestWithRoomRank = 0L;
+        for (int i = 0; i < dongles.size(); i++) {
+            final BLE112Connections dongle = dongles.get(i);
+            if (dongle == excluded || failed.contains(dongle)) {
+                continue;
+            }
+
+            final long rank = rank(ble112Address, i);
+            if (best == null || rank > bestRank) {
+                best = dongle;
+                bestRank = rank;
+            }
+            if (hasRoom(dongle)
+                    && (bestWithRoom == null || rank > bestWithRoomRank)) {
+                bestWithRoom = dongle;
+                bestWithRoomRank = rank;
+            }
+        }
+        return bestWithRoom != null ? bestWithRoom : best;
+    }
+
+    private static long rank(final BLE112Address ble112Address,
+            final int dongle) {
+        return Hashing.sipHash24().newHasher()
+                .putString(ble112Address.getMacString(), UTF_8)
+                .putInt(dongle).hash().asLong();
+    }
+
+    /**
+     * Count the hubs on a dongle. Call while holding the lock.
+     */
+    private int load(final BLE112Connections dongle) {
+        int load = 0;
+        for (final BLE112Connections assigned : assignments.values()) {
+            if (assigned == dongle) {
+                load++;
+            }
+        }
+        return load;
+    }
+
+    /**
+     * See if a dongle has a free connection. A dongle that did not yet tell
+     * us how many connections it supports is assumed to have room.
+     */
+    private boolean hasRoom(final BLE112Connections dongle) {
+        final int max = dongle.getMaxConnections();
+        return max <= 0 || load(dongle) < max;
+    }
+
+    private boolean isOverfull(final BLE112Connections dongle) {
+        final int max = dongle.getMaxConnections();
+        return max > 0 && load(dongle) > max;
+    }
+}
@@ -0,0 +1,452 @@
+package org.kjkoster.wedo.transport.ble112.simulated;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kjkoster.wedo.transport.ble112.BLE112Address;
+import org.thingml.bglib.BDAddr;
+import org.thingml.bglib.BGAPI;
+import org.thingml.bglib.BGAPIListener;
+import org.thingml.bglib.BGAPITransport;
+
+import lombok.SneakyThrows;
+
+/**
+ * An in-memory BLE112 dongle with simulated SBricks. This lets us test the
+ * BLE112 connection management without a dongle or SBricks. Only the commands
+ * that this library uses for connecting and driving SBricks are simulated.
+ * <p>
+ * Like a real dongle, this simulation runs one connection procedure at a time
+ * and supports a limited number of connections. Responses and events are
+ * delivered to the listeners on a single thread, just like the BGAPI receive
+ * thread does. Attribute writes take the configured write latency on that
+ * thread, so the radio's throughput is limited, just like a real one.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class SimulatedBGAPI extends BGAPI {
+    /**
+     * The flags of a connection status event for a new connection: connected
+     * and completed.
+     */
+    public static final int FLAGS_CONNECTED = 0x05;
+
+    private static final int OK = 0x0000;
+    private static final int WRONG_STATE = 0x0181;
+    private static final int NOT_CONNECTED = 0x0186;
+    private static final int CONNECTION_LIMIT_EXCEEDED = 0x0209;
+    private static final int LOCAL_HOST_TERMINATED = 0x0216;
+    private static final int SUPERVISION_TIMEOUT = 0x0208;
+
+    private final List<BGAPIListener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<BLE112Address, SimulatedSBrick> sBricks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService radio;
+    private final PipedOutputStream pipe;
+
+    // guarded by this
+    private final SimulatedSBrick[] connections;
+    private boolean connecting = false;
+    private long attempt = 0L;
+
+    private volatile long writeLatencyMillis = 0L;
+    private final AtomicLong connectAttempts = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * Create a new simulated dongle.
+     *
+     * @param maxConnections
+     *            The number of connections the dongle supports.
+     */
+    public SimulatedBGAPI(final int maxConnections) {
+        this(maxConnections, new PipedOutputStream());
+    }
+
+    private SimulatedBGAPI(final int maxConnections,
+            final PipedOutputStream pipe) {
+        super(transport(pipe));
+
+        checkArgument(maxConnections > 0, "bad connection count %s",
+                maxConnections);
+        connections = new SimulatedSBrick[maxConnections];
+        this.pipe = pipe;
+
+        radio = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "simulated BGAPI");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * The transport reads from a pipe that never delivers anything, and that
+     * is closed when the simulation stops.
+     */
+    @SneakyThrows
+    private static BGAPITransport transport(final PipedOutputStream pipe) {
+        return new BGAPITransport(new PipedInputStream(pipe), pipe);
+    }
+
+    /**
+     * Put a simulated SBrick in range of this dongle.
+     *
+     * @param sBrick
+     *            The SBrick to add.
+     */
+    public void add(final SimulatedSBrick sBrick) {
+        checkNotNull(sBrick);
+        sBricks.put(sBrick.getAddress(), sBrick);
+    }
+
+    /**
+     * Switch a simulated SBrick on or off. Switching an SBrick off drops its
+     * connection, if it had one.
+     *
+     * @param address
+     *            The address of the SBrick.
+     * @param switchedOn
+     *            <code>true</code> to switch the SBrick on.
+     */
+    public void setSwitchedOn(final BLE112Address address,
+            final boolean switchedOn) {
+        final SimulatedSBrick sBrick = checkNotNull(sBricks.get(address),
+                "no SBrick %s", address);
+        sBrick.setSwitchedOn(switchedOn);
+        if (!switchedOn) {
+            synchronized (this) {
+                for (int i = 0; i < connections.length; i++) {
+                    if (connections[i] == sBrick) {
+                        connections[i] = null;
+                        fireDisconnected(i, SUPERVISION_TIMEOUT);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Leave a connection to a simulated SBrick open, as if an earlier session
+     * made it and never closed it.
+     *
+     * @param address
+     *            The address of the SBrick.
+     * @param connection
+     *            The connection handle to leave open.
+     */
+    public synchronized void linger(final BLE112Address address,
+            final int connection) {
+        final SimulatedSBrick sBrick = checkNotNull(sBricks.get(address),
+                "no SBrick %s", address);
+        checkArgument(connections[connection] == null,
+                "connection %s in use", connection);
+        connections[connection] = sBrick;
+    }
+
+    /**
+     * Set how long each attribute write takes on the radio.
+     *
+     * @param writeLatencyMillis
+     *            The write latency, in milliseconds.
+     */
+    public void setWriteLatency(final long writeLatencyMillis) {
+        checkArgument(writeLatencyMillis >= 0L, "negative latency %s",
+                writeLatencyMillis);
+        this.writeLatencyMillis = writeLatencyMillis;
+    }
+
+    /**
+     * Count the connections that are currently open.
+     *
+     * @return The number of open connections.
+     */
+    public synchronized int getConnectionCount() {
+        int count = 0;
+        for (final SimulatedSBrick connection : connections) {
+            if (connection != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Find the connection that the dongle has to an SBrick.
+     *
+     * @param address
+     *            The address of the SBrick.
+     * @return The connection handle, or <code>null</code> if the dongle is
+     *         not connected to that SBrick.
+     */
+    public synchronized Integer getConnection(final BLE112Address address) {
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] != null
+                    && connections[i].getAddress().equals(address)) {
+                return i;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Count the connection procedures that were started.
+     *
+     * @return The number of connection attempts.
+     */
+    public long getConnectAttempts() {
+        return connectAttempts.get();
+    }
+
+    /**
+     * Count the attribute writes that reached an SBrick.
+     *
+     * @return The number of writes.
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * @see org.thingml.bglib.BGAPI#addListener(org.thingml.bglib.BGAPIListener)
+     */
+    @Override
+    public void addListener(final BGAPIListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @see org.thingml.bglib.BGAPI#removeListener(org.thingml.bglib.BGAPIListener)
+     */
+    @Override
+    public void removeListener(final BGAPIListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @see org.thingml.bglib.BGAPI#send_system_get_connections()
+     */
+    @Override
+    public void send_system_get_connections() {
+        deliver(new Event() {
+            @Override
+            void deliver(final BGAPIListener listener) {
+                listener.receive_system_get_connections(connections.length);
+            }
+        });
+    }
+
+    /**
+     * @see org.thingml.bglib.BGAPI#send_gap_connect_direct(org.thingml.bglib.BDAddr,
+     *      int, int, int, int, int)
+     */
+    @Override
+    public synchronized void send_gap_connect_direct(final BDAddr address,
+            final int addr_type, final int conn_interval_min,
+            final int conn_interval_max, final int timeout,
+            final int latency) {
+        connectAttempts.incrementAndGet();
+        if (connecting) {
+            fireConnectDirect(WRONG_STATE, 0);
+            return;
+        }
+        int connection = 0;
+        while (connection < connections.length
+                && connections[connection] != null) {
+            connection++;
+        }
+        if (connection == connections.length) {
+            fireConnectDirect(CONNECTION_LIMIT_EXCEEDED, 0);
+            return;
+        }
+
+        connecting = true;
+        final long thisAttempt = ++attempt;
+        fireConnectDirect(OK, connection);
+
+        final SimulatedSBrick sBrick = sBricks
+                .get(new BLE112Address(address, addr_type));
+        if (sBrick != null) {
+            final int handle = connection;
+            radio.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connected(thisAttempt, handle, sBrick);
+                }
+            }, sBrick.getConnectLatencyMillis(), MILLISECONDS);
+        }
+        // an SBrick that is not there never answers
+    }
+
+    private synchronized void connected(final long thisAttempt,
+            final int connection, final SimulatedSBrick sBrick) {
+        if (!connecting || attempt != thisAttempt || !sBrick.isSwitchedOn()
+                || connections[connection] != null) {
+            return; // the procedure was ended, or the SBrick went away
+        }
+
+        connecting = false;
+        connections[connection] = sBrick;
+        final BDAddr bdAddr = sBrick.getAddress().getBDAddr();
+        final int addressType = sBrick.getAddress().getAddress_type();
+        deliver(new Event() {
+            @Override
+            void deliver(final BGAPIListener listener) {
+                listener.receive_connection_status(connection,
+                        FLAGS_CONNECTED, bdAddr, addressType, 0x3c, 0x64, 0,
+                        0xff);
+            }
+        });
+    }
+
+    /**
+     * @see org.thingml.bglib.BGAPI#send_gap_end_procedure()
+     */
+    @Override
+    public synchronized void send_gap_end_procedure() {
+        final int result = connecting ? OK : WRONG_STATE;
+        connecting = false;
+        deliver(new Event() {
+            @Override
+            void deliver(final BGAPIListener listener) {
+                listener.receive_gap_end_procedure(result);
+            }
+        });
+    }
+
+    /**
+     * @see org.thingml.bglib.BGAPI#send_connection_disconnect(int)
+     */
+    @Override
+    public synchronized void send_connection_disconnect(final int connection) {
+        final boolean connected = connection >= 0
+                && connection < connections.length
+                && connections[connection] != null;
+        deliver(new Event() {
+            @Override
+            void deliver(final BGAPIListener listener) {
+                listener.receive_connection_disconnect(connection,
+                        connected ? OK : NOT_CONNECTED);
+            }
+        });
+        if (connected) {
+            connections[connection] = null;
+            fireDisconnected(connection, LOCAL_HOST_TERMINATED);
+        }
+    }
+
+    /**
+     * @see org.thingml.bglib.BGAPI#send_attclient_attribute_write(int, int,
+     *      byte[])
+     */
+    @Override
+    public synchronized void send_attclient_attribute_write(
+            final int connection, final int atthandle, final byte[] data) {
+        final SimulatedSBrick sBrick = connection >= 0
+                && connection < connections.length ? connections[connection]
+                        : null;
+        if (sBrick == null) {
+            deliver(new Event() {
+                @Override
+                void deliver(final BGAPIListener listener) {
+                    listener.receive_attclient_attribute_write(connection,
+                            NOT_CONNECTED);
+                }
+            });
+            return;
+        }
+
+        final byte[] frame = data.clone();
+        radio.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MILLISECONDS.sleep(writeLatencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                sBrick.written(frame);
+                writes.incrementAndGet();
+                for (final BGAPIListener listener : listeners) {
+                    listener.receive_attclient_attribute_write(connection,
+                            OK);
+                    listener.receive_attclient_procedure_completed(
+                            connection, OK, atthandle);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the simulation.
+     *
+     * @see org.thingml.bglib.BGAPI#disconnect()
+     */
+    @Override
+    public void disconnect() {
+        radio.shutdownNow();
+        try {
+            pipe.close();
+        } catch (IOException e) {
+            // we are shutting down anyway
+        }
+    }
+
+    private void fireConnectDirect(final int result, final int connection) {
+        deliver(new Event() {
+            @Override
+            void deliver(final BGAPIListener listener) {
+                listener.receive_gap_connect_direct(result, connection);
+            }
+        });
+    }
+
+    private void fireDisconnected(final int connection, final int reason) {
+        deliver(new Event() {
+            @Override
+            void deliver(final BGAPIListener listener) {
+                listener.receive_connection_disconnected(connection, reason);
+            }
+        });
+    }
+
+    private void deliver(final Event event) {
+        try {
+            radio.execute(event);
+        } catch (RejectedExecutionException e) {
+            // the simulation was stopped, nobody is listening
+        }
+    }
+
+    /**
+     * A response or event, delivered to all listeners on the radio thread.
+     */
+    private abstract class Event implements Runnable {
+        @Override
+        public void run() {
+            for (final BGAPIListener listener : listeners) {
+                deliver(listener);
+            }
+        }
+
+        abstract void deliver(BGAPIListener listener);
+    }
+}
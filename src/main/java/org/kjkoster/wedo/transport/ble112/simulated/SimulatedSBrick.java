@@ -0,0 +1,99 @@
+package org.kjkoster.wedo.transport.ble112.simulated;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kjkoster.wedo.transport.ble112.BLE112Address;
+
+/**
+ * A simulated SBrick, to be connected to through a {@link SimulatedBGAPI}. The
+ * SBrick answers a connection request after the configured latency, as long as
+ * it is switched on. It remembers the last frame that was written to it.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class SimulatedSBrick {
+    private final BLE112Address address;
+    private final long connectLatencyMillis;
+
+    private volatile boolean switchedOn = true;
+    private volatile byte[] lastWrite = null;
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * Create a new simulated SBrick, switched on.
+     *
+     * @param address
+     *            The Bluetooth address of the SBrick.
+     * @param connectLatencyMillis
+     *            How long it takes to connect to the SBrick, in milliseconds.
+     */
+    public SimulatedSBrick(final BLE112Address address,
+            final long connectLatencyMillis) {
+        super();
+
+        this.address = checkNotNull(address);
+        checkArgument(connectLatencyMillis >= 0L, "negative latency %s",
+                connectLatencyMillis);
+        this.connectLatencyMillis = connectLatencyMillis;
+    }
+
+    /**
+     * Get the Bluetooth address of this SBrick.
+     *
+     * @return The address of this SBrick.
+     */
+    public BLE112Address getAddress() {
+        return address;
+    }
+
+    /**
+     * Find how long it takes to connect to this SBrick.
+     *
+     * @return The connection latency, in milliseconds.
+     */
+    public long getConnectLatencyMillis() {
+        return connectLatencyMillis;
+    }
+
+    /**
+     * Find out if this SBrick is switched on, and thus reachable.
+     *
+     * @return <code>true</code> if the SBrick is switched on.
+     */
+    public boolean isSwitchedOn() {
+        return switchedOn;
+    }
+
+    void setSwitchedOn(final boolean switchedOn) {
+        this.switchedOn = switchedOn;
+    }
+
+    /**
+     * Find the last frame that was written to this SBrick.
+     *
+     * @return A copy of the last frame, or <code>null</code> if nothing was
+     *         written yet.
+     */
+    public byte[] getLastWrite() {
+        final byte[] write = lastWrite;
+        return write == null ? null : Arrays.copyOf(write, write.length);
+    }
+
+    /**
+     * Count the frames that were written to this SBrick.
+     *
+     * @return The number of frames written.
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    void written(final byte[] data) {
+        lastWrite = Arrays.copyOf(data, data.length);
+        writes.incrementAndGet();
+    }
+}
@@ -0,0 +1,126 @@
+package org.kjkoster.wedo.transport.usb;
+
+import static com.codeminders.hidapi.ClassPathLibraryLoader.loadNativeHIDLibrary;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.System.out;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.codeminders.hidapi.HIDDevice;
+import com.codeminders.hidapi.HIDDeviceInfo;
+import com.codeminders.hidapi.HIDManager;
+
+import lombok.SneakyThrows;
+
+/**
+ * The backend that accesses real USB devices through the hidapi native
+ * library.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class HidApiBackend implements UsbBackend {
+    private static volatile boolean hidLibraryLoaded = false;
+
+    /**
+     * Load the native HID library, if that was not already done.
+     *
+     * @param verbose
+     *            Print a trace when loading the library.
+     */
+    @SneakyThrows
+    public HidApiBackend(final boolean verbose) {
+        super();
+
+        synchronized (HidApiBackend.class) {
+            if (!hidLibraryLoaded) {
+                if (verbose) {
+                    out.println("  USB loading native HID library");
+                }
+                hidLibraryLoaded = loadNativeHIDLibrary();
+                if (!hidLibraryLoaded) {
+                    throw new IOException("unable to load native HID library");
+                }
+            }
+        }
+
+        // just to force it to load.
+        HIDManager.getInstance();
+    }
+
+    /**
+     * @see org.kjkoster.wedo.transport.usb.UsbBackend#listDevices()
+     */
+    @Override
+    public List<UsbDeviceInfo> listDevices() throws IOException {
+        final List<UsbDeviceInfo> devices = new ArrayList<>();
+        for (final HIDDeviceInfo hidDeviceInfo : HIDManager.getInstance()
+                .listDevices()) {
+            devices.add(new UsbDeviceInfo(hidDeviceInfo.getPath(),
+                    hidDeviceInfo.getVendor_id(),
+                    hidDeviceInfo.getProduct_id(),
+                    hidDeviceInfo.getProduct_string()));
+        }
+        return devices;
+    }
+
+    /**
+     * @see org.kjkoster.wedo.transport.usb.UsbBackend#openByPath(java.lang.String)
+     */
+    @Override
+    public UsbDevice openByPath(final String path) throws IOException {
+        final HIDDevice hidDevice = HIDManager.getInstance().openByPath(path);
+        if (hidDevice == null) {
+            return null;
+        }
+        return new HidApiDevice(hidDevice);
+    }
+
+    /**
+     * @see org.kjkoster.wedo.transport.usb.UsbBackend#release()
+     */
+    @Override
+    public void release() throws IOException {
+        HIDManager.getInstance().release();
+    }
+
+    private static class HidApiDevice implements UsbDevice {
+        private final HIDDevice hidDevice;
+        private boolean blocking = true;
+
+        HidApiDevice(final HIDDevice hidDevice) {
+            this.hidDevice = checkNotNull(hidDevice);
+        }
+
+        @Override
+        public int readTimeout(final byte[] buffer, final int timeoutMillis)
+                throws IOException {
+            return hidDevice.readTimeout(buffer, timeoutMillis);
+        }
+
+        /**
+         * hidapi ignores the blocking flag for timed reads, so once we switch
+         * to non-blocking reads we can leave it that way.
+         */
+        @Override
+        public synchronized int readNonBlocking(final byte[] buffer)
+                throws IOException {
+            if (blocking) {
+                hidDevice.disableBlocking();
+                blocking = false;
+            }
+            return hidDevice.read(buffer);
+        }
+
+        @Override
+        public int write(final byte[] buffer) throws IOException {
+            return hidDevice.write(buffer);
+        }
+
+        @Override
+        public void close() throws IOException {
+            hidDevice.close();
+        }
+    }
+}
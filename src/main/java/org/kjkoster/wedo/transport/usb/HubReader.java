@@ -0,0 +1,157 @@
+package org.kjkoster.wedo.transport.usb;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.System.err;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.kjkoster.wedo.trace.Tracer.Event.USB_READ;
+import static org.kjkoster.wedo.trace.Tracer.getSystemOut;
+import static org.kjkoster.wedo.transport.usb.PacketSlot.PACKETSIZE;
+
+import java.io.IOException;
+
+import org.kjkoster.wedo.trace.Tracer;
+
+/**
+ * A background reader that continuously reads packets from a single hub and
+ * keeps the most recent one in a {@link PacketSlot}. Callers never wait for the
+ * device, they just pick up whatever was read last.
+ * <p>
+ * The reader stops when it is closed or when the device gives an I/O error,
+ * which is usually what happens when the hub is unplugged.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class HubReader implements Runnable, AutoCloseable {
+    private final HubHandle hubHandle;
+    private final UsbDevice usbDevice;
+    private final int timeoutMillis;
+    private final Tracer tracer;
+
+    private final PacketSlot packetSlot = new PacketSlot();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Start a new reader thread for the specified hub.
+     *
+     * @param hubHandle
+     *            The hub to read from.
+     * @param usbDevice
+     *            The opened device for that hub.
+     * @param timeoutMillis
+     *            The time-out for each individual read.
+     * @param verbose
+     *            Print a trace of all packets read.
+     */
+    HubReader(final HubHandle hubHandle, final UsbDevice usbDevice,
+            final int timeoutMillis, final boolean verbose) {
+        this.hubHandle = checkNotNull(hubHandle);
+        this.usbDevice = checkNotNull(usbDevice);
+        this.timeoutMillis = timeoutMillis;
+        this.tracer = verbose ? getSystemOut() : null;
+
+        thread = new Thread(this, "USB reader " + hubHandle);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        final byte[] buffer = new byte[PACKETSIZE];
+        try {
+            while (running) {
+                final int bytesRead = usbDevice.readTimeout(buffer,
+                        timeoutMillis);
+                if (bytesRead == PACKETSIZE) {
+                    packetSlot.publish(buffer, nanoTime());
+
+                    if (tracer != null) {
+                        tracer.trace(USB_READ, hubHandle, buffer, 0);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            err.printf("unexpected exception reading from %s: %s", hubHandle,
+                    e.getMessage());
+        } finally {
+            running = false;
+        }
+    }
+
+    /**
+     * Check if this reader is still reading. A reader that stopped because of
+     * an I/O error should be replaced.
+     *
+     * @return <code>true</code> if the reader thread is still active.
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Find the most recent packet from this reader.
+     *
+     * @return The most recent packet, or <code>null</code> if nothing was read
+     *         yet.
+     */
+    UsbPacket getPacket() {
+        return packetSlot.get();
+    }
+
+    /**
+     * Check if this reader has read a packet yet.
+     *
+     * @return <code>true</code> if a packet was read.
+     */
+    boolean hasPacket() {
+        return packetSlot.hasPacket();
+    }
+
+    /**
+     * Copy the most recent packet into a buffer, without allocating. May only
+     * be called when {@link #hasPacket()} returned <code>true</code>.
+     *
+     * @param buffer
+     *            The buffer to copy into.
+     * @return The moment the packet was received.
+     */
+    long copyPacket(final byte[] buffer) {
+        return packetSlot.copyTo(buffer);
+    }
+
+    /**
+     * Wait for the first packet to arrive, for at most the specified time.
+     *
+     * @param waitMillis
+     *            The maximum time to wait.
+     * @return The first packet, or <code>null</code> if none arrived in time.
+     * @throws InterruptedException
+     *             When we were interrupted while waiting.
+     */
+    UsbPacket awaitFirstPacket(final long waitMillis)
+            throws InterruptedException {
+        final long deadline = nanoTime() + MILLISECONDS.toNanos(waitMillis);
+        UsbPacket packet = packetSlot.get();
+        while (packet == null && running && nanoTime() < deadline) {
+            Thread.sleep(1L);
+            packet = packetSlot.get();
+        }
+        return packet;
+    }
+
+    /**
+     * Stop the reader thread and wait for it to finish. The device itself is
+     * not closed, that is up to the owner of the device.
+     *
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+}
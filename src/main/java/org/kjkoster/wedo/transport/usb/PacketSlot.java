@@ -0,0 +1,115 @@
+package org.kjkoster.wedo.transport.usb;
+
+/**
+ * A lock-free holder for the most recent 8-byte packet that was read from a
+ * device. There is a single writer (the thread that reads the device) and any
+ * number of readers.
+ * <p>
+ * The packet is packed into a single <code>long</code>. The receive time stamp
+ * is kept consistent with the packet using a sequence counter: the writer makes
+ * the sequence odd while it updates the slot and even again when it is done.
+ * Readers simply retry when they see the sequence change under them.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class PacketSlot {
+    static final int PACKETSIZE = 8;
+
+    /**
+     * Zero means that no packet was ever published. Odd means an update is in
+     * progress.
+     */
+    private volatile long sequence = 0L;
+    private volatile long packet = 0L;
+    private volatile long receivedNanos = 0L;
+
+    /**
+     * Publish a new packet. May only be called from a single thread.
+     *
+     * @param buffer
+     *            The packet that was read. Only the first 8 bytes are used.
+     * @param nanos
+     *            The moment that the packet was received.
+     */
+    void publish(final byte[] buffer, final long nanos) {
+        final long next = sequence + 1L;
+        sequence = next;
+        packet = pack(buffer);
+        receivedNanos = nanos;
+        sequence = next + 1L;
+    }
+
+    /**
+     * Take a snapshot of the current packet.
+     *
+     * @return The most recent packet, or <code>null</code> if no packet was
+     *         ever published.
+     */
+    UsbPacket get() {
+        for (;;) {
+            final long before = sequence;
+            if (before == 0L) {
+                return null;
+            }
+            if ((before & 1L) != 0L) {
+                continue; // writer busy, retry
+            }
+
+            final long snapshotPacket = packet;
+            final long snapshotNanos = receivedNanos;
+            if (sequence == before) {
+                final byte[] data = new byte[PACKETSIZE];
+                unpack(snapshotPacket, data);
+                return new UsbPacket(data, snapshotNanos);
+            }
+        }
+    }
+
+    /**
+     * Check if a packet was ever published. Once this returns
+     * <code>true</code>, it will keep doing so.
+     *
+     * @return <code>true</code> if there is a packet in this slot.
+     */
+    boolean hasPacket() {
+        return sequence != 0L;
+    }
+
+    /**
+     * Copy the current packet into a buffer, without allocating. May only be
+     * called when {@link #hasPacket()} returned <code>true</code>.
+     *
+     * @param buffer
+     *            The buffer to copy the packet into.
+     * @return The moment that the packet was received.
+     */
+    long copyTo(final byte[] buffer) {
+        for (;;) {
+            final long before = sequence;
+            if ((before & 1L) != 0L) {
+                continue; // writer busy, retry
+            }
+
+            final long snapshotPacket = packet;
+            final long snapshotNanos = receivedNanos;
+            if (sequence == before) {
+                unpack(snapshotPacket, buffer);
+                return snapshotNanos;
+            }
+        }
+    }
+
+    private static long pack(final byte[] buffer) {
+        long packed = 0L;
+        for (int i = 0; i < PACKETSIZE; i++) {
+            packed |= (buffer[i] & 0xffL) << (i * 8);
+        }
+        return packed;
+    }
+
+    private static void unpack(final long packed, final byte[] buffer) {
+        for (int i = 0; i < PACKETSIZE; i++) {
+            buffer[i] = (byte) (packed >>> (i * 8));
+        }
+    }
+}
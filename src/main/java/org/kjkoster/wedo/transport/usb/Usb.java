@@ -1,20 +1,47 @@
 package org.kjkoster.wedo.transport.usb;
 
-import static com.codeminders.hidapi.ClassPathLibraryLoader.loadNativeHIDLibrary;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.String.format;
 import static java.lang.System.err;
+import static java.lang.System.nanoTime;
 import static java.lang.System.out;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.ConcurrentHashMap.newKeySet;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static org.kjkoster.wedo.trace.Tracer.Event.USB_READ;
+import static org.kjkoster.wedo.trace.Tracer.Event.USB_WRITE;
+import static org.kjkoster.wedo.trace.Tracer.getSystemOut;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.codeminders.hidapi.HIDDevice;
-import com.codeminders.hidapi.HIDDeviceInfo;
-import com.codeminders.hidapi.HIDManager;
+import org.kjkoster.wedo.trace.Tracer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import lombok.SneakyThrows;
 
@@ -25,20 +52,165 @@ import lombok.SneakyThrows;
  * <p>
  * On Ubuntu I found a problem that rapidly opening and closing devices in a
  * tight loop would lead to a hard JVM crash. This class works around that bug
- * by keeping open devices cached until the whole USB class is closed.
+ * by keeping open devices cached. A device is only closed when its hub is
+ * unplugged, when it gives an I/O error, when an opt-in limit on the number
+ * of open devices is reached, or when the whole USB class is closed. A device
+ * that is being read or written is never closed under the read or write: it
+ * is closed when the last one finishes, and it is never closed just to make
+ * room. Devices that fail to open are retried with an exponential back-off,
+ * so that we never hammer a dead device.
+ * <p>
+ * By default each call to {@link #readFromAll()} does a blocking read on every
+ * hub. For control loops this is too slow, so there is an opt-in continuous
+ * read mode where each hub gets its own reader thread that keeps the latest
+ * packet. Reads then just pick up those packets without waiting for the
+ * devices. There is also a parallel read mode, where all hubs are read at the
+ * same time and the results are gathered up to a shared deadline.
+ * <p>
+ * Enumerating the USB devices is expensive, often more so than reading from
+ * them. We therefore cache the set of hubs and only enumerate again when the
+ * enumeration interval has passed or when {@link #refresh()} is called. Each
+ * enumeration is compared with the previous one, and the differences are
+ * reported to {@link UsbHotplugListener}s.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 public class Usb implements AutoCloseable {
-    private static final int VENDORID_LEGO = 0x0694;
-    private static final int PRODUCTID_WEDOHUB = 0x0003;
+    /**
+     * The USB vendor ID of LEGO.
+     */
+    public static final int VENDORID_LEGO = 0x0694;
+
+    /**
+     * The USB product ID of the LEGO WeDo hub.
+     */
+    public static final int PRODUCTID_WEDOHUB = 0x0003;
+
+    private static final int PACKETSIZE = PacketSlot.PACKETSIZE;
+    private static final int READ_TIMEOUT_MILLIS = (int) MILLISECONDS
+            .toMillis(100L);
+
+    /**
+     * The default deadline for reading all hubs. A little longer than the read
+     * time-out, so that a hub that answers just in time is not dropped.
+     */
+    private static final long READ_DEADLINE_MILLIS = READ_TIMEOUT_MILLIS
+            + MILLISECONDS.toMillis(50L);
+
+    /**
+     * The maximum number of hubs that we read at the same time in parallel
+     * read mode.
+     */
+    private static final int PARALLEL_READERS = 8;
 
-    private static final int PACKETSIZE = 8;
+    private static final long NO_PACKET = Long.MIN_VALUE;
 
-    private static volatile boolean hidLibraryLoaded = false;
+    /**
+     * hidapi queues the reports that a device sends. A non-blocking read
+     * returns the oldest, so we read until the queue is empty to find the
+     * newest report. This limits how many reports we skip in one go.
+     */
+    private static final int MAX_QUEUED_REPORTS = 32;
+    private static final long POLL_INTERVAL_NANOS = MICROSECONDS
+            .toNanos(250L);
+
+    private static final long MIN_REOPEN_BACKOFF_NANOS = MILLISECONDS
+            .toNanos(100L);
+    private static final long MAX_REOPEN_BACKOFF_NANOS = SECONDS.toNanos(10L);
+
+    /**
+     * Bookkeeping for devices that failed to open, so that we back off before
+     * trying them again.
+     */
+    private static class OpenFailure {
+        private int failures = 0;
+        private long notBeforeNanos = 0L;
+    }
+
+    /**
+     * The ways in which we read from the hubs.
+     */
+    public enum ReadMode {
+        /**
+         * Read each hub in turn, waiting for a packet from each.
+         */
+        BLOCKING,
+
+        /**
+         * Keep a reader thread per hub in the background and return the most
+         * recent packets immediately.
+         */
+        CONTINUOUS,
+
+        /**
+         * Read all hubs at the same time, waiting at most until a shared
+         * deadline.
+         */
+        PARALLEL,
+
+        /**
+         * Poll each hub without waiting. Hubs that have no new data report the
+         * last packet we got from them, so a slow hub never stalls the caller.
+         * Hubs that have not sent anything yet are reported without a packet,
+         * so callers that need data from every hub pass a deadline to
+         * {@link Usb#readout(long, TimeUnit)}.
+         */
+        NON_BLOCKING
+    }
 
     private final boolean verbose;
-    private final Map<String, HIDDevice> openDevices = new HashMap<>();
+    private final Tracer tracer;
+    private final ReadMode readMode;
+    private final UsbBackend usbBackend;
+
+    /**
+     * The open devices, by path. This map is kept in access order, so that we
+     * know which device to close when we run out of handles.
+     */
+    private final Map<String, UsbDevice> openDevices = new LinkedHashMap<>(16,
+            0.75f, true);
+    private final Map<String, OpenFailure> openFailures = new HashMap<>();
+    private volatile int maxOpenDevices = Integer.MAX_VALUE;
+
+    /**
+     * The number of reads and writes in progress on each device. These happen
+     * outside the lock, and hidapi does not survive having a device closed
+     * under it. The counters are kept between reads, so that steady state
+     * polling does not allocate.
+     */
+    private final Map<UsbDevice, AtomicInteger> devicesInUse = new IdentityHashMap<>();
+
+    /**
+     * Devices that were evicted while they were in use. Each is closed when
+     * its last read or write finishes.
+     */
+    private final Set<UsbDevice> closeWhenIdle = Collections
+            .newSetFromMap(new IdentityHashMap<UsbDevice, Boolean>());
+    private final Map<String, HubReader> hubReaders = new HashMap<>();
+    private final Set<String> readsInProgress = newKeySet();
+    private ExecutorService readerPool = null;
+
+    /**
+     * The hubs that were present at the last enumeration, by path.
+     */
+    private final Map<String, HubHandle> presentHubs = new LinkedHashMap<>();
+    private volatile HubHandle[] presentHubArray = new HubHandle[0];
+    private volatile long lastEnumerationNanos = 0L;
+    private volatile boolean enumerated = false;
+
+    /**
+     * Reusable packet buffers for the in-place read path, one per present
+     * hub. A buffer is locked while it is being filled and handed out.
+     */
+    private final Map<String, byte[]> packetBuffers = new ConcurrentHashMap<>();
+
+    /**
+     * The last packet that we got from each present hub, for non-blocking
+     * read mode.
+     */
+    private final Map<String, PacketSlot> lastPackets = new ConcurrentHashMap<>();
+    private volatile long enumerationIntervalNanos = SECONDS.toNanos(1L);
+    private final List<UsbHotplugListener> hotplugListeners = new CopyOnWriteArrayList<>();
 
     /**
      * Initialise a new USB abstraction that filters on a given USB vendor and
@@ -47,24 +219,271 @@ public class Usb implements AutoCloseable {
      * @param verbose
      *            Print a trace of all interaction with the USB port.
      */
-    @SneakyThrows
     public Usb(final boolean verbose) {
+        this(verbose, ReadMode.BLOCKING);
+    }
+
+    /**
+     * Initialise a new USB abstraction that filters on a given USB vendor and
+     * product ID.
+     * 
+     * @param verbose
+     *            Print a trace of all interaction with the USB port.
+     * @param readMode
+     *            How to read packets from the hubs.
+     */
+    public Usb(final boolean verbose, final ReadMode readMode) {
+        this(verbose, readMode, new HidApiBackend(verbose));
+    }
+
+    /**
+     * Initialise a new USB abstraction on top of a specific HID backend. This
+     * is mostly useful for testing with simulated hubs.
+     * 
+     * @param verbose
+     *            Print a trace of all interaction with the USB port.
+     * @param readMode
+     *            How to read packets from the hubs.
+     * @param usbBackend
+     *            The backend that provides access to the HID devices.
+     */
+    public Usb(final boolean verbose, final ReadMode readMode,
+            final UsbBackend usbBackend) {
         this.verbose = verbose;
+        this.tracer = verbose ? getSystemOut() : null;
+        this.readMode = checkNotNull(readMode);
+        this.usbBackend = checkNotNull(usbBackend);
+    }
+
+    /**
+     * Set how long the cached list of hubs may be used before we enumerate the
+     * USB devices again. An interval of 0 enumerates on every read.
+     * 
+     * @param interval
+     *            The new enumeration interval.
+     * @param unit
+     *            The unit of the interval.
+     */
+    public void setEnumerationInterval(final long interval,
+            final TimeUnit unit) {
+        checkArgument(interval >= 0L, "negative interval %s", interval);
+        enumerationIntervalNanos = unit.toNanos(interval);
+    }
+
+    /**
+     * Limit the number of devices that are kept open. When more hubs are used
+     * than this, the least recently used device that is not being read or
+     * written is closed to make room. By default there is no limit. Note that
+     * rapidly opening and closing devices is known to crash the JVM on some
+     * systems, so keep this higher than the number of hubs you use.
+     * 
+     * @param maxOpenDevices
+     *            The maximum number of open devices.
+     */
+    public void setMaxOpenDevices(final int maxOpenDevices) {
+        checkArgument(maxOpenDevices > 0, "max open devices must be positive");
+        this.maxOpenDevices = maxOpenDevices;
+    }
+
+    /**
+     * Count the number of devices that are currently open.
+     * 
+     * @return The number of open devices.
+     */
+    public synchronized int getOpenDeviceCount() {
+        return openDevices.size();
+    }
+
+    /**
+     * Register a listener to be told about hubs being plugged in and
+     * unplugged.
+     * 
+     * @param hotplugListener
+     *            The listener to add.
+     */
+    public void addHotplugListener(
+            final UsbHotplugListener hotplugListener) {
+        hotplugListeners.add(checkNotNull(hotplugListener));
+    }
+
+    /**
+     * Remove a previously registered hot plug listener.
+     * 
+     * @param hotplugListener
+     *            The listener to remove.
+     */
+    public void removeHotplugListener(
+            final UsbHotplugListener hotplugListener) {
+        hotplugListeners.remove(hotplugListener);
+    }
+
+    /**
+     * Find the hubs that are currently present. This uses the cached
+     * enumeration, unless it is older than the enumeration interval.
+     * 
+     * @return The hubs that are known to be present.
+     */
+    public Collection<HubHandle> getHubs() {
+        checkEnumeration();
+        return new ArrayList<>(asList(presentHubArray));
+    }
 
-        synchronized (Usb.class) {
-            if (!hidLibraryLoaded) {
-                if (verbose) {
-                    out.println("  USB loading native HID library");
+    /**
+     * Find the interned handle of a hub that is present. Handles are created
+     * once when a hub is first seen and then reused, so this method does not
+     * allocate.
+     * 
+     * @param path
+     *            The path of the hub to look up.
+     * @return The handle of that hub, or <code>null</code> if no such hub is
+     *         present.
+     */
+    public synchronized HubHandle getHubHandle(final String path) {
+        return presentHubs.get(path);
+    }
+
+    /**
+     * Enumerate the USB devices right now, regardless of the enumeration
+     * interval. Use this when you know that hubs were plugged in or out.
+     * 
+     * @return The hubs that are present.
+     */
+    public Collection<HubHandle> refresh() {
+        final List<HubHandle> attached = new ArrayList<>();
+        final List<HubHandle> detached = new ArrayList<>();
+        final Collection<HubHandle> hubs;
+        synchronized (this) {
+            enumerate(attached, detached);
+            hubs = new ArrayList<>(presentHubs.values());
+        }
+        fireHotplugEvents(attached, detached);
+        return hubs;
+    }
+
+    private void checkEnumeration() {
+        if (!enumerated || nanoTime()
+                - lastEnumerationNanos >= enumerationIntervalNanos) {
+            refresh();
+        }
+    }
+
+    @SneakyThrows
+    private void enumerate(final List<HubHandle> attached,
+            final List<HubHandle> detached) {
+        final Map<String, HubHandle> foundHubs = new LinkedHashMap<>();
+        for (final UsbDeviceInfo usbDeviceInfo : usbBackend.listDevices()) {
+            if (usbDeviceInfo.getVendorId() == VENDORID_LEGO
+                    && usbDeviceInfo.getProductId() == PRODUCTID_WEDOHUB) {
+                final String productName = usbDeviceInfo.getProductName();
+                if (productName == null) {
+                    // Typically a USB device permissions issue under Linux. If
+                    // that is the case, you may need udev rules.
+                    err.printf(
+                            "unable to read product name from %s, permission issue?",
+                            usbDeviceInfo.getPath());
+                    continue;
                 }
-                hidLibraryLoaded = loadNativeHIDLibrary();
-                if (!hidLibraryLoaded) {
-                    throw new IOException("unable to load native HID library");
+
+                // reuse the handle we already had, if the hub did not change
+                final HubHandle present = presentHubs
+                        .get(usbDeviceInfo.getPath());
+                if (present != null
+                        && present.getProductName().equals(productName)) {
+                    foundHubs.put(present.getPath(), present);
+                } else {
+                    final HubHandle hubHandle = new HubHandle(
+                            usbDeviceInfo.getPath(), productName);
+                    foundHubs.put(hubHandle.getPath(), hubHandle);
+                    if (present != null) {
+                        detached.add(present);
+                    }
+                    attached.add(hubHandle);
+                    packetBuffers.put(hubHandle.getPath(),
+                            new byte[PACKETSIZE]);
+                    lastPackets.put(hubHandle.getPath(), new PacketSlot());
                 }
             }
         }
 
-        // just to force it to load.
-        HIDManager.getInstance();
+        for (final HubHandle present : presentHubs.values()) {
+            if (!foundHubs.containsKey(present.getPath())) {
+                detached.add(present);
+            }
+        }
+        for (final HubHandle hubHandle : detached) {
+            evict(hubHandle.getPath());
+            openFailures.remove(hubHandle.getPath());
+            if (!foundHubs.containsKey(hubHandle.getPath())) {
+                packetBuffers.remove(hubHandle.getPath());
+                lastPackets.remove(hubHandle.getPath());
+            }
+        }
+
+        presentHubs.clear();
+        presentHubs.putAll(foundHubs);
+        presentHubArray = foundHubs.values()
+                .toArray(new HubHandle[foundHubs.size()]);
+        lastEnumerationNanos = nanoTime();
+        enumerated = true;
+    }
+
+    private void fireHotplugEvents(final List<HubHandle> attached,
+            final List<HubHandle> detached) {
+        for (final HubHandle hubHandle : detached) {
+            if (verbose) {
+                out.printf("  USB detached %s\n", hubHandle);
+            }
+            for (final UsbHotplugListener hotplugListener : hotplugListeners) {
+                hotplugListener.detached(hubHandle);
+            }
+        }
+        for (final HubHandle hubHandle : attached) {
+            if (verbose) {
+                out.printf("  USB attached %s\n", hubHandle);
+            }
+            for (final UsbHotplugListener hotplugListener : hotplugListeners) {
+                hotplugListener.attached(hubHandle);
+            }
+        }
+    }
+
+    /**
+     * Stop the reader for a device and close the device. The next time the
+     * device is needed, it is opened again. If the device is still being read
+     * or written, it is closed when that finishes.
+     */
+    @SneakyThrows
+    private synchronized void evict(final String path) {
+        final HubReader hubReader = hubReaders.remove(path);
+        if (hubReader != null) {
+            hubReader.close();
+        }
+
+        final UsbDevice usbDevice = openDevices.remove(path);
+        if (usbDevice != null) {
+            final AtomicInteger inUse = devicesInUse.get(usbDevice);
+            if (inUse != null && inUse.get() > 0) {
+                closeWhenIdle.add(usbDevice);
+            } else {
+                closeDevice(path, usbDevice);
+            }
+        }
+    }
+
+    /**
+     * Close a device that is no longer used. Call while holding the lock.
+     */
+    private void closeDevice(final String path, final UsbDevice usbDevice) {
+        devicesInUse.remove(usbDevice);
+        if (verbose) {
+            out.printf("  USB closing %s\n", path);
+        }
+        try {
+            usbDevice.close();
+        } catch (IOException e) {
+            err.printf("unexpected exception closing %s: %s", path,
+                    e.getMessage());
+        }
     }
 
     /**
@@ -73,61 +492,446 @@ public class Usb implements AutoCloseable {
      * 
      * @return A map with a data entry for each USB device handle.
      */
-    @SneakyThrows
     public Map<HubHandle, byte[]> readFromAll() {
         final Map<HubHandle, byte[]> packets = new HashMap<>();
-        for (final HIDDeviceInfo hidDeviceInfo : HIDManager.getInstance()
-                .listDevices()) {
-            if (hidDeviceInfo.getVendor_id() == VENDORID_LEGO
-                    && hidDeviceInfo.getProduct_id() == PRODUCTID_WEDOHUB) {
-                read(hidDeviceInfo, packets);
+        for (final Map.Entry<HubHandle, UsbPacket> packet : readPacketsFromAll()
+                .entrySet()) {
+            packets.put(packet.getKey(), packet.getValue().getData());
+        }
+        return packets;
+    }
+
+    /**
+     * Read a packet from each hub and hand it to the consumer. This is the
+     * allocation-free read path: packet buffers are reused for each hub and
+     * hub handles are interned. Apart from the occasional enumeration of the
+     * USB devices, polling this way does not create garbage in the blocking
+     * and continuous read modes. In parallel read mode, the packets are read
+     * in parallel first and then handed to the consumer one by one. In
+     * non-blocking read mode, each hub is polled once and hubs without new
+     * data hand over their last known packet. Compare the receive times to
+     * tell new packets from old ones.
+     * <p>
+     * The packet buffer is only valid for the duration of the call to the
+     * consumer. Consumers that want to keep the data must copy it.
+     * 
+     * @param consumer
+     *            The consumer to hand each packet to.
+     * @return The number of hubs that produced a packet.
+     */
+    public int readFromAll(final UsbPacketConsumer consumer) {
+        checkNotNull(consumer);
+        if (readMode == ReadMode.PARALLEL) {
+            final Map<HubHandle, UsbPacket> packets = readPacketsFromAll();
+            for (final Map.Entry<HubHandle, UsbPacket> packet : packets
+                    .entrySet()) {
+                consumer.accept(packet.getKey(), packet.getValue().getData(),
+                        packet.getValue().getReceivedNanos());
             }
+            return packets.size();
         }
 
-        return packets;
+        checkEnumeration();
+        int count = 0;
+        for (final HubHandle hubHandle : presentHubArray) {
+            final byte[] buffer = packetBuffers.get(hubHandle.getPath());
+            if (buffer == null) {
+                continue; // detached while we were reading
+            }
+            synchronized (buffer) {
+                final long receivedNanos = readInto(hubHandle, buffer);
+                if (receivedNanos != NO_PACKET) {
+                    consumer.accept(hubHandle, buffer, receivedNanos);
+                    count++;
+                }
+            }
+        }
+        return count;
     }
 
-    private void read(final HIDDeviceInfo hidDeviceInfo,
-            final Map<HubHandle, byte[]> packets) {
+    /**
+     * Read a single packet into the specified buffer, without allocating.
+     * 
+     * @return The time the packet was received, or <code>NO_PACKET</code>.
+     */
+    private long readInto(final HubHandle hubHandle, final byte[] buffer) {
         try {
-            final String productName = hidDeviceInfo.getProduct_string();
-            if (productName == null) {
-                // Typically a USB device permissions issue under Linux. If that
-                // is the case, you may need udev rules.
-                err.printf(
-                        "unable to read product name from %s, permission issue?",
-                        hidDeviceInfo.getPath());
-                return;
+            if (readMode == ReadMode.NON_BLOCKING) {
+                final PacketSlot lastPacket = poll(hubHandle, buffer);
+                if (lastPacket == null || !lastPacket.hasPacket()) {
+                    return NO_PACKET;
+                }
+                return lastPacket.copyTo(buffer);
+            }
+            if (readMode == ReadMode.CONTINUOUS) {
+                final HubReader hubReader = startReader(hubHandle);
+                if (hubReader == null) {
+                    return NO_PACKET;
+                }
+                if (!hubReader.hasPacket()) {
+                    hubReader.awaitFirstPacket(READ_TIMEOUT_MILLIS);
+                    if (!hubReader.hasPacket()) {
+                        return NO_PACKET;
+                    }
+                }
+                return hubReader.copyPacket(buffer);
+            }
+
+            final UsbDevice usbDevice = acquire(hubHandle);
+            if (usbDevice == null) {
+                return NO_PACKET;
+            }
+            final int bytesRead;
+            try {
+                bytesRead = usbDevice.readTimeout(buffer, READ_TIMEOUT_MILLIS);
+            } finally {
+                release(hubHandle, usbDevice);
+            }
+            if (bytesRead != PACKETSIZE) {
+                return NO_PACKET;
+            }
+            if (tracer != null) {
+                tracer.trace(USB_READ, hubHandle, buffer, 0);
+            }
+            return nanoTime();
+        } catch (IOException e) {
+            err.printf("unexpected exception reading from %s: %s", hubHandle,
+                    e.getMessage());
+            evict(hubHandle.getPath());
+            return NO_PACKET;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return NO_PACKET;
+        }
+    }
+
+    /**
+     * Read a packet from each device that matches our vendor ID and product ID
+     * filter. Unlike {@link #readFromAll()}, this method also tells us when
+     * each packet was received. In continuous read mode, that may be some time
+     * ago.
+     * 
+     * @return A map with a packet for each USB device handle.
+     */
+    public Map<HubHandle, UsbPacket> readPacketsFromAll() {
+        return readout().getPackets();
+    }
+
+    /**
+     * Read a packet from each device that matches our vendor ID and product ID
+     * filter, using the default deadline. The readout reports which hubs did
+     * not produce a packet in time. In non-blocking read mode, the default is
+     * not to wait at all.
+     * 
+     * @return The packets that were read, and the hubs that timed out.
+     */
+    public UsbReadout readout() {
+        return readout(readMode == ReadMode.NON_BLOCKING ? 0L
+                : READ_DEADLINE_MILLIS, MILLISECONDS);
+    }
+
+    /**
+     * Read a packet from each device that matches our vendor ID and product ID
+     * filter. All reading has to be done within the specified deadline. Hubs
+     * that did not produce a packet by then are reported as timed out.
+     * <p>
+     * In parallel read mode, all hubs are read at the same time, so the time
+     * this takes is that of the slowest hub, rather than the sum of all hubs.
+     * In blocking read mode, hubs that we did not get to before the deadline
+     * are skipped.
+     * <p>
+     * In non-blocking read mode, the hubs are polled until each has new data
+     * or the deadline passes. A deadline of 0 polls each hub just once. Hubs
+     * that had no new data are reported as timed out, but their last known
+     * packet is still included.
+     * 
+     * @param deadline
+     *            The time that all reads must be completed in.
+     * @param unit
+     *            The unit of the deadline.
+     * @return The packets that were read, and the hubs that timed out.
+     */
+    public UsbReadout readout(final long deadline, final TimeUnit unit) {
+        final long deadlineNanos = nanoTime() + unit.toNanos(deadline);
+        final Collection<HubHandle> hubs = getHubs();
+        if (readMode == ReadMode.PARALLEL) {
+            return readParallel(hubs, deadlineNanos);
+        }
+        if (readMode == ReadMode.NON_BLOCKING) {
+            return readNonBlocking(hubs, deadlineNanos);
+        }
+
+        final Map<HubHandle, UsbPacket> packets = new HashMap<>();
+        final Collection<HubHandle> timedOut = new ArrayList<>();
+        for (final HubHandle hubHandle : hubs) {
+            final UsbPacket packet = nanoTime() < deadlineNanos
+                    ? read(hubHandle) : null;
+            if (packet == null) {
+                timedOut.add(hubHandle);
+            } else {
+                packets.put(hubHandle, packet);
+            }
+        }
+        return new UsbReadout(packets, timedOut);
+    }
+
+    /**
+     * Poll all hubs round-robin until each of them produced new data or the
+     * deadline passed, whichever comes first.
+     */
+    private UsbReadout readNonBlocking(final Collection<HubHandle> hubs,
+            final long deadlineNanos) {
+        final Map<HubHandle, UsbPacket> packets = new HashMap<>();
+        final Collection<HubHandle> waiting = new ArrayList<>(hubs);
+        final byte[] buffer = new byte[PACKETSIZE];
+        for (;;) {
+            for (final Iterator<HubHandle> i = waiting.iterator(); i
+                    .hasNext();) {
+                final HubHandle hubHandle = i.next();
+                final long before = nanoTime();
+                final PacketSlot lastPacket;
+                try {
+                    lastPacket = poll(hubHandle, buffer);
+                } catch (IOException e) {
+                    err.printf("unexpected exception reading from %s: %s",
+                            hubHandle, e.getMessage());
+                    evict(hubHandle.getPath());
+                    i.remove();
+                    continue;
+                }
+
+                final UsbPacket packet = lastPacket == null ? null
+                        : lastPacket.get();
+                if (packet != null && packet.getReceivedNanos() >= before) {
+                    packets.put(hubHandle, packet);
+                    i.remove();
+                }
+            }
+
+            if (waiting.isEmpty() || nanoTime() >= deadlineNanos) {
+                break;
+            }
+            parkNanos(POLL_INTERVAL_NANOS);
+        }
+
+        final Collection<HubHandle> timedOut = new ArrayList<>();
+        for (final HubHandle hubHandle : hubs) {
+            if (!packets.containsKey(hubHandle)) {
+                timedOut.add(hubHandle);
+                final PacketSlot lastPacket = lastPackets
+                        .get(hubHandle.getPath());
+                final UsbPacket packet = lastPacket == null ? null
+                        : lastPacket.get();
+                if (packet != null) {
+                    packets.put(hubHandle, packet);
+                }
+            }
+        }
+        return new UsbReadout(packets, timedOut);
+    }
+
+    /**
+     * Read the newest report from a hub without waiting, and remember it. This
+     * never waits, not even for the first packet of a hub that we never heard
+     * from. Such a hub's slot simply has no packet yet.
+     * 
+     * @return The hub's last known packet, or <code>null</code> if the hub is
+     *         not present or could not be opened.
+     */
+    private PacketSlot poll(final HubHandle hubHandle, final byte[] buffer)
+            throws IOException {
+        final PacketSlot lastPacket = lastPackets.get(hubHandle.getPath());
+        if (lastPacket == null) {
+            return null; // detached while we were reading
+        }
+        final UsbDevice usbDevice = acquire(hubHandle);
+        if (usbDevice == null) {
+            return null;
+        }
+
+        try {
+            synchronized (lastPacket) {
+                boolean fresh = false;
+                for (int i = 0; i < MAX_QUEUED_REPORTS; i++) {
+                    if (usbDevice.readNonBlocking(buffer) != PACKETSIZE) {
+                        break;
+                    }
+                    fresh = true;
+                }
+                if (fresh) {
+                    lastPacket.publish(buffer, nanoTime());
+                    if (tracer != null) {
+                        tracer.trace(USB_READ, hubHandle, buffer, 0);
+                    }
+                }
+            }
+        } finally {
+            release(hubHandle, usbDevice);
+        }
+        return lastPacket;
+    }
+
+    /**
+     * Scatter the reads over the reader pool and gather the results until the
+     * shared deadline passes. A hub whose previous read is still in progress
+     * is not read again, since a single device cannot do two reads at once.
+     */
+    private UsbReadout readParallel(final Collection<HubHandle> hubs,
+            final long deadlineNanos) {
+        final ExecutorService readerPool = getReaderPool();
+        final Map<HubHandle, Future<UsbPacket>> reads = new HashMap<>();
+        final Collection<HubHandle> timedOut = new ArrayList<>();
+        for (final HubHandle hubHandle : hubs) {
+            if (readsInProgress.add(hubHandle.getPath())) {
+                reads.put(hubHandle,
+                        readerPool.submit(new Callable<UsbPacket>() {
+                            @Override
+                            public UsbPacket call() {
+                                try {
+                                    return read(hubHandle);
+                                } finally {
+                                    readsInProgress
+                                            .remove(hubHandle.getPath());
+                                }
+                            }
+                        }));
+            } else {
+                timedOut.add(hubHandle);
+            }
+        }
+
+        final Map<HubHandle, UsbPacket> packets = new HashMap<>();
+        for (final Map.Entry<HubHandle, Future<UsbPacket>> read : reads
+                .entrySet()) {
+            final UsbPacket packet = gather(read.getKey(), read.getValue(),
+                    deadlineNanos);
+            if (packet == null) {
+                timedOut.add(read.getKey());
+            } else {
+                packets.put(read.getKey(), packet);
+            }
+        }
+        return new UsbReadout(packets, timedOut);
+    }
+
+    private UsbPacket gather(final HubHandle hubHandle,
+            final Future<UsbPacket> read, final long deadlineNanos) {
+        try {
+            return read.get(Math.max(0L, deadlineNanos - nanoTime()),
+                    NANOSECONDS);
+        } catch (TimeoutException e) {
+            err.printf("no packet from %s before the deadline, timeout?",
+                    hubHandle);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            err.printf("unexpected exception reading from %s: %s", hubHandle,
+                    e.getCause().getMessage());
+        }
+        return null;
+    }
+
+    private synchronized ExecutorService getReaderPool() {
+        if (readerPool == null) {
+            readerPool = newFixedThreadPool(PARALLEL_READERS,
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("USB parallel reader %d").build());
+        }
+        return readerPool;
+    }
+
+    private UsbPacket read(final HubHandle hubHandle) {
+        try {
+            if (readMode == ReadMode.NON_BLOCKING) {
+                final PacketSlot lastPacket = poll(hubHandle,
+                        new byte[PACKETSIZE]);
+                return lastPacket == null ? null : lastPacket.get();
+            }
+            if (readMode == ReadMode.CONTINUOUS) {
+                return readContinuous(hubHandle);
             }
-            final HubHandle hubHandle = new HubHandle(hidDeviceInfo.getPath(),
-                    productName);
 
+            final UsbDevice usbDevice = acquire(hubHandle);
+            if (usbDevice == null) {
+                return null;
+            }
             final byte[] buffer = new byte[PACKETSIZE];
-            final int bytesRead = open(hubHandle).readTimeout(buffer,
-                    (int) MILLISECONDS.toMillis(100L));
+            final int bytesRead;
+            try {
+                bytesRead = usbDevice.readTimeout(buffer, READ_TIMEOUT_MILLIS);
+            } finally {
+                release(hubHandle, usbDevice);
+            }
             if (bytesRead != PACKETSIZE) {
                 // there was a time-out, and we did not get a packet.
                 err.printf(
                         "expected %d bytes but received %d reading %s, timeout?",
                         PACKETSIZE, bytesRead, hubHandle);
-                return;
+                return null;
             }
 
-            if (verbose) {
-                out.printf(
-                        "  USB read  %s: 0x%02x 0x%02x [value A: 0x%02x] [id A: 0x%02x] [value B: 0x%02x] [id B: 0x%02x] 0x%02x 0x%02x\n",
-                        hubHandle, buffer[0], buffer[1], buffer[2], buffer[3],
-                        buffer[4], buffer[5], buffer[6], buffer[7]);
+            if (tracer != null) {
+                tracer.trace(USB_READ, hubHandle, buffer, 0);
             }
 
-            packets.put(hubHandle, buffer);
+            return new UsbPacket(buffer, nanoTime());
         } catch (IOException e) {
-            err.printf("unexpected exception reading from %s: %s",
-                    hidDeviceInfo.getPath(), e.getMessage());
-            e.printStackTrace();
+            err.printf("unexpected exception reading from %s: %s", hubHandle,
+                    e.getMessage());
+            evict(hubHandle.getPath());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
     }
 
+    /**
+     * Pick up the latest packet from the hub's background reader. A reader is
+     * started when we first see a hub, or when the previous reader stopped
+     * because of an I/O error. Only for new readers do we wait for the first
+     * packet, so that the very first read behaves like a blocking one.
+     */
+    private UsbPacket readContinuous(final HubHandle hubHandle)
+            throws IOException, InterruptedException {
+        final HubReader hubReader = startReader(hubHandle);
+        if (hubReader == null) {
+            return null;
+        }
+
+        final UsbPacket packet = hubReader.hasPacket() ? hubReader.getPacket()
+                : hubReader.awaitFirstPacket(READ_TIMEOUT_MILLIS);
+        if (packet == null) {
+            err.printf("no packet received yet from %s, timeout?", hubHandle);
+        }
+        return packet;
+    }
+
+    /**
+     * Find the running reader for a hub, starting a new one if needed.
+     * 
+     * @return The reader, or <code>null</code> if the device could not be
+     *         opened.
+     */
+    private synchronized HubReader startReader(final HubHandle hubHandle)
+            throws IOException {
+        HubReader hubReader = hubReaders.get(hubHandle.getPath());
+        if (hubReader == null || !hubReader.isRunning()) {
+            if (hubReader != null) {
+                // the reader stopped on an I/O error, the device is suspect
+                evict(hubHandle.getPath());
+            }
+            final UsbDevice usbDevice = open(hubHandle);
+            if (usbDevice == null) {
+                return null;
+            }
+            hubReader = new HubReader(hubHandle, usbDevice,
+                    READ_TIMEOUT_MILLIS, verbose);
+            hubReaders.put(hubHandle.getPath(), hubReader);
+        }
+        return hubReader;
+    }
+
     /**
      * Write a packet of bytes to the USB device. If the write fails, an
      * exception is thrown.
@@ -143,14 +947,24 @@ public class Usb implements AutoCloseable {
         checkNotNull(buffer);
         checkArgument(buffer.length == 9);
 
-        if (verbose) {
-            out.printf(
-                    "  USB write %s: 0x%02x 0x%02x [value A: 0x%02x] [value B: 0x%02x] 0x%02x 0x%02x 0x%02x 0x%02x 0x%02x\n",
-                    hubHandle, buffer[0], buffer[1], buffer[2], buffer[3],
-                    buffer[4], buffer[5], buffer[6], buffer[7], buffer[8]);
+        if (tracer != null) {
+            tracer.trace(USB_WRITE, hubHandle, buffer, 1);
         }
 
-        final int bytesWritten = open(hubHandle).write(buffer);
+        final UsbDevice usbDevice = acquire(hubHandle);
+        if (usbDevice == null) {
+            throw new IOException(format("unable to open %s", hubHandle));
+        }
+
+        final int bytesWritten;
+        try {
+            bytesWritten = usbDevice.write(buffer);
+        } catch (IOException e) {
+            release(hubHandle, usbDevice);
+            evict(hubHandle.getPath());
+            throw e;
+        }
+        release(hubHandle, usbDevice);
         if (bytesWritten != buffer.length) {
             throw new IOException(
                     format("expected to write %d bytes to %s, but wrote %d",
@@ -158,20 +972,106 @@ public class Usb implements AutoCloseable {
         }
     }
 
-    private synchronized HIDDevice open(final HubHandle hubHandle)
+    /**
+     * Find the open device for a hub, opening it if needed. Devices that
+     * recently failed to open are not retried until their back-off time has
+     * passed. When there are too many open devices, the least recently used
+     * one is closed.
+     * 
+     * @return The open device, or <code>null</code> if it could not be opened.
+     */
+    private synchronized UsbDevice open(final HubHandle hubHandle)
             throws IOException {
-        HIDDevice hidDevice = openDevices.get(hubHandle.getPath());
-        if (hidDevice == null) {
-            hidDevice = HIDManager.getInstance()
-                    .openByPath(hubHandle.getPath());
-            if (hidDevice == null) {
-                err.printf(
-                        "unable to open device %s, claimed by another application?",
-                        hubHandle);
+        final String path = hubHandle.getPath();
+        UsbDevice usbDevice = openDevices.get(path);
+        if (usbDevice != null) {
+            return usbDevice;
+        }
+
+        OpenFailure openFailure = openFailures.get(path);
+        if (openFailure != null && nanoTime() < openFailure.notBeforeNanos) {
+            return null; // still backing off
+        }
+
+        usbDevice = usbBackend.openByPath(path);
+        if (usbDevice == null) {
+            if (openFailure == null) {
+                openFailure = new OpenFailure();
+                openFailures.put(path, openFailure);
+            }
+            final long backoffNanos = Math.min(MAX_REOPEN_BACKOFF_NANOS,
+                    MIN_REOPEN_BACKOFF_NANOS << Math.min(openFailure.failures,
+                            16));
+            openFailure.failures++;
+            openFailure.notBeforeNanos = nanoTime() + backoffNanos;
+            err.printf(
+                    "unable to open device %s, claimed by another application? Retrying in %d ms.",
+                    hubHandle, NANOSECONDS.toMillis(backoffNanos));
+            return null;
+        }
+        openFailures.remove(path);
+
+        makeRoom();
+        openDevices.put(path, usbDevice);
+        return usbDevice;
+    }
+
+    /**
+     * Close the least recently used devices until there is room for one more.
+     * Devices that are being read or written, or that have a background
+     * reader, are skipped. If they are all busy, we go over the limit rather
+     * than close a device under a read. Call while holding the lock.
+     */
+    private void makeRoom() {
+        final int excess = openDevices.size() - maxOpenDevices + 1;
+        if (excess <= 0) {
+            return;
+        }
+
+        final List<String> idle = new ArrayList<>();
+        for (final Map.Entry<String, UsbDevice> openDevice : openDevices
+                .entrySet()) {
+            final String path = openDevice.getKey();
+            final AtomicInteger inUse = devicesInUse
+                    .get(openDevice.getValue());
+            if (idle.size() < excess && (inUse == null || inUse.get() == 0)
+                    && !hubReaders.containsKey(path)) {
+                idle.add(path);
+            }
+        }
+        for (final String path : idle) {
+            evict(path);
+        }
+    }
+
+    /**
+     * Open a device for a read or a write outside the lock, and mark it as in
+     * use. Each successful call must be paired with a call to
+     * {@link #release(HubHandle, UsbDevice)}.
+     * 
+     * @return The open device, or <code>null</code> if it could not be opened.
+     */
+    private synchronized UsbDevice acquire(final HubHandle hubHandle)
+            throws IOException {
+        final UsbDevice usbDevice = open(hubHandle);
+        if (usbDevice != null) {
+            AtomicInteger inUse = devicesInUse.get(usbDevice);
+            if (inUse == null) {
+                inUse = new AtomicInteger();
+                devicesInUse.put(usbDevice, inUse);
             }
-            openDevices.put(hubHandle.getPath(), hidDevice);
+            inUse.incrementAndGet();
+        }
+        return usbDevice;
+    }
+
+    private synchronized void release(final HubHandle hubHandle,
+            final UsbDevice usbDevice) {
+        final AtomicInteger inUse = devicesInUse.get(usbDevice);
+        if (inUse != null && inUse.decrementAndGet() == 0
+                && closeWhenIdle.remove(usbDevice)) {
+            closeDevice(hubHandle.getPath(), usbDevice);
         }
-        return hidDevice;
     }
 
     /**
@@ -179,10 +1079,36 @@ public class Usb implements AutoCloseable {
      */
     @Override
     @SneakyThrows
-    public synchronized void close() {
-        for (final HIDDevice hidDevice : openDevices.values()) {
-            hidDevice.close();
+    public void close() {
+        final ExecutorService pool;
+        synchronized (this) {
+            pool = readerPool;
+        }
+        if (pool != null) {
+            // let reads that are in progress finish before closing devices
+            pool.shutdown();
+            pool.awaitTermination(READ_DEADLINE_MILLIS, MILLISECONDS);
+        }
+
+        synchronized (this) {
+            for (final HubReader hubReader : hubReaders.values()) {
+                hubReader.close();
+            }
+            hubReaders.clear();
+            for (final UsbDevice usbDevice : openDevices.values()) {
+                usbDevice.close();
+            }
+            openDevices.clear();
+            for (final UsbDevice usbDevice : closeWhenIdle) {
+                usbDevice.close();
+            }
+            closeWhenIdle.clear();
+            devicesInUse.clear();
+            usbBackend.release();
+        }
+
+        if (tracer != null) {
+            tracer.flush();
         }
-        HIDManager.getInstance().release();
     }
 }
@@ -0,0 +1,44 @@
+package org.kjkoster.wedo.transport.usb;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The service provider interface for the HID operations that {@link Usb}
+ * needs. The default implementation talks to real hardware through hidapi, but
+ * this interface makes it possible to plug in simulated hubs for testing and
+ * benchmarking.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public interface UsbBackend {
+    /**
+     * List the HID devices that are currently attached.
+     *
+     * @return The attached devices. May be empty, but is never
+     *         <code>null</code>.
+     * @throws IOException
+     *             When the devices could not be listed.
+     */
+    List<UsbDeviceInfo> listDevices() throws IOException;
+
+    /**
+     * Open a device by its path.
+     *
+     * @param path
+     *            The path of the device to open.
+     * @return The opened device, or <code>null</code> if the device could not
+     *         be opened.
+     * @throws IOException
+     *             When opening the device failed.
+     */
+    UsbDevice openByPath(String path) throws IOException;
+
+    /**
+     * Release any resources that this backend holds.
+     *
+     * @throws IOException
+     *             When releasing the resources failed.
+     */
+    void release() throws IOException;
+}
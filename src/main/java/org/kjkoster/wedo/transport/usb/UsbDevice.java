@@ -0,0 +1,53 @@
+package org.kjkoster.wedo.transport.usb;
+
+import java.io.IOException;
+
+/**
+ * An opened HID device, as provided by a {@link UsbBackend}.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public interface UsbDevice {
+    /**
+     * Read a packet from the device, waiting at most the specified time.
+     *
+     * @param buffer
+     *            The buffer to read the packet into.
+     * @param timeoutMillis
+     *            The maximum time to wait for a packet.
+     * @return The number of bytes read, or 0 when there was a time-out.
+     * @throws IOException
+     *             When the read failed.
+     */
+    int readTimeout(byte[] buffer, int timeoutMillis) throws IOException;
+
+    /**
+     * Read a packet from the device if one is available, without waiting.
+     *
+     * @param buffer
+     *            The buffer to read the packet into.
+     * @return The number of bytes read, or 0 when no packet was available.
+     * @throws IOException
+     *             When the read failed.
+     */
+    int readNonBlocking(byte[] buffer) throws IOException;
+
+    /**
+     * Write a packet to the device.
+     *
+     * @param buffer
+     *            The bytes to write.
+     * @return The number of bytes written.
+     * @throws IOException
+     *             When the write failed.
+     */
+    int write(byte[] buffer) throws IOException;
+
+    /**
+     * Close the device.
+     *
+     * @throws IOException
+     *             When closing the device failed.
+     */
+    void close() throws IOException;
+}
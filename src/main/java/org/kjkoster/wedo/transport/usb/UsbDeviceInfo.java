@@ -0,0 +1,40 @@
+package org.kjkoster.wedo.transport.usb;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import lombok.Value;
+
+/**
+ * The description of an attached HID device, as listed by a
+ * {@link UsbBackend}.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+@Value
+public class UsbDeviceInfo {
+    private final String path;
+    private final int vendorId;
+    private final int productId;
+    private final String productName;
+
+    /**
+     * Describe a new HID device.
+     *
+     * @param path
+     *            The path that can be used to open the device.
+     * @param vendorId
+     *            The USB vendor ID.
+     * @param productId
+     *            The USB product ID.
+     * @param productName
+     *            The product name, or <code>null</code> if it could not be
+     *            read. Typically that is a permissions issue.
+     */
+    public UsbDeviceInfo(final String path, final int vendorId,
+            final int productId, final String productName) {
+        this.path = checkNotNull(path);
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.productName = productName;
+    }
+}
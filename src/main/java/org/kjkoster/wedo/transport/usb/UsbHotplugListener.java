@@ -0,0 +1,29 @@
+package org.kjkoster.wedo.transport.usb;
+
+/**
+ * A listener that is told when LEGO hubs are plugged in or unplugged. Events
+ * are computed by comparing each enumeration of the USB devices with the
+ * previous one, so they arrive no sooner than the enumeration interval.
+ * <p>
+ * Listeners are called on the thread that triggered the enumeration. They
+ * should return quickly.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public interface UsbHotplugListener {
+    /**
+     * A hub was found that was not there during the previous enumeration.
+     *
+     * @param hubHandle
+     *            The hub that was plugged in.
+     */
+    void attached(HubHandle hubHandle);
+
+    /**
+     * A hub that was there during the previous enumeration has disappeared.
+     *
+     * @param hubHandle
+     *            The hub that was unplugged.
+     */
+    void detached(HubHandle hubHandle);
+}
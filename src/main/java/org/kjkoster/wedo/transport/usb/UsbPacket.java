@@ -0,0 +1,31 @@
+package org.kjkoster.wedo.transport.usb;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import lombok.Value;
+
+/**
+ * A single packet as it was read from a USB device, together with the moment
+ * it was received.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+@Value
+public class UsbPacket {
+    private final byte[] data;
+    private final long receivedNanos;
+
+    /**
+     * Create a new packet.
+     *
+     * @param data
+     *            The raw bytes of the packet.
+     * @param receivedNanos
+     *            The value of <code>System.nanoTime()</code> at the moment
+     *            that the packet was received.
+     */
+    public UsbPacket(final byte[] data, final long receivedNanos) {
+        this.data = checkNotNull(data);
+        this.receivedNanos = receivedNanos;
+    }
+}
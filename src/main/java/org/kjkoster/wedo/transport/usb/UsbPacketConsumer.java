@@ -0,0 +1,23 @@
+package org.kjkoster.wedo.transport.usb;
+
+/**
+ * A callback for the allocation-free read path of {@link Usb}. The consumer is
+ * handed a reused buffer for each packet.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public interface UsbPacketConsumer {
+    /**
+     * Accept a packet that was read from a hub. The packet buffer is only
+     * valid for the duration of this call.
+     *
+     * @param hubHandle
+     *            The hub that the packet was read from.
+     * @param packet
+     *            The packet's bytes.
+     * @param receivedNanos
+     *            The moment the packet was received, as
+     *            <code>System.nanoTime()</code>.
+     */
+    void accept(HubHandle hubHandle, byte[] packet, long receivedNanos);
+}
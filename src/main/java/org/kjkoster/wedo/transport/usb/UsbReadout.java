@@ -0,0 +1,62 @@
+package org.kjkoster.wedo.transport.usb;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.Collections.unmodifiableCollection;
+import static java.util.Collections.unmodifiableMap;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The result of reading from all hubs. Not all hubs may have answered in time,
+ * so next to the packets that were read, a readout also lists the hubs that
+ * did not produce a packet before the deadline.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class UsbReadout {
+    private final Map<HubHandle, UsbPacket> packets;
+    private final Collection<HubHandle> timedOut;
+
+    /**
+     * Create a new readout.
+     *
+     * @param packets
+     *            The packets that were read, by hub.
+     * @param timedOut
+     *            The hubs that did not produce a packet in time.
+     */
+    public UsbReadout(final Map<HubHandle, UsbPacket> packets,
+            final Collection<HubHandle> timedOut) {
+        this.packets = unmodifiableMap(checkNotNull(packets));
+        this.timedOut = unmodifiableCollection(checkNotNull(timedOut));
+    }
+
+    /**
+     * Find the packets that were read. This map is immutable.
+     *
+     * @return The packets that were read, by hub.
+     */
+    public Map<HubHandle, UsbPacket> getPackets() {
+        return packets;
+    }
+
+    /**
+     * Find the hubs that did not produce a packet before the deadline. This
+     * collection is immutable.
+     *
+     * @return The hubs that timed out.
+     */
+    public Collection<HubHandle> getTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Check if all hubs produced a packet.
+     *
+     * @return <code>true</code> if no hubs timed out.
+     */
+    public boolean isComplete() {
+        return timedOut.isEmpty();
+    }
+}
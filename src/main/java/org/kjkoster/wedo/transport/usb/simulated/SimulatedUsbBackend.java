@@ -0,0 +1,116 @@
+package org.kjkoster.wedo.transport.usb.simulated;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.kjkoster.wedo.transport.usb.Usb.PRODUCTID_WEDOHUB;
+import static org.kjkoster.wedo.transport.usb.Usb.VENDORID_LEGO;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kjkoster.wedo.transport.usb.UsbBackend;
+import org.kjkoster.wedo.transport.usb.UsbDevice;
+import org.kjkoster.wedo.transport.usb.UsbDeviceInfo;
+
+/**
+ * An in-memory USB backend with simulated LEGO WeDo hubs. This lets us test
+ * and benchmark the WeDo code without physical hubs. Hubs can be plugged in and
+ * unplugged at any time, just like real ones.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class SimulatedUsbBackend implements UsbBackend {
+    private final Map<String, SimulatedWeDoHub> hubs = new ConcurrentHashMap<>();
+
+    /**
+     * Plug in a simulated hub.
+     *
+     * @param simulatedWeDoHub
+     *            The hub to plug in.
+     */
+    public void plug(final SimulatedWeDoHub simulatedWeDoHub) {
+        checkNotNull(simulatedWeDoHub);
+        simulatedWeDoHub.setPlugged(true);
+        hubs.put(simulatedWeDoHub.getPath(), simulatedWeDoHub);
+    }
+
+    /**
+     * Plug in a number of identical simulated hubs. The hubs get the paths
+     * <code>simulated-0</code>, <code>simulated-1</code> and so on.
+     *
+     * @param count
+     *            The number of hubs to plug in.
+     * @param idA
+     *            The brick ID to report for port A.
+     * @param waveformA
+     *            The values to report for port A.
+     * @param idB
+     *            The brick ID to report for port B.
+     * @param waveformB
+     *            The values to report for port B.
+     * @param latencyMillis
+     *            How long each read takes, in milliseconds.
+     */
+    public void plug(final int count, final byte idA, final Waveform waveformA,
+            final byte idB, final Waveform waveformB,
+            final long latencyMillis) {
+        for (int i = 0; i < count; i++) {
+            plug(new SimulatedWeDoHub("simulated-" + i, idA, waveformA, idB,
+                    waveformB, latencyMillis));
+        }
+    }
+
+    /**
+     * Unplug a simulated hub. Any further I/O on that hub fails.
+     *
+     * @param path
+     *            The path of the hub to unplug.
+     */
+    public void unplug(final String path) {
+        final SimulatedWeDoHub simulatedWeDoHub = hubs.remove(path);
+        if (simulatedWeDoHub != null) {
+            simulatedWeDoHub.setPlugged(false);
+        }
+    }
+
+    /**
+     * Find the simulated hubs that are currently plugged in.
+     *
+     * @return The plugged in hubs.
+     */
+    public Collection<SimulatedWeDoHub> getHubs() {
+        return new ArrayList<>(hubs.values());
+    }
+
+    /**
+     * @see org.kjkoster.wedo.transport.usb.UsbBackend#listDevices()
+     */
+    @Override
+    public List<UsbDeviceInfo> listDevices() {
+        final List<UsbDeviceInfo> devices = new ArrayList<>();
+        for (final SimulatedWeDoHub simulatedWeDoHub : hubs.values()) {
+            devices.add(new UsbDeviceInfo(simulatedWeDoHub.getPath(),
+                    VENDORID_LEGO, PRODUCTID_WEDOHUB,
+                    simulatedWeDoHub.getProductName()));
+        }
+        return devices;
+    }
+
+    /**
+     * @see org.kjkoster.wedo.transport.usb.UsbBackend#openByPath(java.lang.String)
+     */
+    @Override
+    public UsbDevice openByPath(final String path) {
+        return hubs.get(path);
+    }
+
+    /**
+     * @see org.kjkoster.wedo.transport.usb.UsbBackend#release()
+     */
+    @Override
+    public void release() {
+        // nothing to release
+    }
+}
@@ -0,0 +1,298 @@
+package org.kjkoster.wedo.transport.usb.simulated;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kjkoster.wedo.transport.usb.UsbDevice;
+
+/**
+ * A simulated LEGO WeDo hub. The hub reports the brick IDs that it was
+ * configured with, and the values of the waveforms for each port. Reads take
+ * the configured latency, and when the latency exceeds the read time-out, the
+ * read times out just like a real hub that has nothing to say. For
+ * non-blocking reads, the latency is the time between two reports.
+ * <p>
+ * Brick IDs follow the ranges that real WeDo hubs use, such as 0xe6 for an
+ * empty port, 0xee for a motor, 0xcb for a light, 0xb0 for a distance sensor
+ * and 0x26 for a tilt sensor.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class SimulatedWeDoHub implements UsbDevice {
+    /**
+     * The brick ID of an empty port.
+     */
+    public static final byte ID_NOT_CONNECTED = (byte) 0xe6;
+
+    /**
+     * The brick ID of a motor.
+     */
+    public static final byte ID_MOTOR = (byte) 0xee;
+
+    /**
+     * The brick ID of a light.
+     */
+    public static final byte ID_LIGHT = (byte) 0xcb;
+
+    /**
+     * The brick ID of a distance sensor.
+     */
+    public static final byte ID_DISTANCE = (byte) 0xb0;
+
+    /**
+     * The brick ID of a tilt sensor.
+     */
+    public static final byte ID_TILT = (byte) 0x26;
+
+    private static final String PRODUCT_NAME = "LEGO USB Hub V1.00";
+
+    private final String path;
+    private final byte idA;
+    private final Waveform waveformA;
+    private final byte idB;
+    private final Waveform waveformB;
+    private final long latencyNanos;
+    private volatile long writeLatencyNanos = 0L;
+
+    private volatile boolean plugged = true;
+    private volatile byte valueA = 0x00;
+    private volatile byte valueB = 0x00;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong closes = new AtomicLong();
+    private final AtomicLong closesInUse = new AtomicLong();
+    private long nextReportNanos = nanoTime();
+
+    /**
+     * Create a new simulated hub.
+     *
+     * @param path
+     *            The USB path of this hub.
+     * @param idA
+     *            The brick ID to report for port A.
+     * @param waveformA
+     *            The values to report for port A.
+     * @param idB
+     *            The brick ID to report for port B.
+     * @param waveformB
+     *            The values to report for port B.
+     * @param latencyMillis
+     *            How long each read takes, in milliseconds.
+     */
+    public SimulatedWeDoHub(final String path, final byte idA,
+            final Waveform waveformA, final byte idB, final Waveform waveformB,
+            final long latencyMillis) {
+        super();
+
+        this.path = checkNotNull(path);
+        this.idA = idA;
+        this.waveformA = checkNotNull(waveformA);
+        this.idB = idB;
+        this.waveformB = checkNotNull(waveformB);
+        checkArgument(latencyMillis >= 0L, "negative latency %s",
+                latencyMillis);
+        this.latencyNanos = MILLISECONDS.toNanos(latencyMillis);
+    }
+
+    /**
+     * Get the USB path of this hub.
+     *
+     * @return The path of this hub.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get the product name that this hub reports.
+     *
+     * @return The product name.
+     */
+    public String getProductName() {
+        return PRODUCT_NAME;
+    }
+
+    /**
+     * Find the last value written for port A.
+     *
+     * @return The last value written for port A.
+     */
+    public byte getValueA() {
+        return valueA;
+    }
+
+    /**
+     * Find the last value written for port B.
+     *
+     * @return The last value written for port B.
+     */
+    public byte getValueB() {
+        return valueB;
+    }
+
+    /**
+     * Count the number of packets that were read from this hub.
+     *
+     * @return The number of successful reads.
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * Count the number of packets that were written to this hub.
+     *
+     * @return The number of successful writes.
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Count the times that this hub was closed.
+     *
+     * @return The number of closes.
+     */
+    public long getCloses() {
+        return closes.get();
+    }
+
+    /**
+     * Count the times that this hub was closed while a read or a write was in
+     * progress. Real hidapi devices crash the JVM when that happens.
+     *
+     * @return The number of closes during a read or a write.
+     */
+    public long getClosesInUse() {
+        return closesInUse.get();
+    }
+
+    /**
+     * Make each write take some time, like a real hub on a busy bus.
+     *
+     * @param writeLatencyMillis
+     *            How long each write takes, in milliseconds.
+     */
+    public void setWriteLatency(final long writeLatencyMillis) {
+        checkArgument(writeLatencyMillis >= 0L, "negative latency %s",
+                writeLatencyMillis);
+        this.writeLatencyNanos = MILLISECONDS.toNanos(writeLatencyMillis);
+    }
+
+    void setPlugged(final boolean plugged) {
+        this.plugged = plugged;
+    }
+
+    boolean isPlugged() {
+        return plugged;
+    }
+
+    /**
+     * @see org.kjkoster.wedo.transport.usb.UsbDevice#readTimeout(byte[], int)
+     */
+    @Override
+    public int readTimeout(final byte[] buffer, final int timeoutMillis)
+            throws IOException {
+        checkPlugged();
+        checkArgument(buffer.length >= 8, "buffer too small");
+
+        inUse.incrementAndGet();
+        try {
+            final long timeoutNanos = MILLISECONDS.toNanos(timeoutMillis);
+            if (latencyNanos > timeoutNanos) {
+                sleepNanos(timeoutNanos);
+                return 0;
+            }
+            sleepNanos(latencyNanos);
+            checkPlugged();
+
+            report(buffer, nanoTime());
+            return 8;
+        } finally {
+            inUse.decrementAndGet();
+        }
+    }
+
+    /**
+     * @see org.kjkoster.wedo.transport.usb.UsbDevice#readNonBlocking(byte[])
+     */
+    @Override
+    public synchronized int readNonBlocking(final byte[] buffer)
+            throws IOException {
+        checkPlugged();
+        checkArgument(buffer.length >= 8, "buffer too small");
+
+        final long now = nanoTime();
+        if (now - nextReportNanos < 0L) {
+            return 0;
+        }
+        nextReportNanos = now + latencyNanos;
+        report(buffer, now);
+        return 8;
+    }
+
+    private void report(final byte[] buffer, final long now) {
+        buffer[0] = (byte) reads.incrementAndGet();
+        buffer[1] = 0x00;
+        buffer[2] = waveformA.sample(now);
+        buffer[3] = idA;
+        buffer[4] = waveformB.sample(now);
+        buffer[5] = idB;
+        buffer[6] = 0x00;
+        buffer[7] = 0x00;
+    }
+
+    /**
+     * @see org.kjkoster.wedo.transport.usb.UsbDevice#write(byte[])
+     */
+    @Override
+    public int write(final byte[] buffer) throws IOException {
+        checkPlugged();
+        checkArgument(buffer.length == 9, "expected 9 bytes, got %s",
+                buffer.length);
+        inUse.incrementAndGet();
+        try {
+            sleepNanos(writeLatencyNanos);
+        } finally {
+            inUse.decrementAndGet();
+        }
+
+        valueA = buffer[2];
+        valueB = buffer[3];
+        writes.incrementAndGet();
+        return buffer.length;
+    }
+
+    /**
+     * @see org.kjkoster.wedo.transport.usb.UsbDevice#close()
+     */
+    @Override
+    public void close() {
+        closes.incrementAndGet();
+        if (inUse.get() > 0) {
+            closesInUse.incrementAndGet();
+        }
+    }
+
+    private void checkPlugged() throws IOException {
+        if (!plugged) {
+            throw new IOException("device " + path + " was unplugged");
+        }
+    }
+
+    private static void sleepNanos(final long nanos) {
+        final long deadline = nanoTime() + nanos;
+        for (long remaining = nanos; remaining > 0L; remaining = deadline
+                - nanoTime()) {
+            parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.kjkoster.wedo.transport.usb.simulated;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * The value that a simulated brick reports over time. A waveform is sampled
+ * every time a simulated hub produces a packet.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public interface Waveform {
+    /**
+     * Find the value of this waveform at a given moment.
+     *
+     * @param nanos
+     *            The moment to sample, as <code>System.nanoTime()</code>.
+     * @return The raw value byte at that moment.
+     */
+    byte sample(long nanos);
+
+    /**
+     * A waveform that never changes.
+     *
+     * @param value
+     *            The value to report.
+     * @return The constant waveform.
+     */
+    static Waveform constant(final byte value) {
+        return new Waveform() {
+            @Override
+            public byte sample(final long nanos) {
+                return value;
+            }
+        };
+    }
+
+    /**
+     * A waveform that toggles between two values.
+     *
+     * @param low
+     *            The value during the first half of the period.
+     * @param high
+     *            The value during the second half of the period.
+     * @param periodMillis
+     *            The length of one period in milliseconds.
+     * @return The square waveform.
+     */
+    static Waveform square(final byte low, final byte high,
+            final long periodMillis) {
+        final long periodNanos = MILLISECONDS.toNanos(periodMillis);
+        return new Waveform() {
+            @Override
+            public byte sample(final long nanos) {
+                return Math.floorMod(nanos, periodNanos) < periodNanos / 2L
+                        ? low : high;
+            }
+        };
+    }
+
+    /**
+     * A waveform that sweeps back and forth between two values, like a
+     * distance sensor with something moving in front of it.
+     *
+     * @param low
+     *            The lowest value (unsigned).
+     * @param high
+     *            The highest value (unsigned).
+     * @param periodMillis
+     *            The length of one period in milliseconds.
+     * @return The sine waveform.
+     */
+    static Waveform sine(final int low, final int high,
+            final long periodMillis) {
+        final long periodNanos = MILLISECONDS.toNanos(periodMillis);
+        return new Waveform() {
+            @Override
+            public byte sample(final long nanos) {
+                final double phase = 2.0 * Math.PI
+                        * Math.floorMod(nanos, periodNanos) / periodNanos;
+                return (byte) (low
+                        + (int) ((high - low) * (1.0 + Math.sin(phase)) / 2.0));
+            }
+        };
+    }
+}
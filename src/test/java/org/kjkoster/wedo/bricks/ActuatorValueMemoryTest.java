@@ -0,0 +1,87 @@
+package org.kjkoster.wedo.bricks;
+
+import static org.junit.Assert.assertEquals;
+import static org.kjkoster.wedo.bricks.Brick.Type.MOTOR;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for the actuator value memory.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class ActuatorValueMemoryTest {
+    private static Hub hub(final String path) {
+        return new Hub(path, "test hub", new Brick[] {
+                new Brick('A', MOTOR, (byte) 0),
+                new Brick('B', MOTOR, (byte) 0) });
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void valuesShouldBeRememberedPerHubAndPort() {
+        final ActuatorValueMemory actuatorValueMemory = new ActuatorValueMemory(
+                4);
+        final Hub one = hub("one");
+        final Hub two = hub("two");
+
+        assertEquals(0, actuatorValueMemory.read(one, 'C'));
+        actuatorValueMemory.write(one, 'A', (byte) -1);
+        actuatorValueMemory.write(one, 'D', (byte) 42);
+        actuatorValueMemory.write(two, 'B', (byte) 0x7f);
+
+        final byte[] frame = new byte[4];
+        actuatorValueMemory.readFrame(one, frame);
+        assertEquals(-1, frame[0]);
+        assertEquals(0, frame[1]);
+        assertEquals(0, frame[2]);
+        assertEquals(42, frame[3]);
+        assertEquals(0x7f, actuatorValueMemory.read(two, 'B'));
+        assertEquals(0, actuatorValueMemory.read(two, 'A'));
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void concurrentWritesShouldNotBeLostWhileGrowing()
+            throws Exception {
+        final int threads = 4;
+        final int hubsPerThread = 500;
+        final ActuatorValueMemory actuatorValueMemory = new ActuatorValueMemory(
+                threads);
+
+        final List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final char port = (char) ('A' + t);
+            writers.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < hubsPerThread; i++) {
+                        actuatorValueMemory.write(hub("hub-" + i), port,
+                                (byte) (i + port));
+                    }
+                }
+            });
+        }
+        for (final Thread writer : writers) {
+            writer.start();
+        }
+        for (final Thread writer : writers) {
+            writer.join();
+        }
+
+        for (int i = 0; i < hubsPerThread; i++) {
+            for (int t = 0; t < threads; t++) {
+                final char port = (char) ('A' + t);
+                assertEquals((byte) (i + port),
+                        actuatorValueMemory.read(hub("hub-" + i), port));
+            }
+        }
+    }
+}
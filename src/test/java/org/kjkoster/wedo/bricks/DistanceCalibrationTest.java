@@ -0,0 +1,48 @@
+package org.kjkoster.wedo.bricks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Tests for the distance sensor calibration profiles.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class DistanceCalibrationTest {
+    /**
+     * A test case.
+     */
+    @Test
+    public void theDefaultShouldMatchTheOriginalFormula() {
+        for (int value = 0; value < 256; value++) {
+            assertEquals((int) ((20.0 / 145.0) * (value - 69)),
+                    new Distance(value).getCm());
+        }
+        assertEquals(new Distance(200).getCm(), new Distance(-56).getCm());
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void sweepsShouldBeInterpolatedAndClamped() throws Exception {
+        final DistanceCalibration calibration = DistanceCalibration
+                .load(new StringReader("# raw value, cm\n" //
+                        + "100 2\n" //
+                        + "\n" //
+                        + "140 10\n" //
+                        + "140 12\n" //
+                        + "200 26\n"));
+
+        assertEquals(2, calibration.getCm(0));
+        assertEquals(2, calibration.getCm(100));
+        assertEquals(7, calibration.getCm(120)); // 6.5, rounded
+        assertEquals(11, calibration.getCm(140));
+        assertEquals(26, calibration.getCm(200));
+        assertEquals(26, calibration.getCm(255));
+        assertEquals(7, new Distance(120, calibration).getCm());
+    }
+}
@@ -0,0 +1,80 @@
+package org.kjkoster.wedo.bricks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.kjkoster.wedo.bricks.Tilt.Direction.LEFT;
+import static org.kjkoster.wedo.bricks.Tilt.Direction.NO_TILT;
+import static org.kjkoster.wedo.bricks.Tilt.Direction.RIGHT;
+import static org.kjkoster.wedo.bricks.Tilt.Quality.GOOD;
+import static org.kjkoster.wedo.bricks.Tilt.Quality.MOTOR_INTERFERENCE;
+import static org.kjkoster.wedo.bricks.Tilt.Quality.UNKNOWN_VALUE;
+
+import org.junit.Test;
+
+/**
+ * Tests for the tilt decoding and smoothing.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class TiltSmootherTest {
+    private static final Tilt INTERFERENCE = new Tilt((byte) 0x02);
+    private static final Tilt BETWEEN = new Tilt((byte) 100);
+    private static final Tilt FLAT = new Tilt((byte) 130);
+    private static final Tilt TO_THE_LEFT = new Tilt((byte) 220);
+    private static final Tilt TO_THE_RIGHT = new Tilt((byte) 75);
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void badSamplesShouldBeFlaggedRatherThanThrown() {
+        assertEquals(MOTOR_INTERFERENCE, INTERFERENCE.getQuality());
+        assertNull(INTERFERENCE.getDirection(null));
+        assertEquals(UNKNOWN_VALUE, BETWEEN.getQuality());
+        assertEquals(NO_TILT, BETWEEN.getDirection(NO_TILT));
+        assertEquals(GOOD, TO_THE_LEFT.getQuality());
+        assertEquals(LEFT, TO_THE_LEFT.getDirection(null));
+        assertEquals(LEFT, TO_THE_LEFT.getDirection());
+
+        // the range boundaries themselves belong to no direction
+        assertEquals(UNKNOWN_VALUE, new Tilt((byte) 40).getQuality());
+        assertEquals(GOOD, new Tilt((byte) 39).getQuality());
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void theMajorityShouldWin() {
+        final TiltSmoother tiltSmoother = new TiltSmoother(3);
+
+        assertNull(tiltSmoother.add(INTERFERENCE));
+        assertEquals(FLAT.getDirection(), tiltSmoother.add(FLAT));
+        // a tie goes to the newest sample
+        assertEquals(RIGHT, tiltSmoother.add(TO_THE_RIGHT));
+        assertEquals(RIGHT, tiltSmoother.add(TO_THE_RIGHT));
+        assertEquals(RIGHT, tiltSmoother.add(INTERFERENCE));
+        assertEquals(RIGHT, tiltSmoother.add(BETWEEN));
+        assertNull(tiltSmoother.add(INTERFERENCE));
+
+        tiltSmoother.add(TO_THE_LEFT);
+        tiltSmoother.reset();
+        assertNull(tiltSmoother.add(BETWEEN));
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void rawSamplesShouldVoteLikeTilts() {
+        final TiltSmoother tiltSmoother = new TiltSmoother(3);
+
+        assertNull(tiltSmoother.add(INTERFERENCE.getValue()));
+        assertEquals(RIGHT, tiltSmoother.add(TO_THE_RIGHT.getValue()));
+        assertEquals(LEFT, tiltSmoother.add(TO_THE_LEFT));
+        assertEquals(RIGHT, tiltSmoother.add(TO_THE_RIGHT.getValue()));
+        assertEquals(MOTOR_INTERFERENCE,
+                Tilt.getQuality(INTERFERENCE.getValue()));
+        assertEquals(NO_TILT, Tilt.getDirection(BETWEEN.getValue(), NO_TILT));
+    }
+}
@@ -0,0 +1,202 @@
+package org.kjkoster.wedo.systems.sbrick;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.kjkoster.wedo.bricks.Brick.Type.MOTOR;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+import org.kjkoster.wedo.bricks.ActuatorBatch;
+import org.kjkoster.wedo.bricks.Brick;
+import org.kjkoster.wedo.bricks.Hub;
+import org.kjkoster.wedo.transport.ble112.BLE112Address;
+import org.kjkoster.wedo.transport.ble112.BLE112Connections;
+import org.kjkoster.wedo.transport.ble112.BLE112Pool;
+import org.kjkoster.wedo.transport.ble112.simulated.SimulatedBGAPI;
+import org.kjkoster.wedo.transport.ble112.simulated.SimulatedSBrick;
+
+/**
+ * Tests for the SBricks, using a simulated BLE112 dongle.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class SBricksTest {
+    private static String path(final int i) {
+        return String.format("00:07:80:00:00:%02x", i);
+    }
+
+    private static Hub hub(final int i) {
+        return new Hub(path(i), "SBrick",
+                new Brick[] { new Brick('A', MOTOR), new Brick('B', MOTOR),
+                        new Brick('C', MOTOR), new Brick('D', MOTOR) });
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void moreSBricksThanConnectionsShouldTakeTurns() throws Exception {
+        final SimulatedBGAPI bgapi = new SimulatedBGAPI(2);
+        final SimulatedSBrick[] simulatedSBricks = new SimulatedSBrick[5];
+        final Collection<Hub> hubs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            simulatedSBricks[i] = new SimulatedSBrick(
+                    new BLE112Address(path(i), 0), 5L);
+            bgapi.add(simulatedSBricks[i]);
+            hubs.add(hub(i));
+        }
+
+        final BLE112Connections ble112Connections = new BLE112Connections(
+                bgapi);
+        ble112Connections.setTimeSlice(20L, MILLISECONDS);
+        try (final SBricks sBricks = new SBricks(bgapi, ble112Connections,
+                hubs)) {
+            for (int round = 1; round <= 3; round++) {
+                final ActuatorBatch batch = sBricks.batch();
+                for (int i = 0; i < 5; i++) {
+                    batch.set(path(i), 'A', (byte) round);
+                    batch.set(path(i), 'B', (byte) (i + round));
+                }
+                batch.commit().get(10L, SECONDS);
+                MILLISECONDS.sleep(50L); // the radio delivers the writes
+
+                for (int i = 0; i < 5; i++) {
+                    // each SBrick got the newest frame
+                    final byte[] written = simulatedSBricks[i].getLastWrite();
+                    assertEquals(round, written[0]);
+                    assertEquals(i + round, written[1]);
+                }
+                assertTrue(bgapi.getConnectionCount() <= 2);
+            }
+
+            assertEquals(2, ble112Connections.getMaxConnections());
+            for (int i = 0; i < 5; i++) {
+                assertTrue(ble112Connections.getMaxStaleness(
+                        new BLE112Address(path(i), 0), SECONDS) < 10L);
+            }
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void sBricksWithoutAConnectionShouldFailTheCommit()
+            throws Exception {
+        final SimulatedBGAPI bgapi = new SimulatedBGAPI(2);
+        final Collection<Hub> hubs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            bgapi.add(new SimulatedSBrick(new BLE112Address(path(i), 0), 5L));
+            hubs.add(hub(i));
+        }
+
+        // no time slice, so the third SBrick never gets a turn
+        final BLE112Connections ble112Connections = new BLE112Connections(
+                bgapi);
+        try (final SBricks sBricks = new SBricks(bgapi, ble112Connections,
+                hubs)) {
+            final long deadline = nanoTime() + SECONDS.toNanos(10L);
+            while (bgapi.getConnectionCount() < 2) {
+                assertTrue(nanoTime() - deadline < 0L);
+                MILLISECONDS.sleep(5L);
+            }
+
+            final ActuatorBatch batch = sBricks.batch();
+            for (int i = 0; i < 3; i++) {
+                batch.set(path(i), 'A', (byte) 42);
+            }
+            try {
+                batch.commit().get(10L, SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void moreDonglesShouldWriteFaster() throws Exception {
+        final long oneDongle = writeRounds(1);
+        final long twoDongles = writeRounds(2);
+        final long fourDongles = writeRounds(4);
+
+        assertTrue(oneDongle + " ms vs " + twoDongles + " ms",
+                twoDongles * 4L < oneDongle * 3L);
+        assertTrue(twoDongles + " ms vs " + fourDongles + " ms",
+                fourDongles * 4L < twoDongles * 3L);
+    }
+
+    /**
+     * Drive 8 SBricks for 20 rounds, spread over a number of dongles that
+     * each take 5 ms per write.
+     * 
+     * @return How long it took for all writes to reach the SBricks.
+     */
+    private static long writeRounds(final int dongleCount) throws Exception {
+        final SimulatedBGAPI[] bgapis = new SimulatedBGAPI[dongleCount];
+        for (int d = 0; d < dongleCount; d++) {
+            // exactly enough connections, so the SBricks spread evenly
+            bgapis[d] = new SimulatedBGAPI(8 / dongleCount);
+            bgapis[d].setWriteLatency(5L);
+        }
+        final Collection<Hub> hubs = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final SimulatedSBrick simulatedSBrick = new SimulatedSBrick(
+                    new BLE112Address(path(i), 0), 2L);
+            for (final SimulatedBGAPI bgapi : bgapis) {
+                bgapi.add(simulatedSBrick);
+            }
+            hubs.add(hub(i));
+        }
+
+        final BLE112Pool ble112Pool = new BLE112Pool(bgapis);
+        try (final SBricks sBricks = new SBricks(ble112Pool, hubs)) {
+            final long deadline = nanoTime() + SECONDS.toNanos(10L);
+            while (connectionCount(bgapis) < 8) {
+                assertTrue(nanoTime() - deadline < 0L);
+                MILLISECONDS.sleep(5L);
+            }
+
+            final long start = nanoTime();
+            for (int round = 1; round <= 20; round++) {
+                final ActuatorBatch batch = sBricks.batch();
+                for (int i = 0; i < 8; i++) {
+                    batch.set(path(i), 'A', (byte) round);
+                }
+                batch.commit().get(10L, SECONDS);
+            }
+            while (writes(bgapis) < 8L * 20L) {
+                assertTrue(nanoTime() - deadline < 0L);
+                MILLISECONDS.sleep(1L);
+            }
+            return NANOSECONDS.toMillis(nanoTime() - start);
+        }
+    }
+
+    private static int connectionCount(final SimulatedBGAPI[] bgapis) {
+        int count = 0;
+        for (final SimulatedBGAPI bgapi : bgapis) {
+            count += bgapi.getConnectionCount();
+        }
+        return count;
+    }
+
+    private static long writes(final SimulatedBGAPI[] bgapis) {
+        long writes = 0L;
+        for (final SimulatedBGAPI bgapi : bgapis) {
+            writes += bgapi.getWrites();
+        }
+        return writes;
+    }
+}
@@ -0,0 +1,168 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.kjkoster.wedo.bricks.Brick.Type.DISTANCE;
+import static org.kjkoster.wedo.bricks.Brick.Type.LIGHT;
+import static org.kjkoster.wedo.bricks.Brick.Type.MOTOR;
+import static org.kjkoster.wedo.bricks.Brick.Type.NOT_CONNECTED;
+import static org.kjkoster.wedo.bricks.Brick.Type.TILT;
+import static org.kjkoster.wedo.bricks.Brick.Type.UNKNOWN;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.kjkoster.wedo.bricks.Brick.Type;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the cost of decoding the brick types in one packet, comparing the
+ * old switch and hash map decoding with the table-driven decoder. Run the
+ * <code>main()</code> method from the IDE, or from the command line with the
+ * test class path.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BrickDecoderBenchmark {
+    private static final int HUBS = 4;
+
+    private final String[] paths = new String[HUBS];
+    private final byte[][] packets = new byte[HUBS][];
+    private int hub = 0;
+
+    private final BrickDecoder brickDecoder = new BrickDecoder();
+    private final Map<String, Map<Character, Type>> rememberedActuatorTypes = new HashMap<>();
+
+    /**
+     * Set up a few hubs with a mix of bricks, including a running motor that
+     * reports an ID we have to remember the type for.
+     */
+    @Setup
+    public void setUp() {
+        final byte[][] ids = { { (byte) 0xee, (byte) 0xcb },
+                { (byte) 0x26, (byte) 0xb0 }, { (byte) 0x00, (byte) 0xe6 },
+                { (byte) 0xf0, (byte) 0x27 } };
+        for (int i = 0; i < HUBS; i++) {
+            paths[i] = "/dev/hidraw" + i;
+            packets[i] = new byte[] { 0x00, 0x00, 0x40, ids[i][0], 0x7f,
+                    ids[i][1], 0x00, 0x00 };
+        }
+    }
+
+    /**
+     * The per-packet decoding as it was: a switch, followed by a few hash map
+     * lookups that box the port character.
+     *
+     * @param blackhole
+     *            The sink for the results.
+     */
+    @Benchmark
+    public void switchAndHashMaps(final Blackhole blackhole) {
+        final byte[] packet = packets[hub];
+        final String path = paths[hub];
+        hub = (hub + 1) % HUBS;
+
+        blackhole.consume(findType(path, 'A', packet[3]));
+        blackhole.consume(findType(path, 'B', packet[5]));
+    }
+
+    /**
+     * The per-packet decoding with the lookup table and slot arrays.
+     *
+     * @param blackhole
+     *            The sink for the results.
+     */
+    @Benchmark
+    public void decodeTable(final Blackhole blackhole) {
+        final byte[] packet = packets[hub];
+        final String path = paths[hub];
+        hub = (hub + 1) % HUBS;
+
+        final int slot = brickDecoder.slot(path);
+        blackhole.consume(brickDecoder.decode(slot, 0, packet[3]));
+        blackhole.consume(brickDecoder.decode(slot, 1, packet[5]));
+    }
+
+    @SuppressWarnings("cast")
+    private Type findType(final String path, final char port, final byte id) {
+        Type type;
+        switch ((int) id & 0xff) {
+        case 0xe6:
+        case 0xe7:
+            type = NOT_CONNECTED;
+            break;
+        case 0xee:
+        case 0xef:
+        case 0xf0:
+        case 0xf1:
+            type = MOTOR;
+            break;
+        case 0xcb:
+        case 0xcc:
+        case 0xcd:
+            type = LIGHT;
+            break;
+        case 0xb0:
+        case 0xb1:
+        case 0xb2:
+        case 0xb3:
+            type = DISTANCE;
+            break;
+        case 0x26:
+        case 0x27:
+            type = TILT;
+            break;
+        default:
+            type = UNKNOWN;
+        }
+
+        Map<Character, Type> hub = rememberedActuatorTypes.get(path);
+        if (hub == null) {
+            hub = new HashMap<>();
+            rememberedActuatorTypes.put(path, hub);
+        }
+
+        if (type == UNKNOWN && hub.containsKey(port)) {
+            type = hub.get(port);
+        }
+
+        if (type != UNKNOWN && type != NOT_CONNECTED) {
+            hub.put(port, type);
+        } else {
+            hub.remove(port);
+        }
+
+        return type;
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            Ignored.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(BrickDecoderBenchmark.class.getSimpleName()).build())
+                        .run();
+    }
+}
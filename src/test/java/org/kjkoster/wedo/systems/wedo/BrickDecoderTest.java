@@ -0,0 +1,53 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static org.junit.Assert.assertEquals;
+import static org.kjkoster.wedo.bricks.Brick.Type.LIGHT;
+import static org.kjkoster.wedo.bricks.Brick.Type.MOTOR;
+import static org.kjkoster.wedo.bricks.Brick.Type.NOT_CONNECTED;
+import static org.kjkoster.wedo.bricks.Brick.Type.TILT;
+import static org.kjkoster.wedo.bricks.Brick.Type.UNKNOWN;
+
+import org.junit.Test;
+
+/**
+ * Tests for the brick ID decoder.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class BrickDecoderTest {
+    /**
+     * A test case.
+     */
+    @Test
+    public void runningActuatorsShouldKeepTheirType() {
+        final BrickDecoder brickDecoder = new BrickDecoder();
+        final int slot = brickDecoder.slot("hub");
+
+        assertEquals(UNKNOWN, brickDecoder.decode(slot, 0, (byte) 0x00));
+        assertEquals(MOTOR, brickDecoder.decode(slot, 0, (byte) 0xef));
+        assertEquals(MOTOR, brickDecoder.decode(slot, 0, (byte) 0x00));
+        assertEquals(LIGHT, brickDecoder.decode(slot, 1, (byte) 0xcc));
+        assertEquals(LIGHT, brickDecoder.decode(slot, 1, (byte) 0x12));
+        assertEquals(TILT, brickDecoder.decode(slot, 0, (byte) 0x26));
+        assertEquals(NOT_CONNECTED, brickDecoder.decode(slot, 0, (byte) 0xe6));
+        assertEquals(UNKNOWN, brickDecoder.decode(slot, 0, (byte) 0x00));
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void releasedSlotsShouldBeReusedAndForgotten() {
+        final BrickDecoder brickDecoder = new BrickDecoder();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, brickDecoder.slot("hub-" + i));
+        }
+        assertEquals(3, brickDecoder.slot("hub-3"));
+        brickDecoder.decode(3, 1, (byte) 0xee);
+
+        brickDecoder.release("hub-3");
+        final int slot = brickDecoder.slot("new-hub");
+        assertEquals(3, slot);
+        assertEquals(UNKNOWN, brickDecoder.decode(slot, 1, (byte) 0x00));
+    }
+}
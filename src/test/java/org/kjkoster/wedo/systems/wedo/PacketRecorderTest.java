@@ -0,0 +1,171 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.kjkoster.wedo.bricks.Brick.Type.DISTANCE;
+import static org.kjkoster.wedo.bricks.Brick.Type.MOTOR;
+import static org.kjkoster.wedo.bricks.Brick.Type.TILT;
+import static org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub.ID_DISTANCE;
+import static org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub.ID_TILT;
+import static org.kjkoster.wedo.transport.usb.simulated.Waveform.constant;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.kjkoster.wedo.bricks.Hub;
+import org.kjkoster.wedo.transport.usb.HubHandle;
+import org.kjkoster.wedo.transport.usb.Usb;
+import org.kjkoster.wedo.transport.usb.Usb.ReadMode;
+import org.kjkoster.wedo.transport.usb.simulated.SimulatedUsbBackend;
+import org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub;
+
+/**
+ * Tests for recording packets and reading them back.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class PacketRecorderTest {
+    /**
+     * A test case.
+     */
+    @Test
+    public void recordingsShouldReadBackAsHubs() throws Exception {
+        final File file = File.createTempFile("wedo", ".rec");
+        file.deleteOnExit();
+        file.delete();
+
+        final HubHandle hub = new HubHandle("hub", "WeDo");
+        final long start = nanoTime();
+        try (final PacketRecorder packetRecorder = new PacketRecorder(file,
+                16)) {
+            // a motor, which is then switched on, and a tilt sensor
+            packetRecorder.record(hub, start,
+                    new byte[] { 0, 0, 0, (byte) 0xee, 120, 0x26, 0, 0 });
+            packetRecorder.record(hub, start + 1_000L,
+                    new byte[] { 0, 0, 0, 0x00, 120, 0x26, 0, 0 });
+        }
+        final long sessionLength = file.length();
+        try (final PacketRecorder packetRecorder = new PacketRecorder(file,
+                16)) {
+            packetRecorder.record(hub, start + 2_000L,
+                    new byte[] { 0, 0, 0, 0x00, 110, 0x26, 0, 0 });
+        }
+        // the unchanged bytes of the second packet took no space
+        assertTrue(file.length() - sessionLength < sessionLength);
+
+        try (final PacketRecording packetRecording = new PacketRecording(
+                file)) {
+            Hub read = packetRecording.read();
+            assertEquals("hub", read.getPath());
+            assertEquals(MOTOR, read.getBrick('A').getType());
+            assertEquals(TILT, read.getBrick('B').getType());
+            assertEquals(120, read.getBrick('B').getValue());
+            assertEquals(start, packetRecording.getReceivedNanos());
+
+            read = packetRecording.read();
+            assertEquals(MOTOR, read.getBrick('A').getType());
+            assertEquals(start + 1_000L, packetRecording.getReceivedNanos());
+
+            read = packetRecording.read();
+            assertEquals(MOTOR, read.getBrick('A').getType());
+            assertEquals(110, read.getBrick('B').getValue());
+            assertEquals(start + 2_000L, packetRecording.getReceivedNanos());
+
+            assertNull(packetRecording.read());
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void readsShouldBeRecordedWithTheirReceiveTimes() throws Exception {
+        final File file = File.createTempFile("wedo", ".rec");
+        file.deleteOnExit();
+
+        // blocking reads take the hubs one after the other
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(2, ID_TILT, constant((byte) 130), ID_DISTANCE,
+                constant((byte) 100), 30L);
+
+        try (final PacketRecorder packetRecorder = new PacketRecorder(file);
+                final WeDoBricks weDoBricks = new WeDoBricks(
+                        new Usb(false, ReadMode.BLOCKING, backend), false)) {
+            weDoBricks.setPacketRecorder(packetRecorder);
+            assertEquals(2, weDoBricks.readAll().size());
+        }
+
+        try (final PacketRecording packetRecording = new PacketRecording(
+                file)) {
+            packetRecording.read();
+            final long first = packetRecording.getReceivedNanos();
+            packetRecording.read();
+            final long second = packetRecording.getReceivedNanos();
+            final long apartMillis = MILLISECONDS
+                    .convert(Math.abs(second - first), NANOSECONDS);
+            assertTrue(apartMillis + " ms apart", apartMillis >= 20L);
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void readsShouldBeRecordedCheaply() throws Exception {
+        final File file = File.createTempFile("wedo", ".rec");
+        file.deleteOnExit();
+
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(new SimulatedWeDoHub("tilt-distance", ID_TILT,
+                constant((byte) 130), ID_DISTANCE, constant((byte) 100), 0L));
+
+        final PacketRecorder packetRecorder = new PacketRecorder(file);
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.BLOCKING, backend), false)) {
+            weDoBricks.setPacketRecorder(packetRecorder);
+            for (int i = 0; i < 100; i++) {
+                weDoBricks.readAll();
+            }
+        }
+
+        // rounds that fit in the ring buffer, so that we time the records and
+        // not the drops, and that let the writer catch up between them
+        final int packets = 4_000;
+        final HubHandle hub = new HubHandle("hub", "WeDo");
+        final byte[] packet = new byte[8];
+        long elapsed = Long.MAX_VALUE;
+        for (int round = 1; round <= 10; round++) {
+            final long start = nanoTime();
+            for (int i = 0; i < packets; i++) {
+                packetRecorder.record(hub, start, packet);
+            }
+            elapsed = Math.min(elapsed, nanoTime() - start);
+
+            final long deadline = nanoTime() + SECONDS.toNanos(5L);
+            while (packetRecorder.getRecorded() < 100L + round * packets) {
+                assertTrue(nanoTime() - deadline < 0L);
+                MILLISECONDS.sleep(1L);
+            }
+        }
+        packetRecorder.close();
+        assertEquals(0L, packetRecorder.getDropped());
+        assertTrue("recording took " + elapsed / packets + " ns per packet",
+                elapsed / packets < 1_000L);
+
+        try (final PacketRecording packetRecording = new PacketRecording(
+                file)) {
+            for (int i = 0; i < 100; i++) {
+                final Hub read = packetRecording.read();
+                assertEquals("tilt-distance", read.getPath());
+                assertEquals(TILT, read.getBrick('A').getType());
+                assertEquals(DISTANCE, read.getBrick('B').getType());
+                assertEquals(100, read.getBrick('B').getValue() & 0xff);
+            }
+        }
+    }
+}
@@ -0,0 +1,655 @@
+package org.kjkoster.wedo.systems.wedo;
+
+import static java.lang.String.format;
+import static java.lang.System.nanoTime;
+import static java.lang.management.ManagementFactory.getThreadMXBean;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.kjkoster.wedo.systems.wedo.Subscription.Delivery.CHANGES_ONLY;
+import static org.kjkoster.wedo.systems.wedo.Subscription.Delivery.EVERY_SAMPLE;
+import static org.kjkoster.wedo.systems.wedo.WeDoBricks.WriteMode.ASYNCHRONOUS;
+import static org.kjkoster.wedo.bricks.Brick.Type.DISTANCE;
+import static org.kjkoster.wedo.bricks.Brick.Type.LIGHT;
+import static org.kjkoster.wedo.bricks.Brick.Type.MOTOR;
+import static org.kjkoster.wedo.bricks.Brick.Type.NOT_CONNECTED;
+import static org.kjkoster.wedo.bricks.Brick.Type.TILT;
+import static org.kjkoster.wedo.bricks.Tilt.Direction.LEFT;
+import static org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub.ID_DISTANCE;
+import static org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub.ID_LIGHT;
+import static org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub.ID_MOTOR;
+import static org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub.ID_NOT_CONNECTED;
+import static org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub.ID_TILT;
+import static org.kjkoster.wedo.transport.usb.simulated.Waveform.constant;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.kjkoster.wedo.bricks.ActuatorBatch;
+import org.kjkoster.wedo.bricks.Brick.Type;
+import org.kjkoster.wedo.bricks.Hub;
+import org.kjkoster.wedo.bricks.Tilt.Direction;
+import org.kjkoster.wedo.bricks.Tilt.Quality;
+import org.kjkoster.wedo.transport.usb.HubHandle;
+import org.kjkoster.wedo.transport.usb.Usb;
+import org.kjkoster.wedo.transport.usb.Usb.ReadMode;
+import org.kjkoster.wedo.transport.usb.simulated.SimulatedUsbBackend;
+import org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Tests for the WeDo bricks, using simulated hubs.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class WeDoBricksTest {
+    /**
+     * A test case.
+     */
+    @Test
+    public void simulatedBrickTypesShouldBeDecoded() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(new SimulatedWeDoHub("motor-light", ID_MOTOR,
+                constant((byte) 0), ID_LIGHT, constant((byte) 0), 0L));
+        backend.plug(new SimulatedWeDoHub("tilt-distance", ID_TILT,
+                constant((byte) 130), ID_DISTANCE, constant((byte) 100), 0L));
+        backend.plug(new SimulatedWeDoHub("empty", ID_NOT_CONNECTED,
+                constant((byte) 0), ID_NOT_CONNECTED, constant((byte) 0),
+                0L));
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.BLOCKING, backend), false)) {
+            final Collection<Hub> hubs = weDoBricks.readAll();
+            assertEquals(3, hubs.size());
+            for (final Hub hub : hubs) {
+                switch (hub.getPath()) {
+                case "motor-light":
+                    assertEquals(MOTOR, hub.getBrick('A').getType());
+                    assertEquals(LIGHT, hub.getBrick('B').getType());
+                    break;
+                case "tilt-distance":
+                    assertEquals(TILT, hub.getBrick('A').getType());
+                    assertEquals(DISTANCE, hub.getBrick('B').getType());
+                    break;
+                default:
+                    assertEquals(NOT_CONNECTED, hub.getBrick('A').getType());
+                    assertEquals(NOT_CONNECTED, hub.getBrick('B').getType());
+                }
+            }
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void motorWritesShouldReachSimulatedHubs() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(4, ID_MOTOR, constant((byte) 0), ID_LIGHT,
+                constant((byte) 0), 0L);
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.BLOCKING, backend), false)) {
+            weDoBricks.motorA((byte) 42);
+            weDoBricks.lightB((byte) 17);
+        }
+
+        for (final SimulatedWeDoHub simulatedWeDoHub : backend.getHubs()) {
+            assertEquals(42, simulatedWeDoHub.getValueA());
+            assertEquals(17, simulatedWeDoHub.getValueB());
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void asynchronousWritesShouldEndWithTheNewestFrame()
+            throws Exception {
+        final int frames = 200;
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(2, ID_MOTOR, constant((byte) 0), ID_LIGHT,
+                constant((byte) 0), 0L);
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.CONTINUOUS, backend), false,
+                ASYNCHRONOUS)) {
+            for (int i = 1; i <= frames; i++) {
+                weDoBricks.motorA((byte) (i % 100));
+            }
+            weDoBricks.lightB((byte) 17);
+            weDoBricks.flush().get(5L, SECONDS);
+
+            for (final SimulatedWeDoHub simulatedWeDoHub : backend
+                    .getHubs()) {
+                assertEquals(frames % 100, simulatedWeDoHub.getValueA());
+                assertEquals(17, simulatedWeDoHub.getValueB());
+                assertTrue(simulatedWeDoHub.getWrites() <= frames + 1);
+            }
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void unpluggedHubsShouldNotKeepTheirWriters() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(new SimulatedWeDoHub("gone", ID_MOTOR,
+                constant((byte) 0), ID_LIGHT, constant((byte) 0), 0L));
+        final Usb usb = new Usb(false, ReadMode.BLOCKING, backend);
+        usb.setEnumerationInterval(0L, MILLISECONDS);
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(usb, false,
+                ASYNCHRONOUS)) {
+            weDoBricks.motorA((byte) 42);
+            weDoBricks.flush().get(5L, SECONDS);
+            assertTrue(writerThreadAlive("gone"));
+
+            backend.unplug("gone");
+            assertEquals(0, weDoBricks.readAll().size());
+            assertFalse(writerThreadAlive("gone"));
+        }
+    }
+
+    private static boolean writerThreadAlive(final String path) {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("WeDo writer " + path)
+                    && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void actuatorsShouldNotReadTheHubs() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        final SimulatedWeDoHub simulatedWeDoHub = new SimulatedWeDoHub(
+                "motor-light", ID_MOTOR, constant((byte) 0), ID_LIGHT,
+                constant((byte) 0), 0L);
+        backend.plug(simulatedWeDoHub);
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.BLOCKING, backend), false)) {
+            weDoBricks.motorA((byte) 1); // learns the port types
+            final long reads = simulatedWeDoHub.getReads();
+
+            for (int i = 0; i < 100; i++) {
+                weDoBricks.motorA((byte) i);
+            }
+            assertEquals(reads, simulatedWeDoHub.getReads());
+            assertEquals(99, simulatedWeDoHub.getValueA());
+
+            weDoBricks.refreshTypes();
+            assertEquals(reads + 1L, simulatedWeDoHub.getReads());
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void batchesShouldSendOneFramePerHub() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        final SimulatedWeDoHub one = new SimulatedWeDoHub("one", ID_MOTOR,
+                constant((byte) 0), ID_LIGHT, constant((byte) 0), 0L);
+        final SimulatedWeDoHub two = new SimulatedWeDoHub("two", ID_MOTOR,
+                constant((byte) 0), ID_LIGHT, constant((byte) 0), 0L);
+        final SimulatedWeDoHub untouched = new SimulatedWeDoHub("untouched",
+                ID_MOTOR, constant((byte) 0), ID_LIGHT, constant((byte) 0),
+                0L);
+        backend.plug(one);
+        backend.plug(two);
+        backend.plug(untouched);
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.BLOCKING, backend), false)) {
+            weDoBricks.lightB((byte) 5);
+            final long writes = one.getWrites();
+
+            weDoBricks.batch().set("one", 'A', (byte) 42)
+                    .set("two", 'B', (byte) 17).set("one", 'A', (byte) 43)
+                    .commit();
+
+            assertEquals(writes + 1L, one.getWrites());
+            assertEquals(writes + 1L, two.getWrites());
+            assertEquals(writes, untouched.getWrites());
+            assertEquals(43, one.getValueA());
+            assertEquals(5, one.getValueB()); // not in the batch
+            assertEquals(0, two.getValueA());
+            assertEquals(17, two.getValueB());
+
+            try {
+                weDoBricks.batch().set("one", 'A', (byte) 44)
+                        .set("unknown", 'A', (byte) 1)
+                        .set("two", 'B', (byte) 18).commit();
+                fail();
+            } catch (IllegalArgumentException e) {
+                // the other hubs in the batch were still written
+            }
+            assertEquals(44, one.getValueA());
+            assertEquals(18, two.getValueB());
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void synchronousBatchesShouldWriteHubsInParallel() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(4, ID_MOTOR, constant((byte) 0), ID_LIGHT,
+                constant((byte) 0), 0L);
+        for (final SimulatedWeDoHub simulatedWeDoHub : backend.getHubs()) {
+            simulatedWeDoHub.setWriteLatency(100L);
+        }
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.BLOCKING, backend), false)) {
+            weDoBricks.readAll();
+            final ActuatorBatch batch = weDoBricks.batch();
+            for (final SimulatedWeDoHub simulatedWeDoHub : backend
+                    .getHubs()) {
+                batch.set(simulatedWeDoHub.getPath(), 'A', (byte) 42);
+            }
+
+            final long start = nanoTime();
+            batch.commit();
+            final long elapsedMillis = NANOSECONDS
+                    .toMillis(nanoTime() - start);
+
+            // one after the other would take 400 ms
+            assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 300L);
+            for (final SimulatedWeDoHub simulatedWeDoHub : backend
+                    .getHubs()) {
+                assertEquals(42, simulatedWeDoHub.getValueA());
+            }
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void replugsShouldKeepTheHubIdentityAndValues() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(new SimulatedWeDoHub("one", ID_MOTOR, constant((byte) 0),
+                ID_LIGHT, constant((byte) 0), 0L));
+        backend.plug(new SimulatedWeDoHub("two", ID_TILT,
+                constant((byte) 130), ID_LIGHT, constant((byte) 0), 0L));
+        final Usb usb = new Usb(false, ReadMode.BLOCKING, backend);
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(usb, false)) {
+            weDoBricks.motorA((byte) 42);
+            weDoBricks.lightB((byte) 17);
+            assertEquals("hub-1", weDoBricks.getHubId("one"));
+            assertEquals("hub-2", weDoBricks.getHubId("two"));
+
+            // moved to another USB port, recognised by its bricks
+            backend.unplug("one");
+            final SimulatedWeDoHub moved = new SimulatedWeDoHub("moved",
+                    ID_MOTOR, constant((byte) 0), ID_LIGHT,
+                    constant((byte) 0), 0L);
+            backend.plug(moved);
+            usb.refresh();
+            weDoBricks.readAll();
+            weDoBricks.flush().get(5L, SECONDS);
+            assertEquals("hub-1", weDoBricks.getHubId("moved"));
+            assertEquals("moved", weDoBricks.getHubPath("hub-1"));
+            assertEquals(42, moved.getValueA());
+            assertEquals(17, moved.getValueB());
+
+            // plugged back into the same port, restored without a read
+            backend.unplug("moved");
+            usb.refresh();
+            assertNull(weDoBricks.getHubPath("hub-1"));
+            final SimulatedWeDoHub back = new SimulatedWeDoHub("moved",
+                    ID_MOTOR, constant((byte) 0), ID_LIGHT,
+                    constant((byte) 0), 0L);
+            backend.plug(back);
+            usb.refresh();
+            weDoBricks.flush().get(5L, SECONDS);
+            assertEquals(0L, back.getReads());
+            assertEquals("hub-1", weDoBricks.getHubId("moved"));
+            assertEquals(42, back.getValueA());
+            assertEquals(17, back.getValueB());
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void writeThroughputShouldScaleWithTheNumberOfHubs()
+            throws Exception {
+        final double oneHub = writesPerSecond(1);
+        final double fourHubs = writesPerSecond(4);
+        assertTrue(format("%.0f writes/s on one hub, %.0f on four hubs",
+                oneHub, fourHubs), fourHubs > 2.0 * oneHub);
+    }
+
+    /**
+     * Let one controller thread per hub set motors on all hubs a fixed number
+     * of times, on hubs that take 2 ms per write.
+     */
+    private static double writesPerSecond(final int hubCount)
+            throws Exception {
+        final int operations = 100;
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        for (int i = 0; i < hubCount; i++) {
+            final SimulatedWeDoHub simulatedWeDoHub = new SimulatedWeDoHub(
+                    "hub-" + i, ID_MOTOR, constant((byte) 0), ID_LIGHT,
+                    constant((byte) 0), 0L);
+            simulatedWeDoHub.setWriteLatency(2L);
+            backend.plug(simulatedWeDoHub);
+        }
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.BLOCKING, backend), false)) {
+            weDoBricks.refreshTypes();
+
+            final CountDownLatch go = new CountDownLatch(1);
+            final Thread[] controllers = new Thread[hubCount];
+            for (int i = 0; i < hubCount; i++) {
+                controllers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int speed = 1; speed <= operations; speed++) {
+                            weDoBricks.motorA((byte) speed);
+                        }
+                    }
+                };
+                controllers[i].start();
+            }
+
+            final long start = nanoTime();
+            go.countDown();
+            for (final Thread controller : controllers) {
+                controller.join();
+            }
+            final long elapsed = nanoTime() - start;
+
+            long writes = 0L;
+            for (final SimulatedWeDoHub simulatedWeDoHub : backend
+                    .getHubs()) {
+                // every controller set the motor on every hub
+                assertEquals(hubCount * operations,
+                        simulatedWeDoHub.getWrites());
+                writes += simulatedWeDoHub.getWrites();
+            }
+            return writes / (elapsed / 1e9);
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void unchangedFramesShouldBeSuppressed() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        final SimulatedWeDoHub simulatedWeDoHub = new SimulatedWeDoHub(
+                "motor-light", ID_MOTOR, constant((byte) 0), ID_LIGHT,
+                constant((byte) 0), 0L);
+        backend.plug(simulatedWeDoHub);
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.BLOCKING, backend), false)) {
+            weDoBricks.setWriteSuppression(true);
+            weDoBricks.setWriteRefreshInterval(1L, HOURS);
+            for (int i = 0; i < 10; i++) {
+                weDoBricks.motorA((byte) 42);
+            }
+            weDoBricks.lightB((byte) 17);
+
+            assertEquals(2L, weDoBricks.getFramesWritten());
+            assertEquals(9L, weDoBricks.getFramesSuppressed());
+            assertEquals(2, simulatedWeDoHub.getWrites());
+            assertEquals(17, simulatedWeDoHub.getValueB());
+
+            weDoBricks.setWriteRefreshInterval(0L, HOURS);
+            weDoBricks.motorA((byte) 42);
+            assertEquals(3, simulatedWeDoHub.getWrites());
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void subscriptionsShouldShareOneSampler() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        final SimulatedWeDoHub simulatedWeDoHub = new SimulatedWeDoHub(
+                "motor-tilt", ID_MOTOR, constant((byte) 0), ID_TILT,
+                constant((byte) 130), 0L);
+        backend.plug(simulatedWeDoHub);
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.BLOCKING, backend), false)) {
+            final AtomicInteger everySample = new AtomicInteger();
+            final AtomicInteger changesOnly = new AtomicInteger();
+            final CountDownLatch enoughSamples = new CountDownLatch(10);
+
+            weDoBricks.subscribe(null, 'B', TILT, 10L, MILLISECONDS,
+                    EVERY_SAMPLE, new SensorListener() {
+                        @Override
+                        public void sampled(final HubHandle hubHandle,
+                                final char port, final Type type,
+                                final byte value, final long receivedNanos) {
+                            everySample.incrementAndGet();
+                            enoughSamples.countDown();
+                        }
+                    });
+            weDoBricks.subscribe("motor-tilt", null, null, 10L, MILLISECONDS,
+                    CHANGES_ONLY, new SensorListener() {
+                        @Override
+                        public void sampled(final HubHandle hubHandle,
+                                final char port, final Type type,
+                                final byte value, final long receivedNanos) {
+                            changesOnly.incrementAndGet();
+                        }
+                    });
+
+            assertTrue(enoughSamples.await(5L, SECONDS));
+            final long reads = simulatedWeDoHub.getReads();
+            final int samples = everySample.get();
+            assertEquals(2, changesOnly.get()); // one for each port
+            assertTrue(reads + " reads for " + samples + " samples",
+                    reads <= samples + 1);
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void deadSamplersShouldBeRestarted() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(new SimulatedWeDoHub("motor-tilt", ID_MOTOR,
+                constant((byte) 0), ID_TILT, constant((byte) 130), 0L));
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.BLOCKING, backend), false)) {
+            // errors are not caught, so this kills the sampler thread
+            final CountDownLatch died = new CountDownLatch(1);
+            final Subscription fatal = weDoBricks.subscribe(null, 'A', null,
+                    10L, MILLISECONDS, EVERY_SAMPLE, new SensorListener() {
+                        @Override
+                        public void sampled(final HubHandle hubHandle,
+                                final char port, final Type type,
+                                final byte value, final long receivedNanos) {
+                            died.countDown();
+                            throw new AssertionError("sampler killed");
+                        }
+                    });
+            assertTrue(died.await(5L, SECONDS));
+            fatal.close();
+            MILLISECONDS.sleep(100L);
+
+            final CountDownLatch enoughSamples = new CountDownLatch(10);
+            weDoBricks.subscribe(null, 'B', null, 10L, MILLISECONDS,
+                    EVERY_SAMPLE, new SensorListener() {
+                        @Override
+                        public void sampled(final HubHandle hubHandle,
+                                final char port, final Type type,
+                                final byte value, final long receivedNanos) {
+                            enoughSamples.countDown();
+                        }
+                    });
+
+            assertTrue(enoughSamples.await(5L, SECONDS));
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void repluggedTiltSensorsShouldStartANewVote() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(new SimulatedWeDoHub("tilt", ID_MOTOR, constant((byte) 0),
+                ID_TILT, constant((byte) 170), 0L));
+        final Usb usb = new Usb(false, ReadMode.BLOCKING, backend);
+        usb.setEnumerationInterval(0L, MILLISECONDS);
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(usb, false)) {
+            final AtomicLong pluggedNanos = new AtomicLong(Long.MAX_VALUE);
+            final CountDownLatch voted = new CountDownLatch(5);
+            final AtomicReference<Direction> afterReplug = new AtomicReference<>();
+            final CountDownLatch replugged = new CountDownLatch(1);
+            weDoBricks.subscribeTilts(null, 'B', 10L, MILLISECONDS,
+                    EVERY_SAMPLE, 5, new TiltListener() {
+                        @Override
+                        public void tilted(final HubHandle hubHandle,
+                                final char port, final Direction direction,
+                                final Quality quality,
+                                final long receivedNanos) {
+                            voted.countDown();
+                            if (receivedNanos - pluggedNanos.get() > 0L
+                                    && afterReplug.compareAndSet(null,
+                                            direction)) {
+                                replugged.countDown();
+                            }
+                        }
+                    });
+            assertTrue(voted.await(5L, SECONDS));
+
+            // the same path, now with a sensor that tilts left
+            backend.unplug("tilt");
+            weDoBricks.readAll();
+            pluggedNanos.set(nanoTime());
+            backend.plug(new SimulatedWeDoHub("tilt", ID_MOTOR,
+                    constant((byte) 0), ID_TILT, constant((byte) 220), 0L));
+
+            assertTrue(replugged.await(5L, SECONDS));
+            assertEquals(LEFT, afterReplug.get());
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void listenersShouldBeAbleToClose() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(new SimulatedWeDoHub("motor-tilt", ID_MOTOR,
+                constant((byte) 0), ID_TILT, constant((byte) 130), 0L));
+
+        final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.BLOCKING, backend), false);
+        final CountDownLatch closed = new CountDownLatch(1);
+        weDoBricks.subscribe(null, 'B', TILT, 10L, MILLISECONDS, EVERY_SAMPLE,
+                new SensorListener() {
+                    @Override
+                    public void sampled(final HubHandle hubHandle,
+                            final char port, final Type type,
+                            final byte value, final long receivedNanos) {
+                        try {
+                            weDoBricks.close();
+                        } catch (Exception e) {
+                            throw new AssertionError(e);
+                        }
+                        closed.countDown();
+                    }
+                });
+
+        // closing on the sampler thread used to wait for itself
+        assertTrue(closed.await(5L, SECONDS));
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void hundredHubsShouldBeReadInParallel() throws Exception {
+        final int hubCount = 100;
+        final int rounds = 20;
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(hubCount, ID_MOTOR, constant((byte) 0), ID_TILT,
+                constant((byte) 130), 1L);
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(
+                new Usb(false, ReadMode.PARALLEL, backend), false)) {
+            final long start = nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                assertEquals(hubCount, weDoBricks.readAll().size());
+            }
+            final long elapsedMillis = NANOSECONDS
+                    .toMillis(nanoTime() - start);
+
+            // sequentially this would take at least 2 seconds
+            assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 2000L);
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void steadyStatePollingShouldNotAllocate() throws Exception {
+        final ThreadMXBean threadMXBean = (ThreadMXBean) getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(4, ID_MOTOR, constant((byte) 0), ID_TILT,
+                constant((byte) 130), 0L);
+        final Usb usb = new Usb(false, ReadMode.BLOCKING, backend);
+        usb.setEnumerationInterval(1L, HOURS);
+
+        try (final WeDoBricks weDoBricks = new WeDoBricks(usb, false)) {
+            final WeDoSnapshot snapshot = new WeDoSnapshot();
+            for (int i = 0; i < 20_000; i++) {
+                weDoBricks.readAll(snapshot);
+            }
+
+            final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 1_000; i++) {
+                weDoBricks.readAll(snapshot);
+            }
+            final long after = threadMXBean.getThreadAllocatedBytes(threadId);
+
+            assertEquals(4, snapshot.getHubCount());
+            assertEquals(TILT, snapshot.getType(0, 'B'));
+            assertEquals("bytes allocated", 0L, after - before);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.kjkoster.wedo.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.kjkoster.wedo.bricks.Brick.Type.MOTOR;
+import static org.kjkoster.wedo.bricks.Brick.Type.TILT;
+import static org.kjkoster.wedo.trace.Tracer.Event.ACTUATORS_WRITE;
+import static org.kjkoster.wedo.trace.Tracer.Event.BRICKS_READ;
+import static org.kjkoster.wedo.trace.Tracer.Event.USB_READ;
+import static org.kjkoster.wedo.trace.Tracer.pack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+/**
+ * Tests for the ring buffered tracer.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class TracerTest {
+    /**
+     * A test case.
+     */
+    @Test
+    public void recordsShouldBeFormattedInOrder() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Tracer tracer = new Tracer(new PrintStream(bytes), 16);
+        tracer.trace(USB_READ, "hub", new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 },
+                0);
+        tracer.trace(BRICKS_READ, "hub",
+                pack(MOTOR.ordinal(), 0x7f, TILT.ordinal(), 0x80));
+        tracer.trace(ACTUATORS_WRITE, "hub", pack(0x40, 0x00, 0, 0));
+        tracer.close();
+
+        assertEquals(
+                "  USB read  hub: 0x01 0x02 [value A: 0x03] [id A: 0x04] [value B: 0x05] [id B: 0x06] 0x07 0x08\n"
+                        + "read  hub [port A: MOTOR value: 0x7f] [port B: TILT value: 0x80]\n"
+                        + "write hub -> value A: 0x40 value B: 0x00\n",
+                bytes.toString());
+        assertEquals(3L, tracer.getPrinted());
+        assertEquals(0L, tracer.getDropped());
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void flushShouldPrintAllRecordsSoFar() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Tracer tracer = new Tracer(new PrintStream(bytes), 16);
+        try {
+            for (int i = 0; i < 10; i++) {
+                tracer.trace(ACTUATORS_WRITE, "hub", pack(i, 0x00, 0, 0));
+            }
+            assertTrue(tracer.flush());
+
+            assertEquals(10L, tracer.getPrinted());
+            assertTrue(bytes.toString().endsWith(
+                    "write hub -> value A: 0x09 value B: 0x00\n"));
+        } finally {
+            tracer.close();
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void overloadShouldDropRecords() throws Exception {
+        final PrintStream slow = new PrintStream(new ByteArrayOutputStream()) {
+            @Override
+            public void write(final byte[] buffer, final int offset,
+                    final int length) {
+                try {
+                    Thread.sleep(1L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(buffer, offset, length);
+            }
+        };
+        final Tracer tracer = new Tracer(slow, 4);
+        for (int i = 0; i < 1_000; i++) {
+            tracer.trace(ACTUATORS_WRITE, "hub", pack(i, 0, 0, 0));
+        }
+        tracer.close();
+
+        assertTrue(tracer.getDropped() > 0L);
+        assertEquals(1_000L, tracer.getDropped() + tracer.getPrinted());
+    }
+}
@@ -0,0 +1,322 @@
+package org.kjkoster.wedo.transport.ble112;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.kjkoster.wedo.transport.ble112.BLE112Connections.State.CONNECTED;
+import static org.kjkoster.wedo.transport.ble112.BLE112Connections.State.IDLE;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.kjkoster.wedo.transport.ble112.simulated.SimulatedBGAPI;
+import org.kjkoster.wedo.transport.ble112.simulated.SimulatedSBrick;
+
+/**
+ * Tests for the BLE112 connection manager, using a simulated dongle.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class BLE112ConnectionsTest {
+    private static BLE112Address address(final int i) {
+        return new BLE112Address(String.format("00:07:80:00:00:%02x", i), 0);
+    }
+
+    private static boolean awaitConnections(
+            final BLE112Connections ble112Connections, final int count,
+            final long timeoutMillis) throws InterruptedException {
+        final long deadline = nanoTime() + MILLISECONDS.toNanos(timeoutMillis);
+        for (;;) {
+            boolean connected = true;
+            for (int i = 0; i < count; i++) {
+                connected &= ble112Connections
+                        .getConnection(address(i)) != null;
+            }
+            if (connected) {
+                return true;
+            }
+            if (nanoTime() - deadline > 0L) {
+                return false;
+            }
+            MILLISECONDS.sleep(5L);
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void hubsShouldBeConnectedBackToBack() throws Exception {
+        final SimulatedBGAPI bgapi = new SimulatedBGAPI(8);
+        for (int i = 0; i < 8; i++) {
+            bgapi.add(new SimulatedSBrick(address(i), 20L));
+        }
+
+        final BLE112Connections ble112Connections = new BLE112Connections(
+                bgapi);
+        for (int i = 0; i < 8; i++) {
+            ble112Connections.add(address(i));
+        }
+
+        // polling once every 2 seconds, this took at least 16 seconds
+        assertTrue(awaitConnections(ble112Connections, 8, 5_000L));
+        final long timeToAllConnected = ble112Connections
+                .getTimeToAllConnected(MILLISECONDS);
+        assertTrue(timeToAllConnected + " ms", timeToAllConnected < 1_000L);
+        assertEquals(8L, bgapi.getConnectAttempts());
+
+        ble112Connections.close();
+        assertEquals(0, bgapi.getConnectionCount());
+        bgapi.disconnect();
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void absentHubsShouldBackOff() throws Exception {
+        final SimulatedBGAPI bgapi = new SimulatedBGAPI(8);
+        for (int i = 0; i < 3; i++) {
+            bgapi.add(new SimulatedSBrick(address(i), 20L));
+        }
+
+        final BLE112Connections ble112Connections = new BLE112Connections(
+                bgapi);
+        ble112Connections.add(address(7)); // switched off, never answers
+        for (int i = 0; i < 3; i++) {
+            ble112Connections.add(address(i));
+        }
+
+        assertTrue(awaitConnections(ble112Connections, 3, 2_000L));
+        SECONDS.sleep(2L);
+        assertNull(ble112Connections.getConnection(address(7)));
+        assertEquals(-1L,
+                ble112Connections.getTimeToAllConnected(MILLISECONDS));
+        // without backoff, we would have tried once per time-out
+        assertTrue(bgapi.getConnectAttempts() + " attempts",
+                bgapi.getConnectAttempts() <= 3L + 3L);
+
+        bgapi.setSwitchedOn(address(1), false);
+        MILLISECONDS.sleep(100L);
+        assertNull(ble112Connections.getConnection(address(1)));
+        assertNotNull(ble112Connections.getConnection(address(0)));
+
+        ble112Connections.close();
+        bgapi.disconnect();
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void concurrentUseShouldKeepTheTableConsistent() throws Exception {
+        final SimulatedBGAPI bgapi = new SimulatedBGAPI(8);
+        for (int i = 0; i < 8; i++) {
+            bgapi.add(new SimulatedSBrick(address(i), 2L));
+        }
+        final BLE112Connections ble112Connections = new BLE112Connections(
+                bgapi);
+
+        final long end = nanoTime() + SECONDS.toNanos(2L);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[5];
+        for (int t = 0; t < threads.length; t++) {
+            final boolean chaos = t == 0;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random();
+                    try {
+                        while (nanoTime() - end < 0L) {
+                            final BLE112Address address = address(
+                                    random.nextInt(8));
+                            if (chaos) {
+                                bgapi.setSwitchedOn(address,
+                                        random.nextBoolean());
+                                MILLISECONDS.sleep(5L);
+                            } else {
+                                ble112Connections.add(address);
+                                if (ble112Connections
+                                        .getConnection(address) == null) {
+                                    ble112Connections.commandPending(address);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        for (int i = 0; i < 8; i++) {
+            bgapi.setSwitchedOn(address(i), true);
+        }
+        assertTrue(awaitConnections(ble112Connections, 8, 20_000L));
+        MILLISECONDS.sleep(100L);
+        for (int i = 0; i < 8; i++) {
+            // our table agrees with the dongle
+            assertEquals(bgapi.getConnection(address(i)),
+                    ble112Connections.getConnection(address(i)));
+        }
+        assertEquals(8, bgapi.getConnectionCount());
+
+        ble112Connections.close();
+        assertEquals(0, bgapi.getConnectionCount());
+        for (int i = 0; i < 8; i++) {
+            assertNull(ble112Connections.getConnection(address(i)));
+            assertEquals(IDLE, ble112Connections.getState(address(i)));
+        }
+        bgapi.disconnect();
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void shortLivedUseShouldNotWaitForNothing() throws Exception {
+        final SimulatedBGAPI bgapi = new SimulatedBGAPI(8);
+        for (int i = 0; i < 3; i++) {
+            bgapi.add(new SimulatedSBrick(address(i), 5L));
+        }
+
+        final long start = nanoTime();
+        final BLE112Connections ble112Connections = new BLE112Connections(
+                bgapi);
+        for (int i = 0; i < 3; i++) {
+            ble112Connections.add(address(i));
+        }
+        ble112Connections.awaitAllConnected(5L, SECONDS).get();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(CONNECTED, ble112Connections.getState(address(i)));
+        }
+        ble112Connections.closeAsync().get();
+        final long elapsed = NANOSECONDS.toMillis(nanoTime() - start);
+        // sleeping for a second at either end, this took seconds
+        assertTrue(elapsed + " ms", elapsed < 500L);
+
+        assertEquals(0, bgapi.getConnectionCount());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(IDLE, ble112Connections.getState(address(i)));
+        }
+        bgapi.disconnect();
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void pendingCommandsShouldCutTheBackOffShort() throws Exception {
+        final SimulatedBGAPI bgapi = new SimulatedBGAPI(8);
+        bgapi.add(new SimulatedSBrick(address(0), 20L));
+        bgapi.setSwitchedOn(address(0), false);
+
+        final BLE112Connections ble112Connections = new BLE112Connections(
+                bgapi);
+        ble112Connections.add(address(0));
+
+        // after three failed attempts, the back-off is at least 500 ms
+        final long deadline = nanoTime() + SECONDS.toNanos(10L);
+        while (bgapi.getConnectAttempts() < 3L
+                || ble112Connections.getState(address(0)) != IDLE) {
+            assertTrue(nanoTime() - deadline < 0L);
+            MILLISECONDS.sleep(5L);
+        }
+        bgapi.setSwitchedOn(address(0), true);
+        ble112Connections.commandPending(address(0));
+        assertTrue(awaitConnections(ble112Connections, 1, 300L));
+
+        ble112Connections.close();
+        bgapi.disconnect();
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void lingeringConnectionsShouldBeClearedOnAllHandles()
+            throws Exception {
+        final SimulatedBGAPI bgapi = new SimulatedBGAPI(8);
+        bgapi.add(new SimulatedSBrick(address(0), 20L));
+        bgapi.linger(address(0), 1);
+        bgapi.add(new SimulatedSBrick(address(1), 20L));
+        bgapi.linger(address(1), 6);
+
+        final BLE112Connections ble112Connections = new BLE112Connections(
+                bgapi);
+        final long deadline = nanoTime() + SECONDS.toNanos(2L);
+        while (bgapi.getConnectionCount() > 0 && nanoTime() - deadline < 0L) {
+            MILLISECONDS.sleep(5L);
+        }
+        assertEquals(0, bgapi.getConnectionCount());
+
+        ble112Connections.close();
+        bgapi.disconnect();
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void unconfirmedDisconnectsShouldTimeOutTheClose()
+            throws Exception {
+        final SimulatedBGAPI bgapi = new SimulatedBGAPI(8);
+        bgapi.add(new SimulatedSBrick(address(0), 20L));
+        final BLE112Connections ble112Connections = new BLE112Connections(
+                bgapi);
+        ble112Connections.add(address(0));
+        assertTrue(awaitConnections(ble112Connections, 1, 2_000L));
+
+        // a dongle that was unplugged no longer answers
+        bgapi.disconnect();
+        try {
+            ble112Connections.closeAsync().get(5L, SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void waitingForAnAbsentHubShouldTimeOut() throws Exception {
+        final SimulatedBGAPI bgapi = new SimulatedBGAPI(8);
+        final BLE112Connections ble112Connections = new BLE112Connections(
+                bgapi);
+        ble112Connections.add(address(7)); // switched off, never answers
+
+        final CompletableFuture<Integer> connected = ble112Connections
+                .awaitConnected(address(7), 50L, MILLISECONDS);
+        try {
+            connected.get(5L, SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        final CompletableFuture<Integer> closing = ble112Connections
+                .awaitConnected(address(7), 5L, SECONDS);
+        ble112Connections.close();
+        assertTrue(closing.isCompletedExceptionally());
+        bgapi.disconnect();
+    }
+}
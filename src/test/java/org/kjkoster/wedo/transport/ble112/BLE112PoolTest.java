@@ -0,0 +1,90 @@
+package org.kjkoster.wedo.transport.ble112;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.kjkoster.wedo.transport.ble112.simulated.SimulatedBGAPI;
+import org.kjkoster.wedo.transport.ble112.simulated.SimulatedSBrick;
+
+/**
+ * Tests for spreading hubs over a pool of simulated dongles.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class BLE112PoolTest {
+    private static BLE112Address address(final int i) {
+        return new BLE112Address(String.format("00:07:80:00:00:%02x", i), 0);
+    }
+
+    private static void awaitConnected(final BLE112Pool ble112Pool,
+            final int count) throws InterruptedException {
+        final long deadline = nanoTime() + SECONDS.toNanos(10L);
+        for (int i = 0; i < count; i++) {
+            while (ble112Pool.getConnections(address(i))
+                    .getConnection(address(i)) == null) {
+                assertTrue(address(i) + " did not connect",
+                        nanoTime() - deadline < 0L);
+                MILLISECONDS.sleep(5L);
+            }
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void hubsShouldMoveOffFullAndFailedDongles() throws Exception {
+        final SimulatedBGAPI[] bgapis = new SimulatedBGAPI[3];
+        for (int d = 0; d < bgapis.length; d++) {
+            bgapis[d] = new SimulatedBGAPI(2);
+            for (int i = 0; i < 6; i++) {
+                bgapis[d].add(new SimulatedSBrick(address(i), 2L));
+            }
+        }
+
+        try (final BLE112Pool ble112Pool = new BLE112Pool(bgapis)) {
+            for (int i = 0; i < 6; i++) {
+                ble112Pool.add(address(i));
+            }
+
+            // no dongle can hold more than two, so each got two
+            awaitConnected(ble112Pool, 6);
+            for (final SimulatedBGAPI bgapi : bgapis) {
+                assertEquals(2, bgapi.getConnectionCount());
+            }
+
+            final BLE112Connections failed = ble112Pool.getDongles().get(0);
+            ble112Pool.failed(failed);
+            MILLISECONDS.sleep(100L);
+            assertEquals(0, bgapis[0].getConnectionCount());
+            for (int i = 0; i < 6; i++) {
+                final BLE112Connections dongle = ble112Pool
+                        .getConnections(address(i));
+                assertNotNull(dongle);
+                assertTrue(dongle != failed);
+            }
+
+            // the remaining dongles are overfull, so hubs take turns there
+            for (int d = 1; d < bgapis.length; d++) {
+                assertTrue(ble112Pool.getDongles().get(d)
+                        .getTimeSlice(MILLISECONDS) >= 0L);
+            }
+            for (int i = 0; i < 6; i++) {
+                final BLE112Connections dongle = ble112Pool
+                        .getConnections(address(i));
+                dongle.commandPending(address(i));
+                assertNotNull(address(i) + " did not connect", dongle
+                        .awaitConnected(address(i), 5L, SECONDS).get());
+            }
+        } finally {
+            for (final SimulatedBGAPI bgapi : bgapis) {
+                bgapi.disconnect();
+            }
+        }
+    }
+}
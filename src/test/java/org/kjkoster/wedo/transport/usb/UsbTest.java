@@ -0,0 +1,155 @@
+package org.kjkoster.wedo.transport.usb;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub.ID_LIGHT;
+import static org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub.ID_MOTOR;
+import static org.kjkoster.wedo.transport.usb.simulated.Waveform.constant;
+
+import org.junit.Test;
+import org.kjkoster.wedo.transport.usb.Usb.ReadMode;
+import org.kjkoster.wedo.transport.usb.simulated.SimulatedUsbBackend;
+import org.kjkoster.wedo.transport.usb.simulated.SimulatedWeDoHub;
+
+/**
+ * Tests for the USB device handling, using simulated hubs.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class UsbTest {
+    /**
+     * A test case.
+     */
+    @Test
+    public void repluggedHubsShouldBeReadAgain() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        final SimulatedWeDoHub simulatedWeDoHub = new SimulatedWeDoHub(
+                "replug", ID_MOTOR, constant((byte) 0), ID_LIGHT,
+                constant((byte) 0), 0L);
+        backend.plug(simulatedWeDoHub);
+
+        try (final Usb usb = new Usb(false, ReadMode.BLOCKING, backend)) {
+            usb.setEnumerationInterval(0L, MILLISECONDS);
+            assertEquals(1, usb.readFromAll().size());
+            assertEquals(1, usb.getOpenDeviceCount());
+
+            backend.unplug("replug");
+            assertEquals(0, usb.readFromAll().size());
+            assertEquals(0, usb.getOpenDeviceCount());
+
+            backend.plug(simulatedWeDoHub);
+            assertEquals(1, usb.readFromAll().size());
+            assertEquals(1, usb.getOpenDeviceCount());
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void openDevicesShouldBeCapped() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(10, ID_MOTOR, constant((byte) 0), ID_LIGHT,
+                constant((byte) 0), 0L);
+
+        try (final Usb usb = new Usb(false, ReadMode.BLOCKING, backend)) {
+            usb.setMaxOpenDevices(4);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(10, usb.readFromAll().size());
+                assertTrue(usb.getOpenDeviceCount() <= 4);
+            }
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void devicesShouldNotBeClosedDuringReads() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        final SimulatedWeDoHub[] simulatedWeDoHubs = new SimulatedWeDoHub[6];
+        for (int i = 0; i < simulatedWeDoHubs.length; i++) {
+            simulatedWeDoHubs[i] = new SimulatedWeDoHub("hub-" + i, ID_MOTOR,
+                    constant((byte) 0), ID_LIGHT, constant((byte) 0), 20L);
+            backend.plug(simulatedWeDoHubs[i]);
+        }
+
+        try (final Usb usb = new Usb(false, ReadMode.PARALLEL, backend)) {
+            usb.setMaxOpenDevices(2);
+            for (int i = 0; i < 5; i++) {
+                usb.readFromAll();
+            }
+        }
+        for (final SimulatedWeDoHub simulatedWeDoHub : simulatedWeDoHubs) {
+            assertEquals(0L, simulatedWeDoHub.getClosesInUse());
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void hubsUnpluggedDuringReadsShouldBeClosedAfterTheRead()
+            throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        final SimulatedWeDoHub slowWeDoHub = new SimulatedWeDoHub("slow",
+                ID_MOTOR, constant((byte) 0), ID_LIGHT, constant((byte) 0),
+                90L);
+        backend.plug(slowWeDoHub);
+        backend.plug(new SimulatedWeDoHub("fast", ID_MOTOR,
+                constant((byte) 0), ID_LIGHT, constant((byte) 0), 0L));
+
+        try (final Usb usb = new Usb(false, ReadMode.BLOCKING, backend)) {
+            usb.setEnumerationInterval(0L, MILLISECONDS);
+            final Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    usb.readFromAll();
+                }
+            };
+            reader.start();
+            Thread.sleep(20L);
+
+            // the next enumeration sees the slow hub gone
+            backend.unplug("slow");
+            assertEquals(1, usb.readFromAll().size());
+            assertEquals(1, usb.getOpenDeviceCount());
+            assertEquals(0L, slowWeDoHub.getCloses());
+
+            reader.join();
+            assertEquals(0L, slowWeDoHub.getClosesInUse());
+            assertEquals(1L, slowWeDoHub.getCloses());
+        }
+    }
+
+    /**
+     * A test case.
+     */
+    @Test
+    public void nonBlockingReadsShouldNotWaitForSlowHubs() throws Exception {
+        final SimulatedUsbBackend backend = new SimulatedUsbBackend();
+        backend.plug(4, ID_MOTOR, constant((byte) 0), ID_LIGHT,
+                constant((byte) 0), 50L);
+
+        try (final Usb usb = new Usb(false, ReadMode.NON_BLOCKING, backend)) {
+            // only a deadline makes us wait for the first packet of each hub
+            assertEquals(4,
+                    usb.readout(200L, MILLISECONDS).getPackets().size());
+
+            final long start = nanoTime();
+            final UsbReadout readout = usb.readout();
+            final long elapsedMillis = NANOSECONDS
+                    .toMillis(nanoTime() - start);
+            assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 20L);
+            assertEquals(4, readout.getPackets().size());
+            assertEquals(4, readout.getTimedOut().size());
+
+            final UsbReadout fresh = usb.readout(200L, MILLISECONDS);
+            assertTrue(fresh.isComplete());
+            assertEquals(4, fresh.getPackets().size());
+        }
+    }
+}